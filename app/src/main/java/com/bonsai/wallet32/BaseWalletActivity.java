@@ -130,6 +130,8 @@ public abstract class BaseWalletActivity extends ActionBarActivity {
                               new IntentFilter("wallet-state-changed"));
         mLBM.registerReceiver(mRateChangedReceiver,
                               new IntentFilter("rate-changed"));
+        mLBM.registerReceiver(mWalletStateChangedReceiver,
+                              new IntentFilter("broadcast-status"));
     }
 
     @Override
@@ -0,0 +1,207 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+
+// Watches what the peers send us through the bloom filter and tunes
+// the false positive rate to a budget of false positive transactions
+// per filtered block.  A lower budget saves data, a higher one gives
+// the peers less to go on.  The measured numbers are kept per peer.
+//
+public class BloomFilterTuner extends AbstractPeerEventListener {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(BloomFilterTuner.class);
+
+    public interface Listener {
+        // Called, without locks held, when the rate should change.
+        void onRateChanged(double rate);
+    }
+
+    // Bounds on the rate we'll ask for.
+    private static final double	MIN_RATE = 0.000001;
+    private static final double	MAX_RATE = 0.01;
+
+    // Filtered blocks to measure between adjustments.
+    private static final int	ADJUST_BLOCKS = 144;
+
+    // Not worth resending the filter for a smaller change.
+    private static final double	MIN_CHANGE = 2.0;
+
+    public static class PeerStats {
+        public final String	mAddress;
+        public long			mBlocks = 0;
+        public long			mTxs = 0;
+        public long			mFalsePositives = 0;
+        public long			mBytes = 0;
+
+        public PeerStats(String address) {
+            mAddress = address;
+        }
+
+        public PeerStats(PeerStats other) {
+            mAddress = other.mAddress;
+            mBlocks = other.mBlocks;
+            mTxs = other.mTxs;
+            mFalsePositives = other.mFalsePositives;
+            mBytes = other.mBytes;
+        }
+
+        // Fraction of the transactions sent which weren't ours.
+        public double falsePositiveRate() {
+            return mTxs == 0 ? 0.0 : (double) mFalsePositives / mTxs;
+        }
+    }
+
+    private final Wallet		mWallet;
+    private final Listener		mListener;
+
+    private final HashMap<String, PeerStats>	mPeerStats =
+        new HashMap<String, PeerStats>();
+
+    private double				mRate;
+    private double				mBudget;
+    private boolean				mEnabled = false;
+
+    private long				mWindowBlocks = 0;
+    private long				mWindowFalsePositives = 0;
+
+    public BloomFilterTuner(Wallet wallet,
+                            double rate,
+                            double budget,
+                            Listener listener) {
+        mWallet = wallet;
+        mRate = rate;
+        mBudget = budget;
+        mListener = listener;
+    }
+
+    // Starts tuning from the given rate.  Before this we only measure.
+    public synchronized void start(double rate) {
+        mRate = rate;
+        mEnabled = true;
+        resetWindow();
+    }
+
+    // False positive transactions per filtered block to aim for.
+    public synchronized void setBudget(double budget) {
+        mBudget = budget;
+        resetWindow();
+    }
+
+    public synchronized double getRate() {
+        return mRate;
+    }
+
+    public synchronized List<PeerStats> getPeerStats() {
+        List<PeerStats> stats = new ArrayList<PeerStats>();
+        for (PeerStats ps : mPeerStats.values())
+            stats.add(new PeerStats(ps));
+        return stats;
+    }
+
+    @Override
+    public Message onPreMessageReceived(Peer peer, Message m) {
+        boolean isTx = m instanceof Transaction;
+        boolean isFalsePositive = false;
+        if (isTx) {
+            try {
+                isFalsePositive = !mWallet.isTransactionRelevant((Transaction) m);
+            } catch (ScriptException ex) {
+                // Can't tell, so don't count it against the filter.
+            }
+        }
+
+        double rate = record(peer.getAddress().toString(),
+                             m instanceof FilteredBlock, isTx,
+                             isFalsePositive, m.getMessageSize());
+        if (rate != 0.0)
+            mListener.onRateChanged(rate);
+
+        return m;
+    }
+
+    // Returns the new rate if it should change, otherwise 0.
+    private synchronized double record(String address,
+                                       boolean isBlock,
+                                       boolean isTx,
+                                       boolean isFalsePositive,
+                                       int size) {
+        PeerStats ps = mPeerStats.get(address);
+        if (ps == null) {
+            ps = new PeerStats(address);
+            mPeerStats.put(address, ps);
+        }
+        ps.mBytes += size;
+        if (isBlock) {
+            ++ps.mBlocks;
+            ++mWindowBlocks;
+        }
+        if (isTx) {
+            ++ps.mTxs;
+            if (isFalsePositive) {
+                ++ps.mFalsePositives;
+                ++mWindowFalsePositives;
+            }
+        }
+
+        if (!mEnabled || mWindowBlocks < ADJUST_BLOCKS)
+            return 0.0;
+
+        // With none seen treat it as one per window, so the rate can
+        // still grow.
+        double measured = (double) mWindowFalsePositives / mWindowBlocks;
+        double observed = Math.max(measured, 1.0 / mWindowBlocks);
+        double rate = mRate * mBudget / observed;
+        rate = Math.max(MIN_RATE, Math.min(MAX_RATE, rate));
+
+        mLogger.info(String.format("bloom: %.2f false positives per block, "
+                                   + "budget %.2f, rate %g -> %g",
+                                   measured, mBudget, mRate, rate));
+        resetWindow();
+
+        if (rate / mRate < MIN_CHANGE && mRate / rate < MIN_CHANGE)
+            return 0.0;
+
+        mRate = rate;
+        return rate;
+    }
+
+    private void resetWindow() {
+        mWindowBlocks = 0;
+        mWindowFalsePositives = 0;
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
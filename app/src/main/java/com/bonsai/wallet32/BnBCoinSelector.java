@@ -0,0 +1,269 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
+
+// Picks coins so the send needs no change output where it can.  A
+// branch and bound search looks for a set of coins which covers the
+// target with no more left over than would be dust (it goes to the
+// fee), preferring fewer inputs.  If there is none it falls back to a
+// knapsack search which aims to leave at least a cent of change.
+// Both searches have a fixed number of tries and use the best found so
+// far, and the knapsack's random choices start from the same seed each
+// time, so the same candidates and target always give the same coins.
+//
+public class BnBCoinSelector implements CoinSelector {
+
+    // Leftover up to this much is dropped into the fee, as completeTx
+    // does with change that would be dust.
+    public static final long	MAX_EXCESS =
+        Transaction.MIN_NONDUST_OUTPUT.longValue();
+
+    // What an input adds to the fee, for weighing input count against
+    // leftover.
+    private static final long	INPUT_COST =
+        FeeEstimator.INPUT_SIZE *
+        Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.longValue() / 1000;
+
+    // The knapsack search tries to leave at least this as change.
+    private static final long	MIN_CHANGE = Utils.CENT.longValue();
+
+    private static final int	MAX_TRIES = 100000;
+    private static final int	KNAPSACK_ROUNDS = 1000;
+
+    private final boolean		mSpendUnconfirmed;
+    private final Random		mRandom = new Random();
+
+    public BnBCoinSelector(boolean spendUnconfirmed) {
+        mSpendUnconfirmed = spendUnconfirmed;
+    }
+
+    public CoinSelection select(BigInteger biTarget,
+                                LinkedList<TransactionOutput> candidates) {
+        mRandom.setSeed(0);
+
+        List<TransactionOutput> coins = new ArrayList<TransactionOutput>();
+        long total = 0;
+        for (TransactionOutput to : candidates) {
+            if (!mSpendUnconfirmed &&
+                !DefaultCoinSelector.isSelectable(to.getParentTransaction()))
+                continue;
+            coins.add(to);
+            total += to.getValue().longValue();
+        }
+
+        // Not enough; return what there is and let the caller say so.
+        if (biTarget.compareTo(BigInteger.valueOf(total)) > 0)
+            return selection(coins);
+        long target = biTarget.longValue();
+
+        Collections.sort(coins, mLargestFirst);
+
+        List<TransactionOutput> picked = branchAndBound(coins, target);
+        if (picked == null)
+            picked = knapsack(coins, target);
+        return selection(picked);
+    }
+
+    // Returns the set within MAX_EXCESS of the target with the least
+    // waste, or null.  The coins must be largest first.
+    private List<TransactionOutput> branchAndBound(List<TransactionOutput> coins,
+                                                   long target) {
+        int nn = coins.size();
+        long[] values = new long[nn];
+        long[] remaining = new long[nn + 1];
+        for (int ii = nn - 1; ii >= 0; --ii) {
+            values[ii] = coins.get(ii).getValue().longValue();
+            remaining[ii] = remaining[ii + 1] + values[ii];
+        }
+
+        boolean[] included = new boolean[nn];
+        boolean[] best = null;
+        long bestWaste = Long.MAX_VALUE;
+
+        int depth = 0;		// Next coin to decide on
+        long sum = 0;
+        int count = 0;
+        for (int tries = 0; tries < MAX_TRIES; ++tries) {
+            boolean backtrack = false;
+            if (sum + remaining[depth] < target || sum > target + MAX_EXCESS) {
+                backtrack = true;
+            } else if (sum >= target) {
+                // More coins would only add waste.
+                long waste = sum - target + count * INPUT_COST;
+                if (waste < bestWaste) {
+                    bestWaste = waste;
+                    best = included.clone();
+                }
+                backtrack = true;
+            }
+
+            if (!backtrack) {
+                included[depth] = true;
+                sum += values[depth];
+                ++count;
+                ++depth;
+                continue;
+            }
+
+            // Leave out the last coin taken and try without it.
+            int last = depth - 1;
+            while (last >= 0 && !included[last])
+                --last;
+            if (last < 0)
+                break;			// Searched everything
+            included[last] = false;
+            sum -= values[last];
+            --count;
+            depth = last + 1;
+        }
+
+        if (best == null)
+            return null;
+        List<TransactionOutput> picked = new ArrayList<TransactionOutput>();
+        for (int ii = 0; ii < nn; ++ii)
+            if (best[ii])
+                picked.add(coins.get(ii));
+        return picked;
+    }
+
+    // Takes the smallest single coin above the target plus change, or
+    // a random search over the smaller coins for the set closest to
+    // it, whichever is closer.  The coins must be largest first.
+    private List<TransactionOutput> knapsack(List<TransactionOutput> coins,
+                                             long target) {
+        TransactionOutput lowestLarger = null;
+        List<TransactionOutput> smaller = new ArrayList<TransactionOutput>();
+        long totalSmaller = 0;
+        for (TransactionOutput to : coins) {
+            long value = to.getValue().longValue();
+            if (value < target + MIN_CHANGE) {
+                smaller.add(to);
+                totalSmaller += value;
+            } else {
+                lowestLarger = to;	// Largest first, so the last is lowest
+            }
+        }
+
+        if (totalSmaller < target)
+            return Collections.singletonList(lowestLarger);
+
+        long[] values = new long[smaller.size()];
+        for (int ii = 0; ii < values.length; ++ii)
+            values[ii] = smaller.get(ii).getValue().longValue();
+
+        boolean[] best = bestSubset(values, totalSmaller, target);
+        long bestSum = sumOf(values, best);
+        if (bestSum != target && totalSmaller >= target + MIN_CHANGE) {
+            best = bestSubset(values, totalSmaller, target + MIN_CHANGE);
+            bestSum = sumOf(values, best);
+        }
+
+        if (lowestLarger != null &&
+            ((bestSum != target && bestSum < target + MIN_CHANGE) ||
+             lowestLarger.getValue().longValue() <= bestSum))
+            return Collections.singletonList(lowestLarger);
+
+        List<TransactionOutput> picked = new ArrayList<TransactionOutput>();
+        for (int ii = 0; ii < values.length; ++ii)
+            if (best[ii])
+                picked.add(smaller.get(ii));
+        return picked;
+    }
+
+    // Random rounds over the values, largest first, each taking coins
+    // until the target is reached and keeping the smallest sum which
+    // covers it.  Starts from taking everything.
+    private boolean[] bestSubset(long[] values, long total, long target) {
+        int nn = values.length;
+        boolean[] best = new boolean[nn];
+        for (int ii = 0; ii < nn; ++ii)
+            best[ii] = true;
+        long bestSum = total;
+
+        boolean[] included = new boolean[nn];
+        for (int round = 0; round < KNAPSACK_ROUNDS && bestSum != target;
+             ++round) {
+            for (int ii = 0; ii < nn; ++ii)
+                included[ii] = false;
+            long sum = 0;
+            boolean reached = false;
+
+            // The first pass takes coins at random, the second fills
+            // in with the ones left out.
+            for (int pass = 0; pass < 2 && !reached; ++pass) {
+                for (int ii = 0; ii < nn; ++ii) {
+                    if (included[ii] || (pass == 0 && !mRandom.nextBoolean()))
+                        continue;
+                    sum += values[ii];
+                    included[ii] = true;
+                    if (sum >= target) {
+                        reached = true;
+                        if (sum < bestSum) {
+                            bestSum = sum;
+                            best = included.clone();
+                        }
+                        sum -= values[ii];
+                        included[ii] = false;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private static long sumOf(long[] values, boolean[] included) {
+        long sum = 0;
+        for (int ii = 0; ii < values.length; ++ii)
+            if (included[ii])
+                sum += values[ii];
+        return sum;
+    }
+
+    private static CoinSelection selection(List<TransactionOutput> picked) {
+        long sum = 0;
+        for (TransactionOutput to : picked)
+            sum += to.getValue().longValue();
+        return new CoinSelection(BigInteger.valueOf(sum), picked);
+    }
+
+    private static final Comparator<TransactionOutput> mLargestFirst =
+        new Comparator<TransactionOutput>() {
+            public int compare(TransactionOutput lhs, TransactionOutput rhs) {
+                return rhs.getValue().compareTo(lhs.getValue());
+            }
+        };
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,400 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.Wallet;
+
+// Sends our transactions to the network and sees them through.  Each
+// one is sent to a single peer at a time, lowest ping first, and the
+// other peers announcing it back show it has propagated.  Until
+// enough have, it's sent again to a peer it hasn't been sent to, with
+// the wait doubling each time.  Transactions stay queued until they
+// confirm, die or get too old, and the queue is kept on disk so they
+// survive a restart.
+//
+public class BroadcastQueue {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(BroadcastQueue.class);
+
+    public enum Status {
+        QUEUED,			// Not sent yet
+        SENT,			// Sent, not seen from enough peers
+        SEEN,			// Announced by enough peers
+        CONFIRMED,		// In a block; done
+        FAILED			// Double spent or too old; done
+    }
+
+    public interface Listener {
+        void onBroadcastStatus(Transaction tx, Status status, int numPeers);
+    }
+
+    // Version 2 writes transaction lengths as ints.
+    private static final int	VERSION = 2;
+
+    private static final int	POOL_SIZE = 2;
+
+    // Propagated once this many other peers announce it, or all the
+    // others if fewer are connected.
+    private static final int	TARGET_PEERS = 2;
+
+    // Resend waits, doubling from the first to the most.
+    private static final long	FIRST_RETRY_MSECS = 5 * 1000;
+    private static final long	MAX_RETRY_MSECS = 5 * 60 * 1000;
+
+    // Once propagated, how often to check for a confirmation.
+    private static final long	SEEN_CHECK_MSECS = 10 * 60 * 1000;
+
+    // Given up on if not confirmed by then.
+    private static final long	MAX_AGE_MSECS = 3L * 24 * 60 * 60 * 1000;
+
+    private class Entry implements TransactionConfidence.Listener {
+        public Transaction			mTx;
+        public final long			mQueued;
+        public int					mAttempts;
+        public Status				mStatus = Status.QUEUED;
+        public Status				mPublished = null;	// As last published
+        public int					mPublishedPeers = -1;
+        public final Set<String>	mTried = new HashSet<String>();
+        public ScheduledFuture<?>	mNext = null;
+
+        public Entry(Transaction tx, long queued, int attempts) {
+            mTx = tx;
+            mQueued = queued;
+            mAttempts = attempts;
+        }
+
+        // Check right away once it's been seen or confirmed, rather
+        // than at the next retry.
+        public void onConfidenceChanged(Transaction tx,
+                                        ChangeReason reason) {
+            TransactionConfidence conf = tx.getConfidence();
+            if (conf.getConfidenceType() != ConfidenceType.PENDING ||
+                conf.numBroadcastPeers() >= targetPeers())
+                schedule(this, 0);
+        }
+    }
+
+    private final NetworkParameters		mParams;
+    private final File					mFile;
+    private final Listener				mListener;
+
+    private final ScheduledExecutorService	mPool =
+        Executors.newScheduledThreadPool(POOL_SIZE);
+
+    private final Map<Sha256Hash, Entry>	mEntries =
+        new LinkedHashMap<Sha256Hash, Entry>();
+
+    // Keeps the pool threads from writing the file at once.
+    private final Object				mWriteLock = new Object();
+
+    // Set while the kit is running.
+    private PeerGroup					mPeerGroup = null;
+    private Wallet						mWallet = null;
+
+    public BroadcastQueue(NetworkParameters params,
+                          File file,
+                          Listener listener) {
+        mParams = params;
+        mFile = file;
+        mListener = listener;
+        load();
+    }
+
+    // Starts sending, including anything left from last time.
+    public synchronized void start(PeerGroup peerGroup, Wallet wallet) {
+        mPeerGroup = peerGroup;
+        mWallet = wallet;
+        for (Entry entry : mEntries.values()) {
+            track(entry);
+            schedule(entry, 0);
+        }
+        mLogger.info(String.format("started with %d queued",
+                                   mEntries.size()));
+    }
+
+    // Stops sending, keeping the queue for the next start.
+    public void stop() {
+        synchronized (this) {
+            for (Entry entry : mEntries.values()) {
+                if (entry.mNext != null)
+                    entry.mNext.cancel(false);
+                entry.mNext = null;
+                entry.mTx.getConfidence().removeEventListener(entry);
+            }
+            mPeerGroup = null;
+            mWallet = null;
+        }
+        write();
+    }
+
+    public void close() {
+        mPool.shutdown();
+    }
+
+    public void submit(Transaction tx) {
+        Entry entry;
+        synchronized (this) {
+            if (mEntries.containsKey(tx.getHash()))
+                return;
+            entry = new Entry(tx, System.currentTimeMillis(), 0);
+            mEntries.put(tx.getHash(), entry);
+            if (mPeerGroup != null)
+                track(entry);
+        }
+        mLogger.info("queued " + tx.getHashAsString());
+        write();
+        publish(entry, Status.QUEUED, 0);
+
+        // If stopped, it goes out when started.
+        schedule(entry, 0);
+    }
+
+    // Uses the copy of the transaction whose confidence is kept up to
+    // date, and listens for changes to it.
+    private void track(Entry entry) {
+        Transaction tx = mWallet.getTransaction(entry.mTx.getHash());
+        if (tx == null)
+            tx = mPeerGroup.getMemoryPool().intern(entry.mTx);
+        entry.mTx = tx;
+        tx.getConfidence().addEventListener(entry);
+    }
+
+    private synchronized void schedule(final Entry entry, long delayMsecs) {
+        if (mPeerGroup == null || mPool.isShutdown())
+            return;
+        if (entry.mNext != null)
+            entry.mNext.cancel(false);
+        entry.mNext = mPool.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        attempt(entry);
+                    } catch (RuntimeException ex) {
+                        mLogger.error("broadcast failed: " + ex.toString());
+                        schedule(entry, MAX_RETRY_MSECS);
+                    }
+                }
+            }, delayMsecs, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(Entry entry) {
+        Peer peer = null;
+        Status status;
+        int numPeers;
+        boolean done = false;
+        synchronized (this) {
+            if (mPeerGroup == null || mEntries.get(entry.mTx.getHash()) != entry)
+                return;
+
+            TransactionConfidence conf = entry.mTx.getConfidence();
+            ConfidenceType type = conf.getConfidenceType();
+            numPeers = conf.numBroadcastPeers();
+            long now = System.currentTimeMillis();
+
+            if (type == ConfidenceType.BUILDING) {
+                entry.mStatus = Status.CONFIRMED;
+                done = true;
+            } else if (type == ConfidenceType.DEAD ||
+                       now - entry.mQueued > MAX_AGE_MSECS) {
+                entry.mStatus = Status.FAILED;
+                done = true;
+            } else if (numPeers >= targetPeers() &&
+                       (numPeers > 0 || entry.mStatus != Status.QUEUED)) {
+                entry.mStatus = Status.SEEN;
+                schedule(entry, SEEN_CHECK_MSECS);
+            } else {
+                peer = pickPeer(entry);
+                if (peer != null) {
+                    entry.mTried.add(peer.getAddress().toString());
+                    entry.mStatus = Status.SENT;
+                }
+                ++entry.mAttempts;
+                long wait = FIRST_RETRY_MSECS <<
+                    Math.min(entry.mAttempts - 1, 16);
+                schedule(entry, Math.min(wait, MAX_RETRY_MSECS));
+            }
+
+            if (done) {
+                if (entry.mNext != null)
+                    entry.mNext.cancel(false);
+                mEntries.remove(entry.mTx.getHash());
+                conf.removeEventListener(entry);
+            }
+            status = entry.mStatus;
+        }
+
+        if (peer != null) {
+            mLogger.info(String.format("sending %s to %s, attempt %d, "
+                                       + "seen by %d",
+                                       entry.mTx.getHashAsString(),
+                                       peer.getAddress(),
+                                       entry.mAttempts, numPeers));
+            peer.sendMessage(entry.mTx);
+        }
+        if (done) {
+            mLogger.info(entry.mTx.getHashAsString() + " " + status);
+            write();
+        }
+        publish(entry, status, numPeers);
+    }
+
+    // The peer it was sent to doesn't announce it back, so with a
+    // single peer (a local regtest node) sending it is enough.
+    private synchronized int targetPeers() {
+        if (mPeerGroup == null)
+            return TARGET_PEERS;
+        int others = mPeerGroup.getConnectedPeers().size() - 1;
+        return Math.max(0, Math.min(TARGET_PEERS, others));
+    }
+
+    // The connected peer with the lowest ping which hasn't had it
+    // yet; once all have, starts over.
+    private Peer pickPeer(Entry entry) {
+        List<Peer> peers = mPeerGroup.getConnectedPeers();
+        if (peers.isEmpty())
+            return null;
+
+        Peer best = null;
+        for (int pass = 0; pass < 2 && best == null; ++pass) {
+            if (pass == 1)
+                entry.mTried.clear();
+            for (Peer peer : peers) {
+                if (entry.mTried.contains(peer.getAddress().toString()))
+                    continue;
+                if (best == null || peer.getPingTime() < best.getPingTime())
+                    best = peer;
+            }
+        }
+        return best;
+    }
+
+    private void publish(Entry entry, Status status, int numPeers) {
+        synchronized (this) {
+            if (status == entry.mPublished && numPeers == entry.mPublishedPeers)
+                return;
+            entry.mPublished = status;
+            entry.mPublishedPeers = numPeers;
+        }
+        mListener.onBroadcastStatus(entry.mTx, status, numPeers);
+    }
+
+    private synchronized void load() {
+        if (!mFile.exists())
+            return;
+        try {
+            DataInputStream dis =
+                new DataInputStream(new FileInputStream(mFile));
+            try {
+                if (dis.readInt() != VERSION)
+                    return;
+                int numEntries = dis.readInt();
+                for (int ii = 0; ii < numEntries; ++ii) {
+                    long queued = dis.readLong();
+                    int attempts = dis.readInt();
+                    int len = dis.readInt();
+                    if (len < 0 || len > Block.MAX_BLOCK_SIZE)
+                        throw new IOException("bad transaction length " + len);
+                    byte[] bytes = new byte[len];
+                    dis.readFully(bytes);
+                    try {
+                        Transaction tx = new Transaction(mParams, bytes);
+                        mEntries.put(tx.getHash(),
+                                     new Entry(tx, queued, attempts));
+                    } catch (ProtocolException ex) {
+                        mLogger.warn("skipping bad queued transaction");
+                    }
+                }
+            } finally {
+                dis.close();
+            }
+            mLogger.info(String.format("loaded %d queued transactions",
+                                       mEntries.size()));
+        } catch (IOException ex) {
+            mLogger.warn("trouble reading broadcast queue: " + ex.toString());
+        }
+    }
+
+    private void write() {
+        synchronized (mWriteLock) {
+            writeLocked();
+        }
+    }
+
+    private void writeLocked() {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<Entry>(mEntries.values());
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream dos =
+                new DataOutputStream(new FileOutputStream(tmpFile));
+            try {
+                dos.writeInt(VERSION);
+                dos.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    dos.writeLong(entry.mQueued);
+                    dos.writeInt(entry.mAttempts);
+                    byte[] bytes = entry.mTx.bitcoinSerialize();
+                    dos.writeInt(bytes.length);
+                    dos.write(bytes);
+                }
+            } finally {
+                dos.close();
+            }
+            if (!tmpFile.renameTo(mFile))
+                mLogger.warn("couldn't rename broadcast queue");
+        } catch (IOException ex) {
+            mLogger.warn("trouble writing broadcast queue: " + ex.toString());
+        }
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -1,18 +1,19 @@
 package com.bonsai.wallet32;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.preference.PreferenceManager;
 
 import com.google.bitcoin.core.NetworkParameters;
-import com.google.bitcoin.params.MainNetParams;
-import com.google.bitcoin.params.TestNet3Params;
 
 /**
  * @author Harald Hoyer
  */
 public class Constants
 {
+	private static NetworkMode networkMode = null;
 	private static NetworkParameters networkParameters = null;
 	public static String CHECKPOINTS_FILENAME = null;
 
@@ -28,12 +29,41 @@ public class Constants
 				e.printStackTrace();
 			}
 
-			networkParameters = TESTNET ? TestNet3Params.get() : MainNetParams.get();
-			CHECKPOINTS_FILENAME = TESTNET ? "checkpoints-testnet" : "checkpoints";
+			networkMode = TESTNET ? NetworkMode.TEST : NetworkMode.MAIN;
+
+			// In experimental mode a local network can be chosen
+			// instead.  It's read once, so it takes a restart.
+			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+			if (prefs.getBoolean(SettingsActivity.KEY_EXPERIMENTAL, false)) {
+				NetworkMode mode = NetworkMode.fromName(prefs.getString(SettingsActivity.KEY_NETWORK_MODE, ""));
+				if (mode != null && mode.isLocal())
+					networkMode = mode;
+			}
+
+			networkParameters = networkMode.getParams();
+			CHECKPOINTS_FILENAME = networkMode.getCheckpointsName();
 		}
 
 		return networkParameters;
 	}
+
+	public static NetworkMode getNetworkMode(Context context)
+	{
+		getNetworkParameters(context);
+		return networkMode;
+	}
+
+	// Comma separated host[:port] list of the only peers to use, or
+	// null to discover them.
+	public static String getPeerNodes(Context context)
+	{
+		NetworkMode mode = getNetworkMode(context);
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		String peers = null;
+		if (prefs.getBoolean(SettingsActivity.KEY_EXPERIMENTAL, false))
+			peers = prefs.getString(SettingsActivity.KEY_PEER_NODES, "").trim();
+		return peers == null || peers.length() == 0 ? mode.getDefaultPeerNodes() : peers;
+	}
 }
 
 // Local Variables:
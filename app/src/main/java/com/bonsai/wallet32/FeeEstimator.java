@@ -0,0 +1,166 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+
+import com.bonsai.wallet32.WalletEngine.AmountAndFee;
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+
+// Works out the fee Wallet.completeTx would charge for a send without
+// building or signing the transaction.  Coins are picked with the
+// same selector the send uses, from the account's spend candidates, and
+// the size is computed from the input and output counts, so no keys
+// are decrypted.  Follows the fee rules
+// of completeTx: the default fee per started kilobyte, at least the
+// reference fee when an output is under a cent, and change too small
+// to be worth an output goes to the fee.
+//
+public class FeeEstimator {
+
+    // Serialized sizes.  All of our addresses are pay to pubkey hash
+    // with compressed keys; a signature is at most 73 bytes.
+    public static final int		TX_OVERHEAD = 10;	// version, counts, locktime
+    public static final int		INPUT_SIZE = 148;
+    public static final int		OUTPUT_SIZE = 34;
+
+    private static final long	FEE_PER_KB =
+        Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.longValue();
+    private static final long	MIN_FEE =
+        Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.longValue();
+    private static final long	MIN_NONDUST =
+        Transaction.MIN_NONDUST_OUTPUT.longValue();
+    private static final long	CENT = Utils.CENT.longValue();
+
+    // The fee only grows, so this is plenty.
+    private static final int	MAX_PASSES = 8;
+
+    public static int estimateSize(int numInputs, int numOutputs) {
+        return TX_OVERHEAD + numInputs * INPUT_SIZE + numOutputs * OUTPUT_SIZE;
+    }
+
+    public static long feeForSize(int size, boolean hasSmallOutput) {
+        long fee = FEE_PER_KB * (size / 1000 + 1);
+        if (hasSmallOutput && fee < MIN_FEE)
+            fee = MIN_FEE;
+        return fee;
+    }
+
+    // A fee and the coins it was worked out for.  Any leftover in the
+    // selection past value and fee is change.
+    public static class Estimate {
+        public final long			mFee;
+        public final CoinSelection	mSelection;
+
+        public Estimate(long fee, CoinSelection selection) {
+            mFee = fee;
+            mSelection = selection;
+        }
+    }
+
+    // Returns the fee for sending value, split over numOutputs outputs
+    // of which the smallest is minOutput, plus change.
+    public static long recommendedFee(CoinSelector selector,
+                                      LinkedList<TransactionOutput> candidates,
+                                      long value,
+                                      int numOutputs,
+                                      long minOutput)
+        throws IllegalArgumentException, InsufficientMoneyException {
+        return estimate(selector, candidates, value,
+                        numOutputs, minOutput).mFee;
+    }
+
+    // As recommendedFee, along with the coins picked.  The selector
+    // must be deterministic for a send to reuse them.
+    public static Estimate estimate(CoinSelector selector,
+                                    LinkedList<TransactionOutput> candidates,
+                                    long value,
+                                    int numOutputs,
+                                    long minOutput)
+        throws IllegalArgumentException, InsufficientMoneyException {
+
+        if (minOutput < MIN_NONDUST)
+            throw new IllegalArgumentException("Tried to send dust");
+
+        long fee = feeForSize(estimateSize(1, numOutputs + 1),
+                              minOutput < CENT);
+        CoinSelection selection = null;
+        for (int pass = 0; pass < MAX_PASSES; ++pass) {
+            long target = value + fee;
+            selection =
+                selector.select(BigInteger.valueOf(target), candidates);
+            long gathered = selection.valueGathered.longValue();
+            if (gathered < target)
+                throw new InsufficientMoneyException
+                    (BigInteger.valueOf(target - gathered));
+
+            // Dust change is left out and becomes part of the fee.
+            long change = gathered - target;
+            boolean hasChange = change > MIN_NONDUST;
+            int size = estimateSize(selection.gathered.size(),
+                                    numOutputs + (hasChange ? 1 : 0));
+            long required = feeForSize(size,
+                                       minOutput < CENT ||
+                                       (hasChange && change < CENT));
+            if (required <= fee)
+                return new Estimate(hasChange ? fee : fee + change,
+                                    selection);
+            fee = required;
+        }
+        return new Estimate(fee, selection);
+    }
+
+    public static long recommendedFee(CoinSelector selector,
+                                      LinkedList<TransactionOutput> candidates,
+                                      long value)
+        throws IllegalArgumentException, InsufficientMoneyException {
+        return recommendedFee(selector, candidates, value, 1, value);
+    }
+
+    // Returns the most which can be sent, with everything the selector
+    // allows as inputs and no change, and the fee for it.
+    public static AmountAndFee useAll(CoinSelector selector,
+                                      LinkedList<TransactionOutput> candidates)
+        throws InsufficientMoneyException {
+
+        CoinSelection selection =
+            selector.select(NetworkParameters.MAX_MONEY, candidates);
+        long gathered = selection.valueGathered.longValue();
+
+        int size = estimateSize(selection.gathered.size(), 1);
+        long fee = feeForSize(size, false);
+        if (gathered - fee < CENT)
+            fee = feeForSize(size, true);
+        if (gathered - fee < MIN_NONDUST)
+            throw new InsufficientMoneyException
+                (BigInteger.valueOf(fee + MIN_NONDUST - gathered));
+
+        return new AmountAndFee(gathered - fee, fee);
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
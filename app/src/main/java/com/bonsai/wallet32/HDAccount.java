@@ -15,7 +15,10 @@
 
 package com.bonsai.wallet32;
 
-import java.math.BigInteger;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -25,22 +28,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 
-import com.bonsai.wallet32.HDAccount.AccountCoinSelector;
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
-import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.TransactionOutPoint;
 import com.google.bitcoin.core.TransactionOutput;
 import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.ChildNumber;
 import com.google.bitcoin.crypto.DeterministicKey;
 import com.google.bitcoin.crypto.HDKeyDerivation;
 import com.google.bitcoin.crypto.KeyCrypter;
-import com.google.bitcoin.script.Script;
-import com.google.bitcoin.wallet.AllowUnconfirmedCoinSelector;
-import com.google.bitcoin.wallet.CoinSelection;
 import com.google.bitcoin.wallet.CoinSelector;
-import com.google.bitcoin.wallet.DefaultCoinSelector;
 
 public class HDAccount {
 
@@ -48,6 +46,7 @@ public class HDAccount {
         LoggerFactory.getLogger(HDAccount.class);
 
     private NetworkParameters	mParams;
+    private HDAddressIndex		mIndex;
     private DeterministicKey	mAccountKey;
     private String				mAccountName;
     private int					mAccountId;
@@ -55,7 +54,15 @@ public class HDAccount {
     private HDChain				mReceiveChain;
     private HDChain				mChangeChain;
 
+    // Unspent outputs paying this account, kept up to date as the
+    // HDWallet applies transactions so coin selection needn't go
+    // through the whole wallet.  An output is dropped when a wallet
+    // transaction spends it or its own transaction goes.
+    private final LinkedHashMap<TransactionOutPoint, TransactionOutput>
+        mUnspent = new LinkedHashMap<TransactionOutPoint, TransactionOutput>();
+
     public HDAccount(NetworkParameters params,
+                     HDAddressIndex index,
                      DeterministicKey masterKey,
                      JSONObject acctNode,
                      boolean isPairing,
@@ -63,25 +70,13 @@ public class HDAccount {
         throws RuntimeException, JSONException {
 
         mParams = params;
+        mIndex = index;
 
         mAccountName = acctNode.getString("name");
         mAccountId = acctNode.getInt("id");
 
-        int childnum = mAccountId;
-        switch (hdsv) {
-        case HDSV_L0PUB:
-            // Old level 0 public just uses the child number.
-            break;
-        case HDSV_L0PRV:
-        case HDSV_STDV0:
-        case HDSV_STDV1:
-            // Both L0PRV and STDVx use private derivation.
-            childnum |= ChildNumber.PRIV_BIT;
-            break;
-        }
-
-        mAccountKey =
-            HDKeyDerivation.deriveChildKey(masterKey, childnum);
+        mAccountKey = HDKeyDerivation.deriveChildKey
+            (masterKey, accountChildNum(mAccountId, hdsv));
 
         mLogger.info("created HDAccount " + mAccountName + ": " +
                      mAccountKey.getPath());
@@ -89,16 +84,16 @@ public class HDAccount {
         if (isPairing) {
             int numReceive = acctNode.getInt("nrcv");
             int numChange = acctNode.getInt("nchg");
-            mReceiveChain = new HDChain(mParams, mAccountKey,
+            mReceiveChain = new HDChain(mParams, this, mIndex, mAccountKey,
                                         true, "Receive", numReceive);
-            mChangeChain = new HDChain(mParams, mAccountKey,
+            mChangeChain = new HDChain(mParams, this, mIndex, mAccountKey,
                                        false, "Change", numChange);
         } else {
             mReceiveChain =
-                new HDChain(mParams, mAccountKey,
+                new HDChain(mParams, this, mIndex, mAccountKey,
                             acctNode.getJSONObject("receive"));
             mChangeChain =
-                new HDChain(mParams, mAccountKey,
+                new HDChain(mParams, this, mIndex, mAccountKey,
                             acctNode.getJSONObject("change"));
         }
     }
@@ -125,12 +120,83 @@ public class HDAccount {
     }
 
     public HDAccount(NetworkParameters params,
+                     HDAddressIndex index,
+                     DeterministicKey masterKey,
+                     DataInputStream dis,
+                     HDWallet.HDStructVersion hdsv) throws IOException {
+
+        mParams = params;
+        mIndex = index;
+
+        mAccountId = dis.readInt();
+        mAccountName = dis.readUTF();
+
+        mAccountKey = HDKeyDerivation.deriveChildKey
+            (masterKey, accountChildNum(mAccountId, hdsv));
+
+        mLogger.info("created HDAccount " + mAccountName + ": " +
+                     mAccountKey.getPath());
+
+        mReceiveChain = new HDChain(mParams, this, mIndex, mAccountKey, dis);
+        mChangeChain = new HDChain(mParams, this, mIndex, mAccountKey, dis);
+    }
+
+    // See HDChain.snapshot.
+    public Snapshot snapshot() {
+        return new Snapshot(mAccountId, mAccountName,
+                            mReceiveChain.snapshot(),
+                            mChangeChain.snapshot());
+    }
+
+    public static class Snapshot implements HDWalletFile.Writer {
+        private final int				mAccountId;
+        private final String			mAccountName;
+        private final HDChain.Snapshot	mReceiveChain;
+        private final HDChain.Snapshot	mChangeChain;
+
+        private Snapshot(int accountId,
+                         String accountName,
+                         HDChain.Snapshot receiveChain,
+                         HDChain.Snapshot changeChain) {
+            mAccountId = accountId;
+            mAccountName = accountName;
+            mReceiveChain = receiveChain;
+            mChangeChain = changeChain;
+        }
+
+        public void write(DataOutputStream dos) throws IOException {
+            dos.writeInt(mAccountId);
+            dos.writeUTF(mAccountName);
+            mReceiveChain.write(dos);
+            mChangeChain.write(dos);
+        }
+    }
+
+    public HDAccount(NetworkParameters params,
+                     HDAddressIndex index,
                      DeterministicKey masterKey,
                      String accountName,
                      int acctnum,
                      HDWallet.HDStructVersion hdsv) {
 
         mParams = params;
+        mIndex = index;
+        mAccountKey = HDKeyDerivation.deriveChildKey
+            (masterKey, accountChildNum(acctnum, hdsv));
+        mAccountName = accountName;
+        mAccountId = acctnum;
+
+        mLogger.info("created HDAccount " + mAccountName + ": " +
+                     mAccountKey.getPath());
+
+        mReceiveChain = new HDChain(mParams, this, mIndex, mAccountKey,
+                                    true, "Receive", 0);
+        mChangeChain = new HDChain(mParams, this, mIndex, mAccountKey,
+                                   false, "Change", 0);
+    }
+
+    private static int accountChildNum(int acctnum,
+                                       HDWallet.HDStructVersion hdsv) {
         int childnum = acctnum;
         switch (hdsv) {
         case HDSV_L0PUB:
@@ -143,48 +209,36 @@ public class HDAccount {
             childnum |= ChildNumber.PRIV_BIT;
             break;
         }
-        mAccountKey = HDKeyDerivation.deriveChildKey(masterKey, childnum);
-        mAccountName = accountName;
-        mAccountId = acctnum;
-
-        mLogger.info("created HDAccount " + mAccountName + ": " +
-                     mAccountKey.getPath());
-
-        mReceiveChain = new HDChain(mParams, mAccountKey, true, "Receive", 0);
-        mChangeChain = new HDChain(mParams, mAccountKey, false, "Change", 0);
+        return childnum;
     }
 
-    public void gatherAllKeys(KeyCrypter keyCrypter,
+    public void gatherNewKeys(KeyImportTracker tracker,
+                              KeyCrypter keyCrypter,
                               KeyParameter aesKey,
                               long creationTime,
                               List<ECKey> keys) {
-        mReceiveChain.gatherAllKeys(keyCrypter, aesKey, creationTime, keys);
-        mChangeChain.gatherAllKeys(keyCrypter, aesKey, creationTime, keys);
+        mReceiveChain.gatherNewKeys(tracker, keyCrypter, aesKey,
+                                    creationTime, keys);
+        mChangeChain.gatherNewKeys(tracker, keyCrypter, aesKey,
+                                   creationTime, keys);
     }
 
-    public void applyOutput(byte[] pubkey,
-                            byte[] pubkeyhash,
-                            long value,
-                            boolean avail) {
-        mReceiveChain.applyOutput(pubkey, pubkeyhash, value, avail);
-        mChangeChain.applyOutput(pubkey, pubkeyhash, value, avail);
-    }
-
-    public void applyInput(byte[] pubkey, long value) {
-        mReceiveChain.applyInput(pubkey, value);
-        mChangeChain.applyInput(pubkey, value);
+    public void recordImported(KeyImportTracker tracker) {
+        mReceiveChain.recordImported(tracker);
+        mChangeChain.recordImported(tracker);
     }
 
     public void clearBalance() {
         mReceiveChain.clearBalance();
         mChangeChain.clearBalance();
+        synchronized (mUnspent) {
+            mUnspent.clear();
+        }
     }
 
     public boolean hasPubKey(byte[] pubkey, byte[] pubkeyhash) {
-        if (mReceiveChain.hasPubKey(pubkey, pubkeyhash))
-            return true;
-
-        return mChangeChain.hasPubKey(pubkey, pubkeyhash);
+        HDAddressDescription desc = mIndex.lookup(pubkey, pubkeyhash);
+        return desc != null && desc.hdAccount == this;
     }
 
     public String xpubstr() {
@@ -242,54 +296,40 @@ public class HDAccount {
         return mChangeChain.nextUnusedAddress();
     }
 
-    public CoinSelector coinSelector(boolean spendUnconfirmed) {
-        return new AccountCoinSelector(spendUnconfirmed);
+    // Records an unspent output paying this account.  One the wallet
+    // already has spent (eg. by a pending send) isn't kept.
+    public void addOutput(TransactionOutPoint outpoint, TransactionOutput to) {
+        if (!to.isAvailableForSpending())
+            return;
+        synchronized (mUnspent) {
+            mUnspent.put(outpoint, to);
+        }
     }
 
-    public class AccountCoinSelector implements CoinSelector {
-
-        private DefaultCoinSelector mDefaultCoinSelector;
-
-        public AccountCoinSelector(boolean spendUnconfirmed) {
-            mDefaultCoinSelector = spendUnconfirmed ?
-                new AllowUnconfirmedCoinSelector() :
-                new DefaultCoinSelector();
+    // Forgets an output, once it is spent or its transaction goes.
+    public void removeOutput(TransactionOutPoint outpoint) {
+        synchronized (mUnspent) {
+            mUnspent.remove(outpoint);
         }
+    }
 
-        public CoinSelection select(BigInteger biTarget,
-                                    LinkedList<TransactionOutput> candidates) {
-            // Filter the candidates so only coins from this account
-            // are considered.  Let the Wallet.DefaultCoinSelector do
-            // all the remaining work.
-            LinkedList<TransactionOutput> filtered =
-                new LinkedList<TransactionOutput>();
-            for (TransactionOutput to : candidates) {
-				try {
-                    byte[] pubkey = null;
-                    byte[] pubkeyhash = null;
-                    Script script = to.getScriptPubKey();
-                    if (script.isSentToRawPubKey())
-                        pubkey = script.getPubKey();
-                    else
-                        pubkeyhash = script.getPubKeyHash();
-
-                    if (mReceiveChain.hasPubKey(pubkey, pubkeyhash))
-                        filtered.add(to);
-                    else if (mChangeChain.hasPubKey(pubkey, pubkeyhash))
-                        filtered.add(to);
-                    else
-                        // Not in this account ...
-                        continue;
-
-				} catch (ScriptException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-            }
-
-            // Does all the real work ...
-            return mDefaultCoinSelector.select(biTarget, filtered);
+    // This account's outputs which completeTx would offer a selector:
+    // those not spent by any wallet transaction, pending ones
+    // included, and no immature coinbases.
+    public LinkedList<TransactionOutput> spendCandidates() {
+        LinkedList<TransactionOutput> outputs =
+            new LinkedList<TransactionOutput>();
+        synchronized (mUnspent) {
+            for (TransactionOutput to : mUnspent.values())
+                if (to.isAvailableForSpending() &&
+                    to.getParentTransaction().isMature())
+                    outputs.add(to);
         }
+        return outputs;
+    }
+
+    public CoinSelector coinSelector(boolean spendUnconfirmed) {
+        return new BnBCoinSelector(spendUnconfirmed);
     }
 
     // Returns the largest number of addresses added to a chain.
@@ -304,25 +344,6 @@ public class HDAccount {
         return (receiveAdded > changeAdded) ? receiveAdded : changeAdded;
     }
 
-    // Finds an address (if present) and returns a description
-    // of it's wallet location.
-    public HDAddressDescription findAddress(Address addr) {
-        HDAddressDescription retval;
-
-        // Try the receive chain first.
-        retval = mReceiveChain.findAddress(addr);
-
-        // If it wasn't there try the change chain.
-        if (retval == null)
-            retval = mChangeChain.findAddress(addr);
-
-        // If we found this address update the hdAccount.
-        if (retval != null)
-            retval.setHDAccount(this);
-
-        return retval;
-    }
-
     public long getEarliestCreationTime()
     {
         long time = Math.min(mChangeChain.getEarliestCreationTime(), mReceiveChain.getEarliestCreationTime());
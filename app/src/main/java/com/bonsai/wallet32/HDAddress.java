@@ -15,10 +15,10 @@
 
 package com.bonsai.wallet32;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -45,15 +45,19 @@ public class HDAddress {
     private static Logger mLogger = 
         LoggerFactory.getLogger(HDAddress.class);
 
+    // The key bytes live in the chain's HDChainKeys; the ECKey and path
+    // string are materialized on demand.  Addresses derived or read
+    // from JSON on the HDDerivePool hold their keys in mPending until
+    // the chain packs them, which it does before anyone else sees the
+    // address.
+    //
     private NetworkParameters	mParams;
+    private DeterministicKey	mChainKey;	// Shared with the chain.
     private int					mAddrNum;
-    private String				mPath;
-    private byte[]				mPrvBytes;
-    private byte[]				mPubBytes;
-    private ECKey				mECKey;
-    private byte[]				mPubKey;
-    private byte[]				mPubKeyHash;
-    private Address				mAddress;
+    private HDChainKeys			mKeys;		// Shared with the chain.
+    private int					mSlot;
+    private byte[][]			mPending;	// prv, pub, hash until packed.
+    private long				mCreationTime;
 
     private int				mNumTrans;
     private long			mBalance;
@@ -65,6 +69,7 @@ public class HDAddress {
         throws RuntimeException, JSONException {
 
         mParams = params;
+        mChainKey = chainKey;
 
         mAddrNum = addrNode.getInt("addrNum");
 
@@ -73,39 +78,37 @@ public class HDAddress {
         // We'll persist them going forward so we can do the faster
         // deserialization.
         //
+        byte[] prvBytes;
         if (!addrNode.has("path") || !addrNode.has("prvBytes")) {
 
             DeterministicKey dk =
                 HDKeyDerivation.deriveChildKey(chainKey, mAddrNum);
 
             // Derive ECKey.
-            mPrvBytes = dk.getPrivKeyBytes();
-            mPath = dk.getPath();
+            prvBytes = dk.getPrivKeyBytes();
         }
         else {
             try {
-                mPrvBytes = Base58.decode(addrNode.getString("prvBytes"));
+                prvBytes = Base58.decode(addrNode.getString("prvBytes"));
             } catch (AddressFormatException ex) {
                 throw new RuntimeException("failed to decode prvBytes");
             }
-            mPath = addrNode.getString("path");
         }
 
+        byte[] pubBytes;
         try {
-            mPubBytes = Base58.decode(addrNode.getString("pubBytes"));
+            pubBytes = Base58.decode(addrNode.getString("pubBytes"));
         } catch (AddressFormatException ex) {
             throw new RuntimeException("failed to decode pubBytes");
         }
         
-        mECKey = new ECKey(mPrvBytes, mPubBytes);
-
         // Set creation time to Wallet32 epoch.
-        mECKey.setCreationTimeSeconds(EPOCH);
+        mCreationTime = EPOCH;
 
-        // Derive public key, public hash and address.
-        mPubKey = mECKey.getPubKey();
-        mPubKeyHash = mECKey.getPubKeyHash();
-        mAddress = mECKey.toAddress(mParams);
+        // Derive the public hash.
+        mPending = new byte[][] {
+            prvBytes, pubBytes, Utils.sha256hash160(pubBytes)
+        };
 
         // Initialize transaction count and balance.  If we don't have
         // a persisted available amount, presume it is all available.
@@ -114,8 +117,9 @@ public class HDAddress {
         mAvailable = addrNode.has("available") ?
             addrNode.getLong("available") : mBalance;
 
-        mLogger.info("read address " + mPath + ": " +
-                     mAddress.toString());
+        if (mLogger.isDebugEnabled())
+            mLogger.debug("read address " + getPath() + ": " +
+                          getAddressString());
     }
 
     public JSONObject dumps() {
@@ -123,9 +127,9 @@ public class HDAddress {
             JSONObject obj = new JSONObject();
 
             obj.put("addrNum", mAddrNum);
-            obj.put("path", mPath);
-            obj.put("prvBytes", Base58.encode(mPrvBytes));
-            obj.put("pubBytes", Base58.encode(mPubBytes));
+            obj.put("path", getPath());
+            obj.put("prvBytes", Base58.encode(getPrvBytes()));
+            obj.put("pubBytes", Base58.encode(getPubKey()));
             obj.put("numTrans", mNumTrans);
             obj.put("balance", mBalance);
             obj.put("available", mAvailable);
@@ -137,90 +141,190 @@ public class HDAddress {
         }
     }
 
+    public HDAddress(NetworkParameters params,
+                     DeterministicKey chainKey,
+                     HDChainKeys keys,
+                     DataInputStream dis) throws IOException {
+
+        mParams = params;
+        mChainKey = chainKey;
+
+        // The public hash is persisted too so nothing needs to be
+        // derived here, and the keys go straight into the chain's
+        // buffer.
+        mAddrNum = dis.readInt();
+        mKeys = keys;
+        mSlot = keys.read(dis);
+
+        // Set creation time to Wallet32 epoch.
+        mCreationTime = EPOCH;
+
+        mNumTrans = dis.readInt();
+        mBalance = dis.readLong();
+        mAvailable = dis.readLong();
+
+        if (mLogger.isDebugEnabled())
+            mLogger.debug("read address " + getPath() + ": " +
+                          getAddressString());
+    }
+
     public HDAddress(NetworkParameters params,
                      DeterministicKey chainKey,
                      int addrnum) {
 
         mParams = params;
+        mChainKey = chainKey;
         mAddrNum = addrnum;
 
         DeterministicKey dk = HDKeyDerivation.deriveChildKey(chainKey, addrnum);
-        mPath = dk.getPath();
 
         // Derive ECKey.
-        mPrvBytes = dk.getPrivKeyBytes();
-        mPubBytes = dk.getPubKeyBytes(); // Expensive, save.
-        mECKey = new ECKey(mPrvBytes, mPubBytes);
+        byte[] prvBytes = dk.getPrivKeyBytes();
+        byte[] pubBytes = dk.getPubKeyBytes(); // Expensive, save.
 
         // Set creation time to now.
-        long now = Utils.now().getTime() / 1000;
-        mECKey.setCreationTimeSeconds(now);
+        mCreationTime = Utils.now().getTime() / 1000;
 
-        // Derive public key, public hash and address.
-        mPubKey = mECKey.getPubKey();
-        mPubKeyHash = mECKey.getPubKeyHash();
-        mAddress = mECKey.toAddress(mParams);
+        // Derive the public hash.
+        mPending = new byte[][] {
+            prvBytes, pubBytes, Utils.sha256hash160(pubBytes)
+        };
 
         // Initialize transaction count and balance.
         mNumTrans = 0;
         mBalance = 0;
         mAvailable = 0;
 
-        mLogger.info("created address " + mPath + ": " +
-                     mAddress.toString());
+        if (mLogger.isDebugEnabled())
+            mLogger.debug("created address " + getPath() + ": " +
+                          getAddressString());
+    }
+
+    // Moves the keys into the chain's buffer.  Called by the chain as
+    // the address is added, before it's registered anywhere.
+    void pack(HDChainKeys keys) {
+        if (mKeys != null)
+            return;
+        mSlot = keys.add(mPending[0], mPending[1], mPending[2]);
+        mKeys = keys;
+        mPending = null;
+    }
+
+    // Builds a throwaway ECKey; we don't hold one per address.
+    private ECKey makeECKey() {
+        ECKey key = new ECKey(getPrvBytes(), getPubKey());
+        key.setCreationTimeSeconds(mCreationTime);
+        return key;
     }
 
     public void gatherKey(KeyCrypter keyCrypter,
                           KeyParameter aesKey,
                           long creationTime,
                           List<ECKey> keys) {
-        mECKey.setCreationTimeSeconds(creationTime);
-        keys.add(mECKey.encrypt(keyCrypter, aesKey));
+        mCreationTime = creationTime;
+        keys.add(makeECKey().encrypt(keyCrypter, aesKey));
     }
 
     public boolean isMatch(byte[] pubkey, byte[] pubkeyhash) {
         if (pubkey != null)
-            return Arrays.equals(pubkey, mPubKey);
+            return pubKeyEquals(pubkey);
         else if (pubkeyhash != null)
-            return Arrays.equals(pubkeyhash, mPubKeyHash);
+            return pubKeyHashEquals(pubkeyhash);
         else
             return false;
     }
 
-    public void applyOutput(byte[] pubkey,
-                            byte[] pubkeyhash,
-                            long value,
-                            boolean avail) {
+    // The comparisons and hash codes work on the packed bytes without
+    // copying them out.  Hash codes match Arrays.hashCode.
+    public boolean pubKeyEquals(byte[] pubkey) {
+        if (mKeys == null)
+            return Arrays.equals(pubkey, mPending[1]);
+        return mKeys.pubBytesEqual(mSlot, pubkey);
+    }
 
-        // Does this output apply to this address?
-        if (!isMatch(pubkey, pubkeyhash))
-            return;
+    public boolean pubKeyHashEquals(byte[] pubkeyhash) {
+        if (mKeys == null)
+            return Arrays.equals(pubkeyhash, mPending[2]);
+        return mKeys.pubKeyHashEqual(mSlot, pubkeyhash);
+    }
 
+    public int pubKeyHashCode() {
+        if (mKeys == null)
+            return Arrays.hashCode(mPending[1]);
+        return mKeys.pubBytesHashCode(mSlot);
+    }
+
+    public int pubKeyHashHashCode() {
+        if (mKeys == null)
+            return Arrays.hashCode(mPending[2]);
+        return mKeys.pubKeyHashHashCode(mSlot);
+    }
+
+    // The caller has already matched the output to this address.
+    public void applyOutput(long value, boolean avail) {
         ++mNumTrans;
         mBalance += value;
 
         if (avail)
             mAvailable += value;
 
-        mLogger.debug(mPath + " matched output of " +
-                      Long.toString(value));
+        if (mLogger.isDebugEnabled())
+            mLogger.debug(getPath() + " matched output of " +
+                          Long.toString(value));
     }
 
-    public void applyInput(byte[] pubkey, long value) {
-        // Does this input apply to this address?
-        if (!Arrays.equals(pubkey, mPubKey))
-            return;
-
+    // The caller has already matched the input to this address.
+    public void applyInput(long value) {
         ++mNumTrans;
         mBalance -= value;
         mAvailable -= value;
 
-        mLogger.debug(mPath + " matched input of " +
-                      Long.toString(value));
+        if (mLogger.isDebugEnabled())
+            mLogger.debug(getPath() + " matched input of " +
+                          Long.toString(value));
+    }
+
+    // Backs out a previously applied output.
+    public void unapplyOutput(long value, boolean avail) {
+        --mNumTrans;
+        mBalance -= value;
+
+        if (avail)
+            mAvailable -= value;
+    }
+
+    // Backs out a previously applied input.
+    public void unapplyInput(long value) {
+        --mNumTrans;
+        mBalance += value;
+        mAvailable += value;
+    }
+
+    // These return copies.
+    private byte[] getPrvBytes() {
+        return mKeys == null ? mPending[0] : mKeys.getPrvBytes(mSlot);
+    }
+
+    public byte[] getPubKey() {
+        return mKeys == null ? mPending[1] : mKeys.getPubBytes(mSlot);
+    }
+
+    public byte[] getPubKeyHash() {
+        return mKeys == null ? mPending[2] : mKeys.getPubKeyHash(mSlot);
+    }
+
+    // The address's record in the chain's HDChainKeys.  Only valid
+    // once the chain has added it.
+    int getSlot() {
+        return mSlot;
+    }
+
+    public int getAddrNum() {
+        return mAddrNum;
     }
 
     public String getPath() {
-        return mPath;
+        return mChainKey.getPath() + "/" + mAddrNum;
     }
 
     public long getBalance() {
@@ -232,15 +336,15 @@ public class HDAddress {
     }
     
     public String getAddressString() {
-        return mAddress.toString();
+        return getAddress().toString();
     }
 
     public String getAbbrev() {
-        return mAddress.toString().substring(0, 8) + "...";
+        return getAddressString().substring(0, 8) + "...";
     }
 
     public String getPrivateKeyString() {
-        return mECKey.getPrivateKeyEncoded(mParams).toString();
+        return makeECKey().getPrivateKeyEncoded(mParams).toString();
     }
 
     public int numTrans() {
@@ -255,7 +359,7 @@ public class HDAddress {
 
     public void logBalance() {
         if (mNumTrans > 0) {
-            mLogger.info(mPath + " " +
+            mLogger.info(getPath() + " " +
                          Integer.toString(mNumTrans) + " " +
                          Long.toString(mBalance) + " " +
                          Long.toString(mAvailable));
@@ -266,16 +370,16 @@ public class HDAddress {
         return mNumTrans == 0;
     }
 
+    // Recently used Addresses are cached by the chain.
     public Address getAddress() {
-        return mAddress;
+        if (mKeys == null)
+            return new Address(mParams, mPending[2]);
+        return mKeys.getAddress(mSlot);
     }
 
-    public boolean matchAddress(Address addr) {
-        return mAddress.toString().equals(addr.toString());
-    }
     public long getCreationTime()
     {
-        return this.mECKey.getCreationTimeSeconds();
+        return mCreationTime;
     }
 }
 
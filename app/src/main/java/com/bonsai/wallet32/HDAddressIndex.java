@@ -0,0 +1,160 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.util.Arrays;
+
+// Wallet wide index from public keys and public key hashes to the
+// location of the owning HDAddress.  Replaces walking every account,
+// chain and address when matching transaction scripts.
+//
+// Lookups don't allocate; the tables are open addressed on hash
+// codes of the key bytes, which are compared where the address keeps
+// them.
+//
+public class HDAddressIndex {
+
+    private final Table		mByPubKey = new Table(false);
+    private final Table		mByPubKeyHash = new Table(true);
+
+    // Bumped each time an address is added.  Addresses are never
+    // removed, so a lookup which found nothing may find something
+    // once this has moved on, but never the other way around.
+    private long			mGeneration = 0;
+
+    public synchronized void add(HDAccount acct,
+                                 HDChain chain,
+                                 HDAddress addr) {
+        HDAddressDescription desc = new HDAddressDescription(chain, addr);
+        desc.setHDAccount(acct);
+        mByPubKey.put(desc);
+        mByPubKeyHash.put(desc);
+        ++mGeneration;
+    }
+
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    // Same matching rules as HDAddress.isMatch: the public key is
+    // used if present, otherwise the public key hash.
+    public synchronized HDAddressDescription lookup(byte[] pubkey,
+                                                    byte[] pubkeyhash) {
+        if (pubkey != null)
+            return mByPubKey.get(pubkey);
+        else if (pubkeyhash != null)
+            return mByPubKeyHash.get(pubkeyhash);
+        else
+            return null;
+    }
+
+    // Finds the address with the given hash160, as carried by an
+    // Address.  Returns null if it isn't in the wallet.
+    public synchronized HDAddressDescription lookupHash160(byte[] hash160) {
+        return mByPubKeyHash.get(hash160);
+    }
+
+    public synchronized int size() {
+        return mByPubKeyHash.size();
+    }
+
+    // Open addressed hash table with linear probing, on either the
+    // public key or the public key hash of the addresses.
+    private static class Table {
+        private final boolean			mByHash;
+        private int[]					mHashes = new int[64];
+        private HDAddressDescription[]	mVals = new HDAddressDescription[64];
+        private int						mCount = 0;
+
+        public Table(boolean byHash) {
+            mByHash = byHash;
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        private int hashOf(HDAddress addr) {
+            return mByHash ? addr.pubKeyHashHashCode() : addr.pubKeyHashCode();
+        }
+
+        private boolean matches(HDAddress addr, byte[] key) {
+            return mByHash ?
+                addr.pubKeyHashEquals(key) : addr.pubKeyEquals(key);
+        }
+
+        public HDAddressDescription get(byte[] key) {
+            int hash = Arrays.hashCode(key);
+            int mask = mVals.length - 1;
+            int ndx = hash & mask;
+            while (mVals[ndx] != null) {
+                if (mHashes[ndx] == hash && matches(mVals[ndx].hdAddress, key))
+                    return mVals[ndx];
+                ndx = (ndx + 1) & mask;
+            }
+            return null;
+        }
+
+        public void put(HDAddressDescription val) {
+            // Keep the load factor under one half.
+            if ((mCount + 1) * 2 > mVals.length)
+                resize(mVals.length * 2);
+
+            byte[] key = null;
+            int hash = hashOf(val.hdAddress);
+            int mask = mVals.length - 1;
+            int ndx = hash & mask;
+            while (mVals[ndx] != null) {
+                if (mHashes[ndx] == hash) {
+                    if (key == null)
+                        key = mByHash ? val.hdAddress.getPubKeyHash() :
+                            val.hdAddress.getPubKey();
+                    if (matches(mVals[ndx].hdAddress, key)) {
+                        mVals[ndx] = val;
+                        return;
+                    }
+                }
+                ndx = (ndx + 1) & mask;
+            }
+            mHashes[ndx] = hash;
+            mVals[ndx] = val;
+            ++mCount;
+        }
+
+        private void resize(int capacity) {
+            int[] oldHashes = mHashes;
+            HDAddressDescription[] oldVals = mVals;
+            mHashes = new int[capacity];
+            mVals = new HDAddressDescription[capacity];
+            int mask = capacity - 1;
+            for (int ii = 0; ii < oldVals.length; ++ii) {
+                if (oldVals[ii] == null)
+                    continue;
+                int ndx = oldHashes[ii] & mask;
+                while (mVals[ndx] != null)
+                    ndx = (ndx + 1) & mask;
+                mHashes[ndx] = oldHashes[ii];
+                mVals[ndx] = oldVals[ii];
+            }
+        }
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -15,6 +15,9 @@
 
 package com.bonsai.wallet32;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
@@ -41,21 +44,37 @@ public class HDChain {
         LoggerFactory.getLogger(HDChain.class);
 
     private NetworkParameters	mParams;
+    private HDAccount			mAccount;
+    private HDAddressIndex		mIndex;
     private DeterministicKey	mChainKey;
     private boolean				mIsReceive;
     private String				mChainName;
 
     private ArrayList<HDAddress>	mAddrs;
+    private HDChainKeys				mKeys;
+
+    // First address of the margin which was used up the last time
+    // ensureMargins extended the chain, or -1 if it hasn't.
+    private int					mExtendedFrom = -1;
 
     static private final int	DESIRED_MARGIN = 32;
     static private final int	MAX_UNUSED_GAP = 8;
 
+    // Extra unused addresses kept past the margin.  Their keys are in
+    // the wallet, and so in the bloom filter, so a burst of payments
+    // that runs into them is still seen without a rescan.
+    static private volatile int	mLookahead = 0;
+
     public HDChain(NetworkParameters params,
+                   HDAccount account,
+                   HDAddressIndex index,
                    DeterministicKey accountKey,
                    JSONObject chainNode)
         throws RuntimeException, JSONException {
 
         mParams = params;
+        mAccount = account;
+        mIndex = index;
 
         mChainName = chainNode.getString("name");
         mIsReceive = chainNode.getBoolean("isReceive");
@@ -67,12 +86,13 @@ public class HDChain {
         mLogger.info("created HDChain " + mChainName + ": " +
                      mChainKey.getPath());
         
-        mAddrs = new ArrayList<HDAddress>();
         JSONArray addrobjs = chainNode.getJSONArray("addrs");
-        for (int ii = 0; ii < addrobjs.length(); ++ii) {
-            JSONObject addrNode = addrobjs.getJSONObject(ii);
-            mAddrs.add(new HDAddress(mParams, mChainKey, addrNode));
-        }
+        mAddrs = new ArrayList<HDAddress>(addrobjs.length());
+        mKeys = new HDChainKeys(mParams, addrobjs.length());
+        List<HDAddress> addrs =
+            HDDerivePool.restoreAddresses(mParams, mChainKey, addrobjs);
+        for (HDAddress hda : addrs)
+            addAddress(hda);
     }
 
     public JSONObject dumps() {
@@ -96,12 +116,96 @@ public class HDChain {
     }
 
     public HDChain(NetworkParameters params,
+                   HDAccount account,
+                   HDAddressIndex index,
+                   DeterministicKey accountKey,
+                   DataInputStream dis) throws IOException {
+
+        mParams = params;
+        mAccount = account;
+        mIndex = index;
+
+        mIsReceive = dis.readBoolean();
+        mChainName = dis.readUTF();
+
+        int chainnum = mIsReceive ? 0 : 1;
+
+        mChainKey = HDKeyDerivation.deriveChildKey(accountKey, chainnum);
+
+        mLogger.info("created HDChain " + mChainName + ": " +
+                     mChainKey.getPath());
+
+        // Reading addresses back is cheap, no need for the pool.
+        int numAddrs = dis.readInt();
+        mAddrs = new ArrayList<HDAddress>(numAddrs);
+        mKeys = new HDChainKeys(mParams, numAddrs);
+        for (int ii = 0; ii < numAddrs; ++ii)
+            addAddress(new HDAddress(mParams, mChainKey, mKeys, dis));
+    }
+
+    // Copies what the binary file needs, for writing once the wallet
+    // lock has been released.  The chain's key records never change
+    // once added, so they're shared rather than copied.
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public static class Snapshot implements HDWalletFile.Writer {
+        private final boolean		mIsReceive;
+        private final String		mChainName;
+        private final HDChainKeys	mKeys;
+        private final int[]			mAddrNums;
+        private final int[]			mSlots;
+        private final int[]			mNumTrans;
+        private final long[]		mBalances;
+        private final long[]		mAvailables;
+
+        private Snapshot(HDChain chain) {
+            mIsReceive = chain.mIsReceive;
+            mChainName = chain.mChainName;
+            mKeys = chain.mKeys;
+            int count = chain.mAddrs.size();
+            mAddrNums = new int[count];
+            mSlots = new int[count];
+            mNumTrans = new int[count];
+            mBalances = new long[count];
+            mAvailables = new long[count];
+            for (int ii = 0; ii < count; ++ii) {
+                HDAddress hda = chain.mAddrs.get(ii);
+                mAddrNums[ii] = hda.getAddrNum();
+                mSlots[ii] = hda.getSlot();
+                mNumTrans[ii] = hda.numTrans();
+                mBalances[ii] = hda.getBalance();
+                mAvailables[ii] = hda.getAvailable();
+            }
+        }
+
+        // Read back by the HDChain and HDAddress stream constructors.
+        public void write(DataOutputStream dos) throws IOException {
+            dos.writeBoolean(mIsReceive);
+            dos.writeUTF(mChainName);
+            dos.writeInt(mAddrNums.length);
+            for (int ii = 0; ii < mAddrNums.length; ++ii) {
+                dos.writeInt(mAddrNums[ii]);
+                mKeys.write(mSlots[ii], dos);
+                dos.writeInt(mNumTrans[ii]);
+                dos.writeLong(mBalances[ii]);
+                dos.writeLong(mAvailables[ii]);
+            }
+        }
+    }
+
+    public HDChain(NetworkParameters params,
+                   HDAccount account,
+                   HDAddressIndex index,
                    DeterministicKey accountKey,
                    boolean isReceive,
                    String chainName,
                    int numAddrs) {
 
         mParams = params;
+        mAccount = account;
+        mIndex = index;
         mIsReceive = isReceive;
         int chainnum = mIsReceive ? 0 : 1;
         mChainKey = HDKeyDerivation.deriveChildKey(accountKey, chainnum);
@@ -110,13 +214,40 @@ public class HDChain {
         mLogger.info("created HDChain " + mChainName + ": " +
                      mChainKey.getPath());
         
-        mAddrs = new ArrayList<HDAddress>();
-        for (int ii = 0; ii < numAddrs; ++ii)
-            mAddrs.add(new HDAddress(mParams, mChainKey, ii));
+        mAddrs = new ArrayList<HDAddress>(numAddrs);
+        mKeys = new HDChainKeys(mParams, numAddrs);
+        List<HDAddress> addrs =
+            HDDerivePool.deriveAddresses(mParams, mChainKey, 0, numAddrs,
+                                         null, null, 0, null);
+        for (HDAddress hda : addrs)
+            addAddress(hda);
+    }
+
+    // Appends an address to the chain, packing its keys, and registers
+    // it with the wallet wide index.
+    private void addAddress(HDAddress hda) {
+        hda.pack(mKeys);
+        mAddrs.add(hda);
+        mIndex.add(mAccount, this, hda);
+    }
+
+    public static void setLookahead(int lookahead) {
+        mLookahead = lookahead;
+    }
+
+    private static int targetMargin() {
+        return DESIRED_MARGIN + mLookahead;
     }
 
     public static int maxSafeExtend() {
-        return DESIRED_MARGIN - MAX_UNUSED_GAP;
+        return targetMargin() - MAX_UNUSED_GAP;
+    }
+
+    // Is the address in a margin which was used up and extended?
+    // Payments to the added addresses can't come before payments to
+    // these.
+    public boolean inExtendedMargin(HDAddress hda) {
+        return mExtendedFrom != -1 && hda.getAddrNum() >= mExtendedFrom;
     }
 
     public boolean isReceive() {
@@ -131,25 +262,20 @@ public class HDChain {
         return mAddrs.size();
     }
 
-    public void gatherAllKeys(KeyCrypter keyCrypter,
+    // Gathers keys only for the addresses the tracker doesn't have
+    // recorded as being in the wallet already.
+    public void gatherNewKeys(KeyImportTracker tracker,
+                              KeyCrypter keyCrypter,
                               KeyParameter aesKey,
                               long creationTime,
                               List<ECKey> keys) {
-        for (HDAddress hda : mAddrs)
-            hda.gatherKey(keyCrypter, aesKey, creationTime, keys);
-    }
-
-    public void applyOutput(byte[] pubkey,
-                            byte[] pubkeyhash,
-                            long value,
-                            boolean avail) {
-        for (HDAddress hda : mAddrs)
-            hda.applyOutput(pubkey, pubkeyhash, value, avail);
+        int start = tracker.importedCount(mChainKey.getPath(), mAddrs);
+        for (int ii = start; ii < mAddrs.size(); ++ii)
+            mAddrs.get(ii).gatherKey(keyCrypter, aesKey, creationTime, keys);
     }
 
-    public void applyInput(byte[] pubkey, long value) {
-        for (HDAddress hda : mAddrs)
-            hda.applyInput(pubkey, value);
+    public void recordImported(KeyImportTracker tracker) {
+        tracker.setImported(mChainKey.getPath(), mAddrs);
     }
 
     public void clearBalance() {
@@ -212,45 +338,40 @@ public class HDChain {
         int numUnused = marginSize();
 
         // Do we have an ample margin?
-        if (numUnused >= DESIRED_MARGIN) {
+        int target = targetMargin();
+        if (numUnused >= target) {
             return 0;
         }
         else {
             // How many addresses do we need to add?
-            int numAdd = DESIRED_MARGIN - numUnused;
+            int numAdd = target - numUnused;
 
             mLogger.info(String.format("%s expanding margin, adding %d addrs",
                                        mChainKey.getPath(), numAdd));
 
+            mExtendedFrom = Math.max(0, mAddrs.size() - target);
+
             // Set the new keys creation time to now.
             long now = Utils.now().getTime() / 1000;
 
-            // Add the addresses ...
-            int newSize = mAddrs.size() + numAdd;
+            // Derive the addresses in parallel, then add them in order.
+            int firstNew = mAddrs.size();
             ArrayList<ECKey> keys = new ArrayList<ECKey>();
-            for (int ii = mAddrs.size(); ii < newSize; ++ii) {
-                HDAddress hda = new HDAddress(mParams, mChainKey, ii);
-                mAddrs.add(hda);
-                hda.gatherKey(keyCrypter, aesKey, now, keys);
-            }
+            List<HDAddress> addrs =
+                HDDerivePool.deriveAddresses(mParams, mChainKey,
+                                             mAddrs.size(), numAdd,
+                                             keyCrypter, aesKey, now, keys);
+            for (HDAddress hda : addrs)
+                addAddress(hda);
             mLogger.info(String.format("adding %d keys", keys.size()));
             wallet.addKeys(keys);
+            KeyImportTracker.forWallet(wallet)
+                .addImported(mChainKey.getPath(), mAddrs, firstNew);
 
             return numAdd;
         }
     }
 
-    // Finds an address (if present) and returns a description
-    // of it's wallet location.
-    public HDAddressDescription findAddress(Address addr) {
-        for (HDAddress hda : mAddrs) {
-            if (hda.matchAddress(addr)) {
-                // Caller will fill in the accountId.
-                return new HDAddressDescription(this, hda);
-            }
-        }
-        return null;
-    }
     public long getEarliestCreationTime()
     {
         long time = Utils.currentTimeSeconds();
@@ -0,0 +1,240 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.NetworkParameters;
+
+// Key material for the addresses of one chain, packed into a single
+// growing buffer instead of three small arrays per address.  Each
+// record is a length byte and the private key, a length byte and the
+// public key, then the 20 byte public key hash.  Addresses refer to
+// their record by slot number.
+//
+// The chain appends as it grows while other threads read, so every
+// access is synchronized.
+//
+public class HDChainKeys {
+
+    private static final int	HASH_LENGTH = 20;
+
+    // Compressed keys; the buffer grows if they're bigger.
+    private static final int	RECORD_SIZE = 1 + 32 + 1 + 33 + HASH_LENGTH;
+
+    // Recently handed out Addresses.  The receive chain hands out the
+    // same next unused address over and over, and the UI lists the
+    // active ones on every refresh.
+    private static final int	ADDRESS_CACHE_SIZE = 64;
+
+    private final NetworkParameters	mParams;
+
+    private byte[]				mData;
+    private int					mDataSize = 0;
+    private int[]				mOffsets;
+    private int					mCount = 0;
+
+    private final LinkedHashMap<Integer, Address>	mAddresses =
+        new LinkedHashMap<Integer, Address>(16, 0.75f, true) {
+            protected boolean removeEldestEntry
+                (Map.Entry<Integer, Address> eldest) {
+                return size() > ADDRESS_CACHE_SIZE;
+            }
+        };
+
+    // Room is made for capacity addresses up front, the size the
+    // chain is restored or created with.
+    public HDChainKeys(NetworkParameters params, int capacity) {
+        mParams = params;
+        capacity = Math.max(16, capacity);
+        mData = new byte[capacity * RECORD_SIZE];
+        mOffsets = new int[capacity];
+    }
+
+    // Returns the slot of the new record.
+    public synchronized int add(byte[] prvBytes,
+                                byte[] pubBytes,
+                                byte[] pubKeyHash) {
+        if (prvBytes.length > 255 || pubBytes.length > 255 ||
+            pubKeyHash.length != HASH_LENGTH)
+            throw new IllegalArgumentException("bad key lengths");
+
+        int slot = startRecord(2 + prvBytes.length + pubBytes.length +
+                               HASH_LENGTH);
+        mData[mDataSize++] = (byte) prvBytes.length;
+        System.arraycopy(prvBytes, 0, mData, mDataSize, prvBytes.length);
+        mDataSize += prvBytes.length;
+        mData[mDataSize++] = (byte) pubBytes.length;
+        System.arraycopy(pubBytes, 0, mData, mDataSize, pubBytes.length);
+        mDataSize += pubBytes.length;
+        System.arraycopy(pubKeyHash, 0, mData, mDataSize, HASH_LENGTH);
+        mDataSize += HASH_LENGTH;
+        return slot;
+    }
+
+    // Reads a record straight from the binary wallet file, in the
+    // layout write uses.  Returns its slot.
+    public synchronized int read(DataInputStream dis) throws IOException {
+        int prvLen = dis.readUnsignedShort();
+        if (prvLen > 255)
+            throw new IOException("bad private key length " + prvLen);
+        int slot = startRecord(1 + prvLen);
+        mData[mDataSize++] = (byte) prvLen;
+        dis.readFully(mData, mDataSize, prvLen);
+        mDataSize += prvLen;
+
+        int pubLen = dis.readUnsignedShort();
+        if (pubLen > 255)
+            throw new IOException("bad public key length " + pubLen);
+        ensureData(1 + pubLen + HASH_LENGTH);
+        mData[mDataSize++] = (byte) pubLen;
+        dis.readFully(mData, mDataSize, pubLen);
+        mDataSize += pubLen;
+
+        if (dis.readUnsignedShort() != HASH_LENGTH)
+            throw new IOException("bad public key hash length");
+        dis.readFully(mData, mDataSize, HASH_LENGTH);
+        mDataSize += HASH_LENGTH;
+        return slot;
+    }
+
+    // Writes the record as HDWalletFile.writeBytes would write the
+    // three arrays.
+    public synchronized void write(int slot, DataOutputStream dos)
+        throws IOException {
+        int prv = mOffsets[slot];
+        int pub = pubOffset(slot);
+        int hash = hashOffset(slot);
+        dos.writeShort(mData[prv] & 0xff);
+        dos.write(mData, prv + 1, mData[prv] & 0xff);
+        dos.writeShort(mData[pub] & 0xff);
+        dos.write(mData, pub + 1, mData[pub] & 0xff);
+        dos.writeShort(HASH_LENGTH);
+        dos.write(mData, hash, HASH_LENGTH);
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized byte[] getPrvBytes(int slot) {
+        int off = mOffsets[slot];
+        return copy(off + 1, mData[off] & 0xff);
+    }
+
+    public synchronized byte[] getPubBytes(int slot) {
+        int off = pubOffset(slot);
+        return copy(off + 1, mData[off] & 0xff);
+    }
+
+    public synchronized byte[] getPubKeyHash(int slot) {
+        return copy(hashOffset(slot), HASH_LENGTH);
+    }
+
+    public synchronized boolean pubBytesEqual(int slot, byte[] pubkey) {
+        int off = pubOffset(slot);
+        return equal(off + 1, mData[off] & 0xff, pubkey);
+    }
+
+    public synchronized boolean pubKeyHashEqual(int slot, byte[] pubkeyhash) {
+        return equal(hashOffset(slot), HASH_LENGTH, pubkeyhash);
+    }
+
+    // Same values as Arrays.hashCode on the copies.
+    public synchronized int pubBytesHashCode(int slot) {
+        int off = pubOffset(slot);
+        return hashCode(off + 1, mData[off] & 0xff);
+    }
+
+    public synchronized int pubKeyHashHashCode(int slot) {
+        return hashCode(hashOffset(slot), HASH_LENGTH);
+    }
+
+    public synchronized Address getAddress(int slot) {
+        Address addr = mAddresses.get(slot);
+        if (addr == null) {
+            addr = new Address(mParams, getPubKeyHash(slot));
+            mAddresses.put(slot, addr);
+        }
+        return addr;
+    }
+
+    private int startRecord(int needed) {
+        if (mCount == mOffsets.length) {
+            int[] offsets = new int[mOffsets.length * 3 / 2];
+            System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+            mOffsets = offsets;
+        }
+        ensureData(needed);
+        mOffsets[mCount] = mDataSize;
+        return mCount++;
+    }
+
+    private void ensureData(int needed) {
+        if (mDataSize + needed <= mData.length)
+            return;
+        // Chains only grow by a margin at a time, so grow gently.
+        int capacity = mData.length * 3 / 2;
+        while (capacity < mDataSize + needed)
+            capacity = capacity * 3 / 2;
+        byte[] data = new byte[capacity];
+        System.arraycopy(mData, 0, data, 0, mDataSize);
+        mData = data;
+    }
+
+    private int pubOffset(int slot) {
+        int off = mOffsets[slot];
+        return off + 1 + (mData[off] & 0xff);
+    }
+
+    private int hashOffset(int slot) {
+        int off = pubOffset(slot);
+        return off + 1 + (mData[off] & 0xff);
+    }
+
+    private byte[] copy(int off, int len) {
+        byte[] bytes = new byte[len];
+        System.arraycopy(mData, off, bytes, 0, len);
+        return bytes;
+    }
+
+    private boolean equal(int off, int len, byte[] bytes) {
+        if (bytes.length != len)
+            return false;
+        for (int ii = 0; ii < len; ++ii)
+            if (mData[off + ii] != bytes[ii])
+                return false;
+        return true;
+    }
+
+    private int hashCode(int off, int len) {
+        int result = 1;
+        for (int ii = 0; ii < len; ++ii)
+            result = 31 * result + mData[off + ii];
+        return result;
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
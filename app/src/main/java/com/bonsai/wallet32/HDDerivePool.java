@@ -0,0 +1,248 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.KeyCrypter;
+
+// Spreads HDAddress derivation (child key derivation, EC point
+// multiply, hash160 and key encryption) and restore from persisted
+// state over the available cores.  Results always come back in
+// address index order.
+//
+// ForkJoinPool isn't available at our minimum API level so this uses
+// a fixed pool of daemon threads instead.
+//
+public class HDDerivePool {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(HDDerivePool.class);
+
+    // Below this many addresses it isn't worth handing off.
+    private static final int	MIN_PARALLEL = 4;
+
+    private static final int	NTHREADS =
+        Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static class DeriveThread extends Thread {
+        public DeriveThread(Runnable rr, int num) {
+            super(rr, "derive-" + num);
+            setDaemon(true);
+        }
+    }
+
+    private static class Slice {
+        public final List<HDAddress>	mAddrs = new ArrayList<HDAddress>();
+        public final List<ECKey>		mKeys = new ArrayList<ECKey>();
+    }
+
+    private static final ExecutorService mExecutor =
+        Executors.newFixedThreadPool(NTHREADS, new ThreadFactory() {
+                private int mCount = 0;
+                public synchronized Thread newThread(Runnable rr) {
+                    return new DeriveThread(rr, mCount++);
+                }
+            });
+
+    // Derives count addresses starting at first.  If keyCrypter is
+    // non-null the encrypted keys are appended to keys, also in index
+    // order.
+    public static List<HDAddress> deriveAddresses
+        (final NetworkParameters params,
+         final DeterministicKey chainKey,
+         int first,
+         int count,
+         KeyCrypter keyCrypter,
+         KeyParameter aesKey,
+         long creationTime,
+         List<ECKey> keys) {
+        try {
+            return makeAddresses(first, count, new AddressMaker() {
+                    public HDAddress make(int ndx) {
+                        return new HDAddress(params, chainKey, ndx);
+                    }
+                }, keyCrypter, aesKey, creationTime, keys);
+        }
+        catch (JSONException ex) {
+            throw new RuntimeException(ex);	// Shouldn't happen.
+        }
+    }
+
+    // Materializes the persisted addresses of a chain.
+    public static List<HDAddress> restoreAddresses
+        (final NetworkParameters params,
+         final DeterministicKey chainKey,
+         final JSONArray addrobjs)
+        throws JSONException {
+        return makeAddresses(0, addrobjs.length(), new AddressMaker() {
+                public HDAddress make(int ndx) throws JSONException {
+                    return new HDAddress(params, chainKey,
+                                         addrobjs.getJSONObject(ndx));
+                }
+            }, null, null, 0, null);
+    }
+
+    private interface AddressMaker {
+        HDAddress make(int ndx) throws JSONException;
+    }
+
+    private static List<HDAddress> makeAddresses
+        (int first,
+         int count,
+         final AddressMaker maker,
+         final KeyCrypter keyCrypter,
+         final KeyParameter aesKey,
+         final long creationTime,
+         List<ECKey> keys)
+        throws JSONException {
+
+        ArrayList<HDAddress> addrs = new ArrayList<HDAddress>(count);
+
+        // Small batches, and calls from our own threads (which would
+        // deadlock waiting on the pool), are done inline.
+        if (count < MIN_PARALLEL || NTHREADS == 1 ||
+            Thread.currentThread() instanceof DeriveThread) {
+            for (int ii = first; ii < first + count; ++ii) {
+                HDAddress hda = maker.make(ii);
+                if (keyCrypter != null)
+                    hda.gatherKey(keyCrypter, aesKey, creationTime, keys);
+                addrs.add(hda);
+            }
+            return addrs;
+        }
+
+        long t0 = System.currentTimeMillis();
+
+        // Split into one contiguous slice per thread.
+        int nslices = Math.min(NTHREADS, count);
+        List<Future<Slice>> futures = new ArrayList<Future<Slice>>(nslices);
+        for (int ss = 0; ss < nslices; ++ss) {
+            final int lo = first + (int) ((long) count * ss / nslices);
+            final int hi = first + (int) ((long) count * (ss + 1) / nslices);
+            futures.add(mExecutor.submit(new Callable<Slice>() {
+                    public Slice call() throws JSONException {
+                        Slice slice = new Slice();
+                        for (int ii = lo; ii < hi; ++ii) {
+                            HDAddress hda = maker.make(ii);
+                            if (keyCrypter != null)
+                                hda.gatherKey(keyCrypter, aesKey,
+                                              creationTime, slice.mKeys);
+                            slice.mAddrs.add(hda);
+                        }
+                        return slice;
+                    }
+                }));
+        }
+
+        // Collect the slices in order.
+        for (Future<Slice> future : futures) {
+            Slice slice = getResult(future);
+            addrs.addAll(slice.mAddrs);
+            if (keyCrypter != null)
+                keys.addAll(slice.mKeys);
+        }
+
+        mLogger.info(String.format("made %d addrs on %d threads in %d msec",
+                                   count, nslices,
+                                   System.currentTimeMillis() - t0));
+        return addrs;
+    }
+
+    // Runs the tasks on the pool and returns their results in order.
+    // Tasks which derive or restore addresses themselves do that
+    // inline, as they're on our threads.  A single task, or a call
+    // from our own threads, runs inline.  Checked exceptions from the
+    // tasks come back wrapped in a RuntimeException; if one fails the
+    // rest are cancelled.
+    public static <T> List<T> runAll(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+
+        if (tasks.size() <= 1 || NTHREADS == 1 ||
+            Thread.currentThread() instanceof DeriveThread) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        boolean done = false;
+        try {
+            for (Callable<T> task : tasks)
+                futures.add(mExecutor.submit(task));
+            for (Future<T> future : futures) {
+                try {
+                    results.add(getResult(future));
+                } catch (JSONException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            done = true;
+        }
+        finally {
+            if (!done)
+                for (Future<T> future : futures)
+                    future.cancel(true);
+        }
+        return results;
+    }
+
+    // Waits for a result, unwrapping any exception the task threw.
+    private static <T> T getResult(Future<T> future) throws JSONException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("address derivation interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof JSONException)
+                throw (JSONException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -15,35 +15,29 @@
 
 package com.bonsai.wallet32;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
-import java.nio.charset.Charset;
-import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.spongycastle.crypto.BufferedBlockCipher;
-import org.spongycastle.crypto.DataLengthException;
-import org.spongycastle.crypto.InvalidCipherTextException;
-import org.spongycastle.crypto.engines.AESFastEngine;
-import org.spongycastle.crypto.modes.CBCBlockCipher;
-import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.spongycastle.crypto.params.KeyParameter;
-import org.spongycastle.crypto.params.ParametersWithIV;
 
-import android.content.Context;
-
-import com.bonsai.wallet32.WalletService.AmountAndFee;
+import com.bonsai.wallet32.WalletEngine.AmountAndFee;
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.Base58;
@@ -51,10 +45,12 @@ import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.InsufficientMoneyException;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
 import com.google.bitcoin.core.TransactionOutput;
 import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.core.Wallet;
@@ -63,18 +59,16 @@ import com.google.bitcoin.crypto.ChildNumber;
 import com.google.bitcoin.crypto.DeterministicKey;
 import com.google.bitcoin.crypto.HDKeyDerivation;
 import com.google.bitcoin.crypto.KeyCrypter;
-import com.google.bitcoin.crypto.KeyCrypterGroestl;
-//import com.google.bitcoin.crypto.KeyCrypterScrypt;
 import com.google.bitcoin.crypto.MnemonicCodeX;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
 import com.google.bitcoin.wallet.WalletTransaction;
 
 public class HDWallet {
 
     private static Logger mLogger = LoggerFactory.getLogger(HDWallet.class);
 
-    private static final transient SecureRandom secureRandom = new SecureRandom();
-
     private final NetworkParameters	mParams;
     private KeyCrypter				mKeyCrypter;
     private KeyParameter			mAesKey;
@@ -97,16 +91,31 @@ public class HDWallet {
 
     private ArrayList<HDAccount>	mAccounts;
 
+    // Maps public keys and hashes to their owning address.
+    private final HDAddressIndex	mIndex = new HDAddressIndex();
+
+    // Transactions reflected in the address balances.
+    private final HashMap<Sha256Hash, AppliedTx>	mApplied =
+        new HashMap<Sha256Hash, AppliedTx>();
+    private boolean					mReplayed = false;
+
     // Create an HDWallet from persisted file data.
-    public static HDWallet restore(WalletApplication walletApp,
+    public static HDWallet restore(WalletStorage walletApp,
     							   NetworkParameters params,
                                    KeyCrypter keyCrypter,
                                    KeyParameter aesKey)
-        throws InvalidCipherTextException, IOException {
+        throws IOException {
 
+        BufferedInputStream bis = HDWalletFile.openInput(walletApp, aesKey);
         try {
-            JSONObject node = deserialize(walletApp, keyCrypter, aesKey);
-
+            if (HDWalletFile.isBinary(bis))
+                return new HDWallet(walletApp, params, keyCrypter, aesKey,
+                                    new DataInputStream(bis));
+
+            // Older wallets are JSON.  They get rewritten in the
+            // binary format the next time we persist.
+            mLogger.info("restoring JSON format wallet");
+            JSONObject node = new JSONObject(HDWalletFile.readString(bis));
             return new HDWallet(walletApp, params, keyCrypter,
                                 aesKey, node, false);
         }
@@ -123,195 +132,286 @@ public class HDWallet {
 
             throw new RuntimeException(msg);
         }
+        finally {
+            bis.close();
+        }
     }
 
-    // Deserialize the wallet data.
-    public static JSONObject deserialize(WalletApplication walletApp,
-                                         KeyCrypter keyCrypter,
-                                         KeyParameter aesKey)
-        throws IOException, InvalidCipherTextException, JSONException {
-
-        File file = walletApp.getHDWalletFile(null);
-        String path = file.getPath();
+    // Checks that the wallet file decrypts and parses with the given
+    // key, without building the wallet.
+    public static void checkFile(WalletStorage walletApp,
+                                 KeyParameter aesKey)
+        throws IOException, JSONException {
 
+        BufferedInputStream bis = HDWalletFile.openInput(walletApp, aesKey);
         try {
-            mLogger.info("restoring HDWallet from " + path);
-            int len = (int) file.length();
-
-            // Open persisted file.
-            DataInputStream dis =
-                new DataInputStream(new FileInputStream(file));
-
-            // Read IV from file.
-            byte[] iv = new byte[KeyCrypterGroestl.BLOCK_LENGTH/*KeyCrypterScrypt.BLOCK_LENGTH*/];
-			dis.readFully(iv);
-
-            // Read the ciphertext from the file.
-            byte[] cipherBytes = new byte[len - iv.length];
-            dis.readFully(cipherBytes);
-            dis.close();
-
-            // Decrypt the ciphertext.
-            ParametersWithIV keyWithIv =
-                new ParametersWithIV(new KeyParameter(aesKey.getKey()), iv);
-            BufferedBlockCipher cipher =
-                new PaddedBufferedBlockCipher
-                (new CBCBlockCipher(new AESFastEngine()));
-            cipher.init(false, keyWithIv);
-            int minimumSize = cipher.getOutputSize(cipherBytes.length);
-            byte[] outputBuffer = new byte[minimumSize];
-            int length1 = cipher.processBytes(cipherBytes,
-                                              0, cipherBytes.length,
-                                              outputBuffer, 0);
-            int length2 = cipher.doFinal(outputBuffer, length1);
-            int actualLength = length1 + length2;
-            byte[] decryptedBytes = new byte[actualLength];
-            System.arraycopy(outputBuffer, 0, decryptedBytes, 0, actualLength);
-            
-            // Parse the decryptedBytes.
-            String jsonstr = new String(decryptedBytes);
-
-            /*
-            // THIS CONTAINS THE SEED!
-            // Have to break the message into chunks for big messages ...
-            String msg = jsonstr;
-            while (msg.length() > 1024) {
-                String chunk = msg.substring(0, 1024);
-                mLogger.error(chunk);
-                msg = msg.substring(1024);
+            if (HDWalletFile.isBinary(bis)) {
+                // Reading to the end makes the cipher check the padding.
+                DataInputStream dis = new DataInputStream(bis);
+                HDWalletFile.readHeader(dis);
+                HDWalletFile.SectionInput sect;
+                while ((sect = HDWalletFile.readSection(dis)) != null)
+                    sect.skipRest();
             }
-            mLogger.error(msg);
-            */
-            
-            JSONObject node = new JSONObject(jsonstr);
-            return node;
-
-        } catch (IOException ex) {
-            mLogger.warn("trouble reading " + path + ": " + ex.toString());
-            throw ex;
-        } catch (RuntimeException ex) {
-            mLogger.warn("trouble restoring wallet: " + ex.toString());
-            throw ex;
-        } catch (InvalidCipherTextException ex) {
-            mLogger.warn("wallet decrypt failed: " + ex.toString());
-            throw ex;
-		}
+            else {
+                new JSONObject(HDWalletFile.readString(bis));
+            }
+        }
+        finally {
+            bis.close();
+        }
     }
 
-    public HDWallet(WalletApplication walletApp,
+    public HDWallet(WalletStorage walletApp,
                     NetworkParameters params,
                     KeyCrypter keyCrypter,
                     KeyParameter aesKey,
                     JSONObject walletNode,
-                    boolean isPairing) throws JSONException {
+                    final boolean isPairing) throws JSONException {
 
         mParams = params;
         mKeyCrypter = keyCrypter;
         mAesKey = aesKey;
 
+        long t0 = System.currentTimeMillis();
+
         try {
             mWalletSeed = Base58.decode(walletNode.getString("seed"));
+        } catch (AddressFormatException e) {
+            throw new RuntimeException("trouble decoding wallet");
+        }
 
-            mPassphrase = walletNode.has("passphrase") ?
-                walletNode.getString("passphrase") : "";
+        mPassphrase = walletNode.has("passphrase") ?
+            walletNode.getString("passphrase") : "";
 
-            if (!walletNode.has("bip39_version")) {
-                mBIP39Version = MnemonicCodeX.Version.V0_5;
-                mLogger.info("defaulting BIP39 version to V0_5");
-            } else {
-                String bipverstr = walletNode.getString("bip39_version");
-                if (bipverstr.equals("V0_5")) {
-                    mBIP39Version = MnemonicCodeX.Version.V0_5;
-                    mLogger.info("setting BIP39 version to V0_5");
-                }
-                else if (bipverstr.equals("V0_6")) {
-                    mBIP39Version = MnemonicCodeX.Version.V0_6;
-                    mLogger.info("setting BIP39 version to V0_6");
-                }
-                else
-                {
-                    throw new RuntimeException
-                        ("unknown BIP39 version: " + bipverstr);
-                }
-            }
+        if (!walletNode.has("bip39_version")) {
+            mBIP39Version = MnemonicCodeX.Version.V0_5;
+            mLogger.info("defaulting BIP39 version to V0_5");
+        } else {
+            mBIP39Version =
+                parseBIP39Version(walletNode.getString("bip39_version"));
+        }
 
-            if (!walletNode.has("acct_derive")) {
-                mHDStructVersion = HDStructVersion.HDSV_L0PUB;
-                mLogger.info("defaulting mHDStructVersion to HDSV_L0PUB");
-            } else {
-                String acctderivstr = walletNode.getString("acct_derive");
-                if (acctderivstr.equals("PRV")) {
-                    mHDStructVersion = HDStructVersion.HDSV_L0PRV;
-                    mLogger.info("setting mHDStructVersion to HDSV_L0PRV");
-                } else if (acctderivstr.equals("PUB")) {
-                    mHDStructVersion = HDStructVersion.HDSV_L0PUB;
-                    mLogger.info("setting mHDStructVersion to HDSV_L0PUB");
-                } else if (acctderivstr.equals("STDV0")) {
-                    mHDStructVersion = HDStructVersion.HDSV_STDV0;
-                    mLogger.info("setting mHDStructVersion to HDSV_STDV0");
-                } else if (acctderivstr.equals("STDV1")) {
-                    mHDStructVersion = HDStructVersion.HDSV_STDV1;
-                    mLogger.info("setting mHDStructVersion to HDSV_STDV1");
-                } else {
-                    throw new RuntimeException
-                        ("unknown acct_derive value: " + acctderivstr);
-                }
-            }
+        if (!walletNode.has("acct_derive")) {
+            mHDStructVersion = HDStructVersion.HDSV_L0PUB;
+            mLogger.info("defaulting mHDStructVersion to HDSV_L0PUB");
+        } else {
+            mHDStructVersion =
+                parseHDStructVersion(walletNode.getString("acct_derive"));
+        }
 
-        } catch (AddressFormatException e) {
-            throw new RuntimeException("trouble decoding wallet");
+        byte[] hdseed = makeHDSeed(walletApp, mWalletSeed,
+                                   mPassphrase, mBIP39Version);
+
+        long t1 = System.currentTimeMillis();
+
+        mMasterKey = HDKeyDerivation.createMasterPrivateKey(hdseed);
+        mWalletRoot = makeWalletRoot(mMasterKey, mHDStructVersion);
+
+        mLogger.info("restoring HDWallet " + mWalletRoot.getPath());
+
+        long t2 = System.currentTimeMillis();
+
+        JSONArray accounts = walletNode.getJSONArray("accounts");
+        List<Callable<HDAccount>> makers =
+            new ArrayList<Callable<HDAccount>>();
+        for (int ii = 0; ii < accounts.length(); ++ii) {
+            final JSONObject acctNode = accounts.getJSONObject(ii);
+            makers.add(new Callable<HDAccount>() {
+                    public HDAccount call() throws JSONException {
+                        return new HDAccount(mParams, mIndex, mWalletRoot,
+                                             acctNode, isPairing,
+                                             mHDStructVersion);
+                    }
+                });
+        }
+        mAccounts = restoreAccounts(makers);
+
+        long t3 = System.currentTimeMillis();
+
+        mLogger.info(String.format("restore phases: seed %d, keys %d, "
+                                   + "accounts %d msec",
+                                   t1 - t0, t2 - t1, t3 - t2));
+    }
+
+    // Create an HDWallet from the binary file format.
+    public HDWallet(WalletStorage walletApp,
+                    NetworkParameters params,
+                    KeyCrypter keyCrypter,
+                    KeyParameter aesKey,
+                    DataInputStream dis) throws IOException {
+
+        mParams = params;
+        mKeyCrypter = keyCrypter;
+        mAesKey = aesKey;
+
+        long t0 = System.currentTimeMillis();
+
+        HDWalletFile.readHeader(dis);
+
+        // Sections are parsed as they're decrypted.  The wallet
+        // section comes first since the accounts need its keys.
+        HDWalletFile.SectionInput sect = HDWalletFile.readSection(dis);
+        if (sect == null || sect.getTag() != HDWalletFile.SECT_WALLET)
+            throw new IOException("wallet file has no wallet section");
+
+        mWalletSeed = HDWalletFile.readBytes(sect);
+        mPassphrase = sect.readUTF();
+        mBIP39Version = parseBIP39Version(sect.readUTF());
+        mHDStructVersion = parseHDStructVersion(sect.readUTF());
+        sect.skipRest();
+
+        byte[] hdseed = makeHDSeed(walletApp, mWalletSeed,
+                                   mPassphrase, mBIP39Version);
+
+        long t1 = System.currentTimeMillis();
+
+        mMasterKey = HDKeyDerivation.createMasterPrivateKey(hdseed);
+        mWalletRoot = makeWalletRoot(mMasterKey, mHDStructVersion);
+
+        mLogger.info("restoring HDWallet " + mWalletRoot.getPath());
+
+        long t2 = System.currentTimeMillis();
+
+        // Nothing is derived past the account and chain keys, so the
+        // accounts are cheap enough to build in file order.
+        mAccounts = new ArrayList<HDAccount>();
+        while ((sect = HDWalletFile.readSection(dis)) != null) {
+            switch (sect.getTag()) {
+            case HDWalletFile.SECT_WALLET:
+                throw new IOException("wallet file has two wallet sections");
+            case HDWalletFile.SECT_ACCOUNT:
+                mAccounts.add(new HDAccount(mParams, mIndex, mWalletRoot,
+                                            sect, mHDStructVersion));
+                break;
+            default:
+                mLogger.info("skipping unknown wallet file section " +
+                             sect.getTag());
+                break;
+            }
+            sect.skipRest();
         }
 
-        byte[] hdseed;
+        long t3 = System.currentTimeMillis();
+
+        mLogger.info(String.format("restore phases: seed %d, keys %d, "
+                                   + "accounts %d msec",
+                                   t1 - t0, t2 - t1, t3 - t2));
+    }
+
+    // Builds the accounts concurrently on the HDDerivePool and returns
+    // them in order.  A lone account is built on this thread, so its
+    // addresses can be spread over the pool instead.  Checked
+    // exceptions from the makers come back wrapped in a
+    // RuntimeException.
+    private ArrayList<HDAccount> restoreAccounts
+        (List<Callable<HDAccount>> makers) {
+        return new ArrayList<HDAccount>(HDDerivePool.runAll(makers));
+    }
+
+    // Stretches the mnemonic for the wallet seed into the HD seed.
+    private static byte[] makeHDSeed(WalletStorage walletApp,
+                                     byte[] walletSeed,
+                                     String passphrase,
+                                     MnemonicCodeX.Version bip39Version) {
         try {
             InputStream wis =
-                walletApp.getAssets().open("wordlist/english.txt");
+                walletApp.openAsset("wordlist/english.txt");
             MnemonicCodeX mc =
                 new MnemonicCodeX(wis, MnemonicCodeX.BIP39_ENGLISH_SHA256);
-            List<String> wordlist = mc.toMnemonic(mWalletSeed);
-            hdseed = MnemonicCodeX.toSeed(wordlist, mPassphrase, mBIP39Version);
+            List<String> wordlist = mc.toMnemonic(walletSeed);
+            return MnemonicCodeX.toSeed(wordlist, passphrase, bip39Version);
         } catch (Exception ex) {
-            throw new RuntimeException("trouble decoding seed");
+            throw new RuntimeException("trouble decoding seed: " + ex);
         }
+    }
 
-        mMasterKey = HDKeyDerivation.createMasterPrivateKey(hdseed);
-
-        switch (mHDStructVersion) {
+    // The key the accounts are derived from.
+    private static DeterministicKey makeWalletRoot(DeterministicKey masterKey,
+                                                   HDStructVersion hdsv) {
+        switch (hdsv) {
         case HDSV_L0PUB:
         case HDSV_L0PRV:
             // Both of the level 0 derivations use the master as the
             // root of the accounts.
-            mWalletRoot = mMasterKey;
-            break;
+            return masterKey;
         case HDSV_STDV0:
             // Standard derivation starts from M/0/0'
             DeterministicKey t0 =
-                HDKeyDerivation.deriveChildKey(mMasterKey, 0);
-            mWalletRoot =
-                HDKeyDerivation.deriveChildKey(t0, ChildNumber.PRIV_BIT);
-            break;
+                HDKeyDerivation.deriveChildKey(masterKey, 0);
+            return HDKeyDerivation.deriveChildKey(t0, ChildNumber.PRIV_BIT);
         case HDSV_STDV1:
             // BIP-0044 starts from M/44'/0'
             DeterministicKey t1 =
-                HDKeyDerivation.deriveChildKey(mMasterKey,
+                HDKeyDerivation.deriveChildKey(masterKey,
                                                44 | ChildNumber.PRIV_BIT);
-            mWalletRoot =
-                HDKeyDerivation.deriveChildKey(t1, ChildNumber.PRIV_BIT);
-            break;
+            return HDKeyDerivation.deriveChildKey(t1, ChildNumber.PRIV_BIT);
         default:
             throw new RuntimeException("invalid HDStructVersion");
         }
+    }
 
-        mLogger.info("restoring HDWallet " + mWalletRoot.getPath());
+    // The version codes below are shared by the JSON and binary
+    // formats.
 
-        mAccounts = new ArrayList<HDAccount>();
-        JSONArray accounts = walletNode.getJSONArray("accounts");
-        for (int ii = 0; ii < accounts.length(); ++ii) {
-            mLogger.info(String.format("deserializing account %d", ii));
-            JSONObject acctNode = accounts.getJSONObject(ii);
-            mAccounts.add(new HDAccount(mParams, mWalletRoot,
-                                        acctNode, isPairing,
-                                        mHDStructVersion));
+    private static MnemonicCodeX.Version parseBIP39Version(String bipverstr) {
+        if (bipverstr.equals("V0_5")) {
+            mLogger.info("setting BIP39 version to V0_5");
+            return MnemonicCodeX.Version.V0_5;
+        }
+        else if (bipverstr.equals("V0_6")) {
+            mLogger.info("setting BIP39 version to V0_6");
+            return MnemonicCodeX.Version.V0_6;
+        }
+        else
+        {
+            throw new RuntimeException
+                ("unknown BIP39 version: " + bipverstr);
+        }
+    }
+
+    private static String formatBIP39Version(MnemonicCodeX.Version version) {
+        switch (version) {
+        case V0_5:
+            return "V0_5";
+        case V0_6:
+            return "V0_6";
+        default:
+            throw new RuntimeException("unknown BIP39 version");
+        }
+    }
+
+    private static HDStructVersion parseHDStructVersion(String acctderivstr) {
+        if (acctderivstr.equals("PRV")) {
+            mLogger.info("setting mHDStructVersion to HDSV_L0PRV");
+            return HDStructVersion.HDSV_L0PRV;
+        } else if (acctderivstr.equals("PUB")) {
+            mLogger.info("setting mHDStructVersion to HDSV_L0PUB");
+            return HDStructVersion.HDSV_L0PUB;
+        } else if (acctderivstr.equals("STDV0")) {
+            mLogger.info("setting mHDStructVersion to HDSV_STDV0");
+            return HDStructVersion.HDSV_STDV0;
+        } else if (acctderivstr.equals("STDV1")) {
+            mLogger.info("setting mHDStructVersion to HDSV_STDV1");
+            return HDStructVersion.HDSV_STDV1;
+        } else {
+            throw new RuntimeException
+                ("unknown acct_derive value: " + acctderivstr);
+        }
+    }
+
+    private static String formatHDStructVersion(HDStructVersion hdsv) {
+        switch (hdsv) {
+        case HDSV_L0PUB:
+            return "PUB";
+        case HDSV_L0PRV:
+            return "PRV";
+        case HDSV_STDV0:
+            return "STDV0";
+        case HDSV_STDV1:
+            return "STDV1";
+        default:
+            throw new RuntimeException("unknown HDStructVersion");
         }
     }
 
@@ -323,31 +423,8 @@ public class HDWallet {
 
             obj.put("passphrase", mPassphrase);
 
-            switch (mBIP39Version) {
-            case V0_5:
-                obj.put("bip39_version", "V0_5");
-                break;
-            case V0_6:
-                obj.put("bip39_version", "V0_6");
-                break;
-            default:
-                throw new RuntimeException("unknown BIP39 version");
-            }
-
-            switch (mHDStructVersion) {
-            case HDSV_L0PUB:
-                obj.put("acct_derive", "PUB");
-                break;
-            case HDSV_L0PRV:
-                obj.put("acct_derive", "PRV");
-                break;
-            case HDSV_STDV0:
-                obj.put("acct_derive", "STDV0");
-                break;
-            case HDSV_STDV1:
-                obj.put("acct_derive", "STDV1");
-                break;
-            }
+            obj.put("bip39_version", formatBIP39Version(mBIP39Version));
+            obj.put("acct_derive", formatHDStructVersion(mHDStructVersion));
 
             JSONArray accts = new JSONArray();
             for (HDAccount acct : mAccounts)
@@ -362,7 +439,7 @@ public class HDWallet {
         }
     }
 
-    public HDWallet(WalletApplication walletApp,
+    public HDWallet(WalletStorage walletApp,
                     NetworkParameters params,
                     KeyCrypter keyCrypter,
                     KeyParameter aesKey,
@@ -390,45 +467,11 @@ public class HDWallet {
             throw new RuntimeException("unknown BIP39 version");
         }
 
-        byte[] hdseed;
-        try {
-            InputStream wis =
-                walletApp.getAssets().open("wordlist/english.txt");
-            MnemonicCodeX mc =
-                new MnemonicCodeX(wis, MnemonicCodeX.BIP39_ENGLISH_SHA256);
-            List<String> wordlist = mc.toMnemonic(mWalletSeed);
-            hdseed = MnemonicCodeX.toSeed(wordlist, mPassphrase, mBIP39Version);
-        } catch (Exception ex) {
-            throw new RuntimeException("trouble decoding seed: " + ex);
-        }
+        byte[] hdseed = makeHDSeed(walletApp, mWalletSeed,
+                                   mPassphrase, mBIP39Version);
 
         mMasterKey = HDKeyDerivation.createMasterPrivateKey(hdseed);
-
-        switch (mHDStructVersion) {
-        case HDSV_L0PUB:
-        case HDSV_L0PRV:
-            // Both of the level 0 derivations use the master as the
-            // root of the accounts.
-            mWalletRoot = mMasterKey;
-            break;
-        case HDSV_STDV0:
-            // Standard derivation starts from M/0/0'
-            DeterministicKey t0 =
-                HDKeyDerivation.deriveChildKey(mMasterKey, 0);
-            mWalletRoot =
-                HDKeyDerivation.deriveChildKey(t0, ChildNumber.PRIV_BIT);
-            break;
-        case HDSV_STDV1:
-            // BIP-0044 starts from M/44'/0'
-            DeterministicKey t1 =
-                HDKeyDerivation.deriveChildKey(mMasterKey,
-                                               44 | ChildNumber.PRIV_BIT);
-            mWalletRoot =
-                HDKeyDerivation.deriveChildKey(t1, ChildNumber.PRIV_BIT);
-            break;
-        default:
-            throw new RuntimeException("invalid HDStructVersion");
-        }
+        mWalletRoot = makeWalletRoot(mMasterKey, mHDStructVersion);
 
         mLogger.info("created HDWallet " + mWalletRoot.getPath());
 
@@ -436,8 +479,8 @@ public class HDWallet {
         mAccounts = new ArrayList<HDAccount>();
         for (int ii = 0; ii < numAccounts; ++ii) {
             String acctName = String.format("Account %d", ii);
-            mAccounts.add(new HDAccount(mParams, mWalletRoot, acctName, ii,
-                                        mHDStructVersion));
+            mAccounts.add(new HDAccount(mParams, mIndex, mWalletRoot,
+                                        acctName, ii, mHDStructVersion));
         }
     }
 
@@ -486,16 +529,28 @@ public class HDWallet {
         return mAccounts.get(accountId);
     }
 
-    public void addAccount() {
+    public synchronized void addAccount() {
         int ndx = mAccounts.size();
         String acctName = String.format("Account %d", ndx);
-        mAccounts.add(new HDAccount(mParams, mWalletRoot, acctName, ndx,
-                                    mHDStructVersion));
+        mAccounts.add(new HDAccount(mParams, mIndex, mWalletRoot,
+                                    acctName, ndx, mHDStructVersion));
     }
 
-    public void gatherAllKeys(long creationTime, List<ECKey> keys) {
+    // Adds the keys the wallet doesn't hold yet, returns how many.
+    // Keys already imported are skipped without being encrypted.
+    public synchronized int importNewKeys(Wallet wallet, long creationTime) {
+        KeyImportTracker tracker = KeyImportTracker.forWallet(wallet);
+        ArrayList<ECKey> keys = new ArrayList<ECKey>();
+        for (HDAccount acct : mAccounts)
+            acct.gatherNewKeys(tracker, mKeyCrypter, mAesKey,
+                               creationTime, keys);
+        if (!keys.isEmpty())
+            wallet.addKeys(keys);
+
+        // Only record them once they are actually in the wallet.
         for (HDAccount acct : mAccounts)
-            acct.gatherAllKeys(mKeyCrypter, mAesKey, creationTime, keys);
+            acct.recordImported(tracker);
+        return keys.size();
     }
 
     public void clearBalances() {
@@ -504,119 +559,96 @@ public class HDWallet {
             acct.clearBalance();
     }
 
-    public void applyAllTransactions(Iterable<WalletTransaction> iwt) {
-        // Clear the balance and tx counters.
-        clearBalances();
+    // The transputs of a transaction which belong to this wallet, and
+    // what it contributed to the address balances when it was
+    // applied, so the contribution can be backed out again if the
+    // transaction changes state or goes away.  Also caches the net
+    // amount per account for the transactions view.
+    private static class AppliedTx {
+        public final ConfidenceType		mConfType;
+        public final boolean			mAvail;
+        public final int				mNumConnected;
+        public long						mIndexGen;		// When it was matched
+        public final List<HDAddressDescription>	mDescs =
+            new ArrayList<HDAddressDescription>();
+        public final List<Long>			mValues = new ArrayList<Long>();
+        public final List<Boolean>		mIsInput = new ArrayList<Boolean>();
+        // The output, or for an input the output it spends.
+        public final List<TransactionOutPoint>	mOutPoints =
+            new ArrayList<TransactionOutPoint>();
+        public final List<TransactionOutput>	mOutputs =
+            new ArrayList<TransactionOutput>();
+        public final long[]				mAcctAmounts;
+
+        public AppliedTx(Transaction tx, int numAccounts, long indexGen) {
+            mConfType = tx.getConfidence().getConfidenceType();
+            mAvail = !tx.isPending();
+            mNumConnected = numConnectedInputs(tx);
+            mIndexGen = indexGen;
+            mAcctAmounts = new long[numAccounts];
+        }
 
-        for (WalletTransaction wtx : iwt) {
-            // WalletTransaction.Pool pool = wtx.getPool();
-            Transaction tx = wtx.getTransaction();
-            boolean avail = !tx.isPending();
-            TransactionConfidence conf = tx.getConfidence();
-            ConfidenceType ct = conf.getConfidenceType();
-
-            // Skip dead transactions.
-            if (ct != ConfidenceType.DEAD) {
-
-                // Traverse the HDAccounts with all outputs.
-                List<TransactionOutput> lto = tx.getOutputs();
-                for (TransactionOutput to : lto) {
-                    long value = to.getValue().longValue();
-                    try {
-                        byte[] pubkey = null;
-                        byte[] pubkeyhash = null;
-                        Script script = to.getScriptPubKey();
-                        if (script.isSentToRawPubKey())
-                            pubkey = script.getPubKey();
-                        else
-                            pubkeyhash = script.getPubKeyHash();
-                        for (HDAccount hda : mAccounts)
-                            hda.applyOutput(pubkey, pubkeyhash, value, avail);
-                    } catch (ScriptException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
+        // Is the transaction in the same state as when it was
+        // examined?  Says nothing about addresses added since.
+        public boolean isCurrent(Transaction tx) {
+            return mConfType == tx.getConfidence().getConfidenceType() &&
+                mAvail == !tx.isPending() &&
+                mNumConnected == numConnectedInputs(tx);
+        }
 
-                // Traverse the HDAccounts with all inputs.
-                List<TransactionInput> lti = tx.getInputs();
-                for (TransactionInput ti : lti) {
-                    // Get the connected TransactionOutput to see value.
-                    TransactionOutput cto = ti.getConnectedOutput();
-                    if (cto == null) {
-                        // It appears we land here when processing transactions
-                        // where we handled the output above.
-                        //
-                        // mLogger.warn("couldn't find connected output for input");
-                        continue;
-                    }
-                    long value = cto.getValue().longValue();
-                    try {
-                        byte[] pubkey = ti.getScriptSig().getPubKey();
-                        for (HDAccount hda : mAccounts)
-                            hda.applyInput(pubkey, value);
-                    } catch (ScriptException e) {
-                        // This happens if the input doesn't have a
-                        // public key (eg P2SH).  No worries in this
-                        // case, it isn't one of ours ...
-                    }
-                }
-            }
+        public boolean isDead() {
+            return mConfType == ConfidenceType.DEAD;
         }
 
-        // This is too noisy
-        // // Log balance summary.
-        // for (HDAccount acct : mAccounts)
-        //     acct.logBalance();
-    }
+        public void add(HDAddressDescription desc,
+                        long value,
+                        boolean isInput,
+                        TransactionOutPoint outpoint,
+                        TransactionOutput output) {
+            mDescs.add(desc);
+            mValues.add(value);
+            mIsInput.add(isInput);
+            mOutPoints.add(outpoint);
+            mOutputs.add(output);
+
+            int acctnum = desc.hdAccount.getId();
+            if (acctnum < mAcctAmounts.length)
+                mAcctAmounts[acctnum] += isInput ? -value : value;
+        }
+
+        // Net amount for an account (-1 means all).
+        public long amountFor(int acctnum) {
+            if (acctnum != -1)
+                return acctnum < mAcctAmounts.length ?
+                    mAcctAmounts[acctnum] : 0;
 
-    public long balanceForAccount(int acctnum) {
-        // Which accounts are we considering?  (-1 means all)
-        if (acctnum != -1) {
-            return mAccounts.get(acctnum).balance();
-        } else {
             long sum = 0;
-            for (HDAccount hda : mAccounts)
-                sum += hda.balance();
+            for (long amt : mAcctAmounts)
+                sum += amt;
             return sum;
         }
-    }
 
-    public long availableForAccount(int acctnum) {
-        // Which accounts are we considering?  (-1 means all)
-        if (acctnum != -1) {
-            return mAccounts.get(acctnum).available();
-        } else {
-            long sum = 0;
-            for (HDAccount hda : mAccounts)
-                sum += hda.available();
-            return sum;
+        private static int numConnectedInputs(Transaction tx) {
+            int count = 0;
+            for (TransactionInput ti : tx.getInputs())
+                if (ti.getConnectedOutput() != null)
+                    ++count;
+            return count;
         }
     }
 
-    public long amountForAccount(WalletTransaction wtx, int acctnum) {
-
-        // This routine is only called from the View Transactions
-        // activity, so it is OK if it uses all balance and not
-        // available balance (since the confirmation count is shown).
-
-        long credits = 0;
-        long debits = 0;
+    // Finds the transputs which belong to this wallet.  Doesn't
+    // change any balances.
+    private AppliedTx examineTransaction(Transaction tx) {
+        // Taken before the lookups, so an address added during them
+        // makes the result look out of date rather than current.
+        AppliedTx atx = new AppliedTx(tx, mAccounts.size(),
+                                      mIndex.getGeneration());
 
-        // Which accounts are we considering?  (-1 means all)
-        ArrayList<HDAccount> accts = new ArrayList<HDAccount>();
-        if (acctnum != -1) {
-            accts.add(mAccounts.get(acctnum));
-        } else {
-            for (HDAccount hda : mAccounts)
-                accts.add(hda);
-        }
-        
-        Transaction tx = wtx.getTransaction();
-
-        // Consider credits.
+        // Match all outputs against the address index.
         List<TransactionOutput> lto = tx.getOutputs();
-        for (TransactionOutput to : lto) {
+        for (int ii = 0; ii < lto.size(); ++ii) {
+            TransactionOutput to = lto.get(ii);
             long value = to.getValue().longValue();
             try {
                 byte[] pubkey = null;
@@ -626,17 +658,19 @@ public class HDWallet {
                     pubkey = script.getPubKey();
                 else
                     pubkeyhash = script.getPubKeyHash();
-                for (HDAccount hda : accts) {
-                    if (hda.hasPubKey(pubkey, pubkeyhash))
-                        credits += value;
-                }
+                HDAddressDescription desc = mIndex.lookup(pubkey, pubkeyhash);
+                if (desc != null)
+                    atx.add(desc, value, false,
+                            new TransactionOutPoint(mParams, ii,
+                                                    tx.getHash()),
+                            to);
             } catch (ScriptException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
             }
         }
 
-        // Traverse the HDAccounts with all inputs.
+        // Match all inputs against the address index.
         List<TransactionInput> lti = tx.getInputs();
         for (TransactionInput ti : lti) {
             // Get the connected TransactionOutput to see value.
@@ -651,16 +685,264 @@ public class HDWallet {
             long value = cto.getValue().longValue();
             try {
                 byte[] pubkey = ti.getScriptSig().getPubKey();
-                for (HDAccount hda : accts)
-                    if (hda.hasPubKey(pubkey, null))
-                        debits += value;
+                HDAddressDescription desc = mIndex.lookup(pubkey, null);
+                if (desc != null) {
+                    TransactionOutPoint op = ti.getOutpoint();
+                    atx.add(desc, value, true,
+                            new TransactionOutPoint(mParams, op.getIndex(),
+                                                    op.getHash()),
+                            cto);
+                }
             } catch (ScriptException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                // This happens if the input doesn't have a
+                // public key (eg P2SH).  No worries in this
+                // case, it isn't one of ours ...
+            }
+        }
+
+        return atx;
+    }
+
+    // Would examining the transaction now give the same result?
+    private boolean isCurrent(AppliedTx atx, Transaction tx) {
+        return atx.isCurrent(tx) && atx.mIndexGen == mIndex.getGeneration();
+    }
+
+    private AppliedTx applyTransaction(AppliedTx atx) {
+        // Skip dead transactions.
+        if (atx.isDead())
+            return atx;
+
+        for (int ii = 0; ii < atx.mDescs.size(); ++ii) {
+            HDAddressDescription desc = atx.mDescs.get(ii);
+            long value = atx.mValues.get(ii);
+            TransactionOutPoint outpoint = atx.mOutPoints.get(ii);
+            if (atx.mIsInput.get(ii)) {
+                desc.hdAddress.applyInput(value);
+                desc.hdAccount.removeOutput(outpoint);
+            } else {
+                desc.hdAddress.applyOutput(value, atx.mAvail);
+                desc.hdAccount.addOutput(outpoint, atx.mOutputs.get(ii));
+            }
+        }
+
+        return atx;
+    }
+
+    private void unapplyTransaction(AppliedTx atx) {
+        if (atx.isDead())
+            return;
+
+        for (int ii = 0; ii < atx.mDescs.size(); ++ii) {
+            HDAddressDescription desc = atx.mDescs.get(ii);
+            long value = atx.mValues.get(ii);
+            TransactionOutPoint outpoint = atx.mOutPoints.get(ii);
+            if (atx.mIsInput.get(ii)) {
+                desc.hdAddress.unapplyInput(value);
+
+                // The output is unspent again if its transaction is
+                // still with us.  addOutput leaves it out if another
+                // wallet transaction spends it.
+                AppliedTx parent = mApplied.get(outpoint.getHash());
+                if (parent != null && !parent.isDead())
+                    desc.hdAccount.addOutput(outpoint, atx.mOutputs.get(ii));
+            } else {
+                desc.hdAddress.unapplyOutput(value, atx.mAvail);
+                desc.hdAccount.removeOutput(outpoint);
+            }
+        }
+    }
+
+    // Recomputes all balances from scratch.
+    public synchronized void applyAllTransactions
+        (Iterable<WalletTransaction> iwt) {
+        long t0 = System.currentTimeMillis();
+
+        // Clear the balance and tx counters.
+        clearBalances();
+        mApplied.clear();
+
+        for (WalletTransaction wtx : iwt) {
+            Transaction tx = wtx.getTransaction();
+            mApplied.put(tx.getHash(),
+                         applyTransaction(examineTransaction(tx)));
+        }
+        mReplayed = true;
+
+        mLogger.debug(String.format("applied %d transactions to %d addresses"
+                                    + " in %d msec",
+                                    mApplied.size(), mIndex.size(),
+                                    System.currentTimeMillis() - t0));
+
+        // This is too noisy
+        // // Log balance summary.
+        // for (HDAccount acct : mAccounts)
+        //     acct.logBalance();
+    }
+
+    // Only moves the balances for transactions which are new, have
+    // changed confidence or availability, pay addresses added since
+    // they were applied, or are no longer in the wallet.  Falls back
+    // to a full replay if we haven't done one yet, since the persisted
+    // balances aren't tied to any transactions.
+    public synchronized void applyChangedTransactions
+        (Iterable<WalletTransaction> iwt) {
+        if (!mReplayed) {
+            applyAllTransactions(iwt);
+            return;
+        }
+
+        long t0 = System.currentTimeMillis();
+        int nchanged = 0;
+        long gen = mIndex.getGeneration();
+
+        HashSet<Sha256Hash> seen = new HashSet<Sha256Hash>();
+        for (WalletTransaction wtx : iwt) {
+            Transaction tx = wtx.getTransaction();
+            Sha256Hash hash = tx.getHash();
+            seen.add(hash);
+
+            AppliedTx prev = mApplied.get(hash);
+            AppliedTx atx = null;
+            if (prev != null) {
+                if (prev.isCurrent(tx)) {
+                    if (prev.mIndexGen == gen)
+                        continue;
+
+                    // Addresses were added since it was matched.  As
+                    // none are removed, matching as many transputs as
+                    // before means matching the same ones.
+                    atx = examineTransaction(tx);
+                    if (atx.mDescs.size() == prev.mDescs.size()) {
+                        prev.mIndexGen = atx.mIndexGen;
+                        continue;
+                    }
+                }
+                unapplyTransaction(prev);
+            }
+            if (atx == null)
+                atx = examineTransaction(tx);
+            mApplied.put(hash, applyTransaction(atx));
+            ++nchanged;
+        }
+
+        // Back out any transactions which have left the wallet.
+        Iterator<Map.Entry<Sha256Hash, AppliedTx>> it =
+            mApplied.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Sha256Hash, AppliedTx> ent = it.next();
+            if (!seen.contains(ent.getKey())) {
+                unapplyTransaction(ent.getValue());
+                it.remove();
+                ++nchanged;
+            }
+        }
+
+        mLogger.debug(String.format("applied %d changed transactions"
+                                    + " in %d msec", nchanged,
+                                    System.currentTimeMillis() - t0));
+    }
+
+    // Does a full replay and checks it against the incrementally
+    // maintained balances.  Returns true if they agreed.
+    public synchronized boolean verifyBalances
+        (Iterable<WalletTransaction> iwt) {
+        List<Long> before = new ArrayList<Long>();
+        snapshotBalances(before);
+
+        applyAllTransactions(iwt);
+
+        List<Long> after = new ArrayList<Long>();
+        snapshotBalances(after);
+
+        boolean agreed = before.equals(after);
+        if (!agreed)
+            mLogger.warn("incremental balances differed from full replay");
+        return agreed;
+    }
+
+    private void snapshotBalances(List<Long> values) {
+        for (HDAccount acct : mAccounts) {
+            HDChain[] chains = { acct.getReceiveChain(),
+                                 acct.getChangeChain() };
+            for (HDChain chain : chains) {
+                for (HDAddress hda : chain.getAddresses()) {
+                    values.add((long) hda.numTrans());
+                    values.add(hda.getBalance());
+                    values.add(hda.getAvailable());
+                }
+            }
+        }
+    }
+
+    // The lowest block height of the confirmed transactions touching
+    // addresses in margins that have since been extended.  Payments
+    // to the added addresses can't be any earlier.  Returns -1 if
+    // there are none.
+    public synchronized int extendedMarginHeight
+        (Iterable<WalletTransaction> iwt) {
+        int height = -1;
+        for (WalletTransaction wtx : iwt) {
+            Transaction tx = wtx.getTransaction();
+            TransactionConfidence conf = tx.getConfidence();
+            if (conf.getConfidenceType() != ConfidenceType.BUILDING)
+                continue;
+
+            AppliedTx atx = mApplied.get(tx.getHash());
+            if (atx == null || !isCurrent(atx, tx))
+                atx = examineTransaction(tx);
+
+            for (HDAddressDescription desc : atx.mDescs) {
+                if (desc.hdChain.inExtendedMargin(desc.hdAddress)) {
+                    int txheight = conf.getAppearedAtChainHeight();
+                    if (height == -1 || txheight < height)
+                        height = txheight;
+                    break;
+                }
             }
         }
+        return height;
+    }
+
+    public long balanceForAccount(int acctnum) {
+        // Which accounts are we considering?  (-1 means all)
+        if (acctnum != -1) {
+            return mAccounts.get(acctnum).balance();
+        } else {
+            long sum = 0;
+            for (HDAccount hda : mAccounts)
+                sum += hda.balance();
+            return sum;
+        }
+    }
+
+    public long availableForAccount(int acctnum) {
+        // Which accounts are we considering?  (-1 means all)
+        if (acctnum != -1) {
+            return mAccounts.get(acctnum).available();
+        } else {
+            long sum = 0;
+            for (HDAccount hda : mAccounts)
+                sum += hda.available();
+            return sum;
+        }
+    }
+
+    public synchronized long amountForAccount(WalletTransaction wtx,
+                                              int acctnum) {
+
+        // This routine is only called from the View Transactions
+        // activity, so it is OK if it uses all balance and not
+        // available balance (since the confirmation count is shown).
 
-        return credits - debits;
+        // Use the amounts cached when the transaction was applied
+        // unless its state has changed since.
+        Transaction tx = wtx.getTransaction();
+        AppliedTx atx = mApplied.get(tx.getHash());
+        if (atx == null || !isCurrent(atx, tx))
+            atx = examineTransaction(tx);
+
+        return atx.amountFor(acctnum);
     }
 
     public void getBalances(List<Balance> balances) {
@@ -677,143 +959,196 @@ public class HDWallet {
         return acct.nextReceiveAddress();
     }
 
-    public void sendAccountCoins(Wallet wallet,
-                                 int acctnum,
-                                 Address dest,
-                                 long value,
-                                 long fee,
-                                 boolean spendUnconfirmed)
+    public Transaction sendAccountCoins(Wallet wallet,
+                                        int acctnum,
+                                        Address dest,
+                                        long value,
+                                        long fee,
+                                        boolean spendUnconfirmed)
+        throws RuntimeException {
+
+        List<PaymentBatch.Payment> payments =
+            new ArrayList<PaymentBatch.Payment>();
+        payments.add(new PaymentBatch.Payment(dest, value));
+        return sendAccountCoins(wallet, acctnum, new PaymentBatch(payments),
+                                fee, spendUnconfirmed);
+    }
+
+    // Pays everyone in the batch with one transaction, which is
+    // committed to the wallet but not broadcast.  The fee can be a
+    // little more than asked for.
+    public Transaction sendAccountCoins(Wallet wallet,
+                                        int acctnum,
+                                        PaymentBatch batch,
+                                        long fee,
+                                        boolean spendUnconfirmed)
         throws RuntimeException {
 
         // Which account are we using for this send?
         HDAccount acct = mAccounts.get(acctnum);
+        long value = batch.getTotal();
+
+        // Pick the coins the fee was estimated with: the selector is
+        // deterministic, so the same search over the same candidates
+        // finds them again.  A fee the estimator didn't offer gets
+        // coins for value plus that fee.
+        CoinSelector selector = acct.coinSelector(spendUnconfirmed);
+        LinkedList<TransactionOutput> candidates = acct.spendCandidates();
+        CoinSelection selection;
+        try {
+            FeeEstimator.Estimate est =
+                FeeEstimator.estimate(selector, candidates, value,
+                                      batch.size(), batch.getMinAmount());
+            if (est.mFee == fee)
+                selection = est.mSelection;
+            else
+                selection = selector.select(BigInteger.valueOf(value + fee),
+                                            candidates);
+        } catch (InsufficientMoneyException e) {
+            throw new RuntimeException("Not enough BTC in account");
+        }
+
+        // With the fee fixed completeTx would make an output of any
+        // change, however small.  If the coins picked leave no more
+        // than dust over, add it to the fee instead.
+        long left = selection.valueGathered.longValue() - value - fee;
+        if (left < 0)
+            throw new RuntimeException("Not enough BTC in account");
+        if (left <= BnBCoinSelector.MAX_EXCESS)
+            fee += left;
+
+        Transaction tx = new Transaction(mParams);
+        for (PaymentBatch.Payment pay : batch.getPayments())
+            tx.addOutput(BigInteger.valueOf(pay.mAmount), pay.mAddress);
 
-        SendRequest req = SendRequest.to(dest, BigInteger.valueOf(value));
+        SendRequest req = SendRequest.forTx(tx);
         req.fee = BigInteger.valueOf(fee);
         req.feePerKb = BigInteger.ZERO;
         req.ensureMinRequiredFee = false;
         req.changeAddress = acct.nextChangeAddress();
-        req.coinSelector = acct.coinSelector(spendUnconfirmed);
+        req.coinSelector = new FixedCoinSelector(selection);
         req.aesKey = mAesKey;
 
 		try {
-			wallet.sendCoins(req);
+			return wallet.sendCoinsOffline(req);
 		} catch (InsufficientMoneyException e) {
             throw new RuntimeException("Not enough BTC in account");
 		}
     }
 
-    public AmountAndFee useAll(Wallet wallet,
-                               int acctnum,
-                               boolean spendUnconfirmed)
-        throws InsufficientMoneyException {
-
-        // Create a pretend send request and extract the recommended
-        // fee.  Which account are we using for this send?
-        HDAccount acct = mAccounts.get(acctnum);
+    // Hands completeTx the coins already picked, so the search isn't
+    // run again.
+    private static class FixedCoinSelector implements CoinSelector {
+        private final CoinSelection	mSelection;
 
-        // Pretend we are sending the bitcoin to ourselves.
-        Address dest = acct.nextReceiveAddress();
-            
-        SendRequest req = SendRequest.emptyWallet(dest);
-        req.coinSelector = acct.coinSelector(spendUnconfirmed);
-        req.aesKey = mAesKey;
+        public FixedCoinSelector(CoinSelection selection) {
+            mSelection = selection;
+        }
 
-        // Let the wallet do the heavy lifting ...
-        wallet.completeTx(req);
+        public CoinSelection select(BigInteger target,
+                                    LinkedList<TransactionOutput> candidates) {
+            return mSelection;
+        }
+    }
 
-        // It doesn't look like req.fee gets set to the required fee
-        // when using emptyWallet.  Figure out the fee ourselves ...
-        //
-        BigInteger outAmt = req.tx.getValueSentFromMe(wallet);
-        BigInteger inAmt = req.tx.getValueSentToMe(wallet);
-        BigInteger feeAmt = outAmt.subtract(inAmt);
+    // The fee estimates don't build or sign a transaction; the real
+    // one is only made by sendAccountCoins.
+    public AmountAndFee useAll(int acctnum, boolean spendUnconfirmed)
+        throws InsufficientMoneyException {
 
-        return new AmountAndFee(inAmt.longValue(), feeAmt.longValue());
+        // Which account are we using for this send?
+        HDAccount acct = mAccounts.get(acctnum);
+        return FeeEstimator.useAll(acct.coinSelector(spendUnconfirmed),
+                                   acct.spendCandidates());
     }
 
-    public long computeRecommendedFee(Wallet wallet,
-                                      int acctnum,
+    public long computeRecommendedFee(int acctnum,
                                       long value,
                                       boolean spendUnconfirmed)
         throws IllegalArgumentException, InsufficientMoneyException {
-        
-        // Create a pretend send request and extract the recommended
-        // fee.  Which account are we using for this send?
+
+        // Which account are we using for this send?
         HDAccount acct = mAccounts.get(acctnum);
+        return FeeEstimator.recommendedFee(acct.coinSelector(spendUnconfirmed),
+                                           acct.spendCandidates(),
+                                           value);
+    }
 
-        // Pretend we are sending the bitcoin to ourselves.
-        Address dest = acct.nextReceiveAddress();
-            
-        SendRequest req = SendRequest.to(dest, BigInteger.valueOf(value));
-        req.changeAddress = acct.nextChangeAddress();
-        req.coinSelector = acct.coinSelector(spendUnconfirmed);
-        req.aesKey = mAesKey;
+    public long computeRecommendedFee(int acctnum,
+                                      PaymentBatch batch,
+                                      boolean spendUnconfirmed)
+        throws IllegalArgumentException, InsufficientMoneyException {
+
+        // Which account are we using for this send?
+        HDAccount acct = mAccounts.get(acctnum);
+        return FeeEstimator.recommendedFee(acct.coinSelector(spendUnconfirmed),
+                                           acct.spendCandidates(),
+                                           batch.getTotal(),
+                                           batch.size(),
+                                           batch.getMinAmount());
+    }
+
+    // Only taking the snapshot holds the wallet lock; it copies the
+    // counters and shares the key records, which never change.
+    // Serializing, encrypting and writing the file happen after the
+    // lock is released, so the UI and the network thread aren't kept
+    // waiting on the disk.  Returns false if the wallet couldn't be
+    // written.
+    public boolean persist(WalletStorage walletApp) {
+        long t0 = System.currentTimeMillis();
+        HDWalletFile.Writer writer;
+        KeyParameter aesKey;
+        synchronized (this) {
+            writer = snapshot();
+            aesKey = mAesKey;
+        }
 
-        // Let the wallet do the heavy lifting ...
-        wallet.completeTx(req);
+        if (!HDWalletFile.write(walletApp, aesKey, writer))
+            return false;
 
-        return req.fee != null ? req.fee.longValue() : 0;
+        mLogger.info(String.format("persisted %d bytes in %d msec",
+                                   walletApp.getHDWalletFile(null).length(),
+                                   System.currentTimeMillis() - t0));
+        return true;
     }
 
-    public void persist(WalletApplication walletApp) {
-        File tmpFile = walletApp.getHDWalletFile(".tmp");
-        File newFile = walletApp.getHDWalletFile(null);
-        try {
-            // Serialize into a byte array.
-            JSONObject jsonobj = dumps(false);
-            String jsonstr = jsonobj.toString(4);	// indentation
-            byte[] plainBytes = jsonstr.getBytes(Charset.forName("UTF-8"));
-
-            // Generate an IV.
-            byte[] iv = new byte[KeyCrypterGroestl.BLOCK_LENGTH];
-            secureRandom.nextBytes(iv);
-
-            // Encrypt the serialized data.
-            ParametersWithIV keyWithIv = new ParametersWithIV(mAesKey, iv);
-            BufferedBlockCipher cipher =
-                new PaddedBufferedBlockCipher
-                (new CBCBlockCipher(new AESFastEngine()));
-            cipher.init(true, keyWithIv);
-            byte[] encryptedBytes =
-                new byte[cipher.getOutputSize(plainBytes.length)];
-            int length = cipher.processBytes(plainBytes, 0, plainBytes.length,
-                                             encryptedBytes, 0);
-            cipher.doFinal(encryptedBytes, length);
-
-            // Ready a tmp file.
-            if (tmpFile.exists())
-                tmpFile.delete();
-
-            // Write the IV followed by the data.
-			FileOutputStream ostrm = new FileOutputStream(tmpFile);
-			ostrm.write(iv);
-            ostrm.write(encryptedBytes);
-			ostrm.close();
-
-            // Swap the tmp file into place.
-            if (!tmpFile.renameTo(newFile))
-                mLogger.warn("failed to rename to " + newFile.getPath());
-            else
-                mLogger.info("persisted to " + newFile.getPath());
-
-        } catch (JSONException ex) {
-            mLogger.warn("failed generating JSON: " + ex.toString());
-        } catch (IOException ex) {
-            mLogger.warn("failed to write to " + tmpFile.getPath() + ": " +
-                         ex.toString());
-		} catch (DataLengthException ex) {
-            mLogger.warn("encryption failed: " + ex.toString());
-		} catch (IllegalStateException ex) {
-            mLogger.warn("encryption failed: " + ex.toString());
-		} catch (InvalidCipherTextException ex) {
-            mLogger.warn("encryption failed: " + ex.toString());
-		}
+    // Takes what the binary file format needs, for writing without the
+    // wallet lock.  The wallet section's fields never change once the
+    // wallet is made.
+    private synchronized HDWalletFile.Writer snapshot() {
+        final byte[] walletSeed = mWalletSeed;
+        final String passphrase = mPassphrase;
+        final String bip39Version = formatBIP39Version(mBIP39Version);
+        final String hdStructVersion = formatHDStructVersion(mHDStructVersion);
+        final List<HDAccount.Snapshot> accounts =
+            new ArrayList<HDAccount.Snapshot>(mAccounts.size());
+        for (HDAccount acct : mAccounts)
+            accounts.add(acct.snapshot());
+
+        final HDWalletFile.Writer walletSect = new HDWalletFile.Writer() {
+                public void write(DataOutputStream dos) throws IOException {
+                    HDWalletFile.writeBytes(dos, walletSeed);
+                    dos.writeUTF(passphrase);
+                    dos.writeUTF(bip39Version);
+                    dos.writeUTF(hdStructVersion);
+                }
+            };
+
+        return new HDWalletFile.Writer() {
+                public void write(DataOutputStream dos) throws IOException {
+                    HDWalletFile.writeHeader(dos);
+                    HDWalletFile.writeSection(dos, HDWalletFile.SECT_WALLET,
+                                              walletSect);
+                    for (HDAccount.Snapshot acct : accounts)
+                        HDWalletFile.writeSection
+                            (dos, HDWalletFile.SECT_ACCOUNT, acct);
+                }
+            };
     }
 
     // Ensure that there are enough spare addresses on all chains.
     // Returns the most number of addresses added to a chain.
-    public int ensureMargins(Wallet wallet) {
+    public synchronized int ensureMargins(Wallet wallet) {
         int maxAdded = 0;
         for (HDAccount acct : mAccounts) {
             int numAdded = acct.ensureMargins(wallet, mKeyCrypter, mAesKey);
@@ -826,13 +1161,11 @@ public class HDWallet {
     // Finds an address (if present) and returns a description
     // of it's wallet location.
     public HDAddressDescription findAddress(Address addr) {
-        HDAddressDescription retval = null;
-        for (HDAccount acct : mAccounts) {
-            retval = acct.findAddress(addr);
-            if (retval != null)
-                return retval;
-        }
-        return retval;
+        // Our addresses are all pay-to-pubkey-hash; a P2SH address
+        // with the same hash160 isn't ours.
+        if (addr.getVersion() != mParams.getAddressHeader())
+            return null;
+        return mIndex.lookupHash160(addr.getHash160());
     }
 
     public long getEarliestCreationTime()
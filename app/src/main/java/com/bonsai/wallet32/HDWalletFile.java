@@ -0,0 +1,352 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.BufferedBlockCipher;
+import org.spongycastle.crypto.engines.AESFastEngine;
+import org.spongycastle.crypto.io.CipherInputStream;
+import org.spongycastle.crypto.io.CipherOutputStream;
+import org.spongycastle.crypto.modes.CBCBlockCipher;
+import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.crypto.params.ParametersWithIV;
+
+import com.google.bitcoin.crypto.KeyCrypterGroestl;
+
+// The HD wallet file.  On disk it is an IV followed by the AES-CBC
+// encrypted plaintext, which is encrypted and decrypted as a stream.
+// The plaintext is either the original JSON dump or, going forward,
+// this binary format:
+//
+//   "W32H" magic, int version
+//   sections of: byte tag, int length, length bytes of payload
+//
+// The wallet section comes first, followed by one section per
+// account.  Readers skip sections with tags they don't know.  Keys
+// are stored as raw bytes with a short length prefix.
+//
+// Neither direction holds the plaintext in memory: sections are
+// written and parsed straight through the cipher streams.
+//
+public class HDWalletFile {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(HDWalletFile.class);
+
+    private static final transient SecureRandom secureRandom =
+        new SecureRandom();
+
+    public static final byte[]	MAGIC = { 'W', '3', '2', 'H' };
+    public static final int		VERSION = 1;
+
+    // Working buffer for the streams.
+    private static final int	BUFFER_SIZE = 8192;
+
+    public static final int		SECT_WALLET = 1;
+    public static final int		SECT_ACCOUNT = 2;
+
+    // Does the plaintext use the binary format?  Otherwise it's JSON.
+    // Doesn't consume anything from the stream.
+    public static boolean isBinary(BufferedInputStream bis)
+        throws IOException {
+        bis.mark(MAGIC.length);
+        try {
+            for (int ii = 0; ii < MAGIC.length; ++ii)
+                if (bis.read() != MAGIC[ii])
+                    return false;
+            return true;
+        }
+        finally {
+            bis.reset();
+        }
+    }
+
+    public static void writeHeader(DataOutputStream dos) throws IOException {
+        dos.write(MAGIC);
+        dos.writeInt(VERSION);
+    }
+
+    public static void readHeader(DataInputStream dis) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        dis.readFully(magic);
+        for (int ii = 0; ii < MAGIC.length; ++ii)
+            if (magic[ii] != MAGIC[ii])
+                throw new IOException("not a binary wallet file");
+        int version = dis.readInt();
+        if (version < 1 || version > VERSION)
+            throw new IOException("unsupported wallet file version " +
+                                  version);
+    }
+
+    // Writes a section whose payload comes from the writer.  The
+    // writer is run twice, first only to count the payload length, so
+    // it must write the same thing both times.
+    public static void writeSection(DataOutputStream dos,
+                                    int tag,
+                                    Writer payload)
+        throws IOException {
+        DataOutputStream counter = new DataOutputStream(NULL_OUTPUT);
+        payload.write(counter);
+        counter.flush();
+        dos.writeByte(tag);
+        dos.writeInt(counter.size());
+        payload.write(dos);
+    }
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+            public void write(int bb) {
+            }
+            public void write(byte[] bb, int off, int len) {
+            }
+        };
+
+    // Returns the next section, or null at the end of the file.  The
+    // section's payload is read from the returned stream, which ends
+    // where the section does; call skipRest before reading the next.
+    public static SectionInput readSection(DataInputStream dis)
+        throws IOException {
+        int tag = dis.read();
+        if (tag == -1)
+            return null;
+        int len = dis.readInt();
+        if (len < 0)
+            throw new IOException("bad section length " + len);
+        return new SectionInput(tag, new LimitedInput(dis, len));
+    }
+
+    public static class SectionInput extends DataInputStream {
+        private final int			mTag;
+        private final LimitedInput	mLimited;
+
+        private SectionInput(int tag, LimitedInput limited) {
+            super(limited);
+            mTag = tag;
+            mLimited = limited;
+        }
+
+        public int getTag() {
+            return mTag;
+        }
+
+        // Skips whatever of the payload wasn't read.
+        public void skipRest() throws IOException {
+            mLimited.skipRest();
+        }
+    }
+
+    // Reads at most a given number of bytes from the underlying
+    // stream, which it doesn't close.
+    private static class LimitedInput extends FilterInputStream {
+        private long	mRemaining;
+
+        public LimitedInput(InputStream in, long limit) {
+            super(in);
+            mRemaining = limit;
+        }
+
+        public int read() throws IOException {
+            if (mRemaining == 0)
+                return -1;
+            int bb = in.read();
+            if (bb != -1)
+                --mRemaining;
+            return bb;
+        }
+
+        public int read(byte[] bb, int off, int len) throws IOException {
+            if (mRemaining == 0)
+                return -1;
+            int nn = in.read(bb, off, (int) Math.min(len, mRemaining));
+            if (nn > 0)
+                mRemaining -= nn;
+            return nn;
+        }
+
+        public long skip(long nn) throws IOException {
+            long skipped = in.skip(Math.min(nn, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        public void close() {
+        }
+
+        public void skipRest() throws IOException {
+            while (mRemaining > 0) {
+                if (skip(mRemaining) > 0)
+                    continue;
+                // Not every stream skips; fall back to reading.
+                if (read() == -1)
+                    throw new EOFException("truncated section");
+            }
+        }
+    }
+
+    public static void writeBytes(DataOutputStream dos, byte[] bytes)
+        throws IOException {
+        dos.writeShort(bytes.length);
+        dos.write(bytes);
+    }
+
+    public static byte[] readBytes(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readUnsignedShort()];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    // Opens the wallet file for reading.  The returned stream
+    // decrypts as it goes, so the file is never held in memory
+    // whole.  A wrong key shows up as an IOException from the stream.
+    public static BufferedInputStream openInput(WalletStorage walletApp,
+                                                KeyParameter aesKey)
+        throws IOException {
+
+        File file = walletApp.getHDWalletFile(null);
+        mLogger.info("restoring HDWallet from " + file.getPath());
+
+        InputStream fis = new FileInputStream(file);
+        try {
+            // Read IV from file.
+            byte[] iv = new byte[KeyCrypterGroestl.BLOCK_LENGTH/*KeyCrypterScrypt.BLOCK_LENGTH*/];
+            new DataInputStream(fis).readFully(iv);
+
+            // Decrypt the rest of the file as it's read.
+            ParametersWithIV keyWithIv =
+                new ParametersWithIV(new KeyParameter(aesKey.getKey()), iv);
+            BufferedBlockCipher cipher =
+                new PaddedBufferedBlockCipher
+                (new CBCBlockCipher(new AESFastEngine()));
+            cipher.init(false, keyWithIv);
+            return new BufferedInputStream
+                (new CipherInputStream(fis, cipher), BUFFER_SIZE);
+
+        } catch (IOException ex) {
+            fis.close();
+            mLogger.warn("trouble reading " + file.getPath() + ": " +
+                         ex.toString());
+            throw ex;
+        } catch (RuntimeException ex) {
+            fis.close();
+            mLogger.warn("trouble restoring wallet: " + ex.toString());
+            throw ex;
+        }
+    }
+
+    // Reads the rest of the plaintext as a string.  Only needed for
+    // the older JSON format, whose parser can't take a stream.
+    public static String readString(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = is.read(buffer)) != -1)
+            bos.write(buffer, 0, len);
+        return bos.toString("UTF-8");
+    }
+
+    public interface Writer {
+        void write(DataOutputStream dos) throws IOException;
+    }
+
+    // Streams the writer's output through the cipher into a tmp file
+    // and swaps it into place as the wallet file.  Returns false if
+    // it couldn't be written.
+    public static boolean write(WalletStorage walletApp,
+                                KeyParameter aesKey,
+                                Writer writer) {
+        File tmpFile = walletApp.getHDWalletFile(".tmp");
+        File newFile = walletApp.getHDWalletFile(null);
+        try {
+            // Generate an IV.
+            byte[] iv = new byte[KeyCrypterGroestl.BLOCK_LENGTH];
+            secureRandom.nextBytes(iv);
+
+            ParametersWithIV keyWithIv = new ParametersWithIV(aesKey, iv);
+            BufferedBlockCipher cipher =
+                new PaddedBufferedBlockCipher
+                (new CBCBlockCipher(new AESFastEngine()));
+            cipher.init(true, keyWithIv);
+
+            // Ready a tmp file.
+            if (tmpFile.exists())
+                tmpFile.delete();
+
+            // Write the IV followed by the encrypted data.
+            FileOutputStream ostrm = new FileOutputStream(tmpFile);
+            DataOutputStream dos;
+            try {
+                ostrm.write(iv);
+                dos = new DataOutputStream
+                    (new BufferedOutputStream
+                     (new CipherOutputStream(ostrm, cipher), BUFFER_SIZE));
+            } catch (IOException ex) {
+                ostrm.close();
+                throw ex;
+            }
+            try {
+                writer.write(dos);
+            } finally {
+                // Closing pads and writes the last block.
+                dos.close();
+            }
+
+            // Swap the tmp file into place.
+            if (!tmpFile.renameTo(newFile)) {
+                mLogger.warn("failed to rename to " + newFile.getPath());
+                return false;
+            }
+            mLogger.info("persisted to " + newFile.getPath());
+            return true;
+
+        } catch (IOException ex) {
+            mLogger.warn("failed to write to " + tmpFile.getPath() + ": " +
+                         ex.toString());
+		} catch (IllegalStateException ex) {
+            mLogger.warn("encryption failed: " + ex.toString());
+		}
+        return false;
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,156 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Coalesces HDWallet persist requests.  A request marks the wallet
+// dirty and schedules a write at the end of the window; any further
+// requests inside the window ride along with that one write.  Call
+// flush to write pending changes right away (eg. on shutdown).  A
+// write that fails leaves the wallet dirty for the next window.
+//
+public class HDWalletPersister {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(HDWalletPersister.class);
+
+    private final WalletStorage			mApp;
+    private final long						mWindowMsecs;
+    private final ScheduledExecutorService	mWorker;
+
+    // Held across the write so a flush waits for one in progress.
+    private final Object		mWriteLock = new Object();
+
+    private HDWallet			mDirty = null;
+    private ScheduledFuture<?>	mPending = null;
+
+    private long				mNumRequested = 0;
+    private long				mNumWritten = 0;
+    private long				mNumFailed = 0;
+    private long				mWriteMsecs = 0;
+
+    public HDWalletPersister(WalletStorage app, long windowMsecs) {
+        mApp = app;
+        mWindowMsecs = windowMsecs;
+        mWorker = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    // Marks the wallet as needing to be written.
+    public synchronized void requestPersist(HDWallet hdwallet) {
+        ++mNumRequested;
+        mDirty = hdwallet;
+        schedule();
+    }
+
+    // Starts a window unless one is already open.
+    private synchronized void schedule() {
+        if (mPending != null || mWorker.isShutdown())
+            return;
+        Runnable task = new Runnable() {
+                public void run() {
+                    flush();
+                }
+            };
+        mPending =
+            mWorker.schedule(task, mWindowMsecs, TimeUnit.MILLISECONDS);
+    }
+
+    // Writes the wallet now, along with anything already pending.
+    public void persistNow(HDWallet hdwallet) {
+        requestPersist(hdwallet);
+        flush();
+    }
+
+    // Writes any pending changes now.
+    public void flush() {
+        synchronized (mWriteLock) {
+            HDWallet hdwallet;
+            synchronized (this) {
+                if (mPending != null) {
+                    mPending.cancel(false);
+                    mPending = null;
+                }
+                hdwallet = mDirty;
+                mDirty = null;
+            }
+
+            if (hdwallet == null)
+                return;
+
+            long t0 = System.currentTimeMillis();
+            boolean written = hdwallet.persist(mApp);
+
+            synchronized (this) {
+                mWriteMsecs += System.currentTimeMillis() - t0;
+                if (written) {
+                    ++mNumWritten;
+                } else {
+                    // Still dirty, unless a newer request already
+                    // marked it so; try again next window.
+                    ++mNumFailed;
+                    if (mDirty == null)
+                        mDirty = hdwallet;
+                    schedule();
+                }
+            }
+        }
+    }
+
+    // Stops the worker and flushes.  A failed final write isn't
+    // retried.
+    public void shutdown() {
+        mWorker.shutdown();
+        flush();
+        mLogger.info(String.format("persist: %d requested, %d written, "
+                                   + "%d failed in %d msec",
+                                   getNumRequested(), getNumWritten(),
+                                   getNumFailed(), getWriteMsecs()));
+        synchronized (this) {
+            if (mDirty != null)
+                mLogger.error("wallet changes left unwritten at shutdown");
+        }
+    }
+
+    public synchronized long getNumRequested() {
+        return mNumRequested;
+    }
+
+    public synchronized long getNumWritten() {
+        return mNumWritten;
+    }
+
+    public synchronized long getNumFailed() {
+        return mNumFailed;
+    }
+
+    // Total time spent writing.
+    public synchronized long getWriteMsecs() {
+        return mWriteMsecs;
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
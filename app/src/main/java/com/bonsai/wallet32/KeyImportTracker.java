@@ -0,0 +1,160 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletExtension;
+
+// Records which HD keys have been imported into the bitcoinj Wallet
+// so startup only has to encrypt and add the new ones.  Chains only
+// grow at the end, so for each chain we keep the number of addresses
+// imported and a fingerprint of their public key hashes.  It is a
+// wallet extension so it is saved, and lost, along with the keys.
+//
+public class KeyImportTracker implements WalletExtension {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(KeyImportTracker.class);
+
+    private static final String	EXTENSION_ID =
+        "com.bonsai.wallet32.KeyImportTracker";
+
+    private static class Entry {
+        public final int		mCount;
+        public final byte[]		mDigest;
+
+        public Entry(int count, byte[] digest) {
+            mCount = count;
+            mDigest = digest;
+        }
+    }
+
+    private final Map<String, Entry>	mChains =
+        new HashMap<String, Entry>();
+
+    // Returns the tracker for the wallet, adding one if needed.
+    public static KeyImportTracker forWallet(Wallet wallet) {
+        return (KeyImportTracker)
+            wallet.addOrGetExistingExtension(new KeyImportTracker());
+    }
+
+    // Returns how many addresses at the start of the chain are
+    // already in the wallet.
+    public synchronized int importedCount(String chainId,
+                                          List<HDAddress> addrs) {
+        Entry entry = mChains.get(chainId);
+        if (entry == null || entry.mCount > addrs.size())
+            return 0;
+
+        if (!Arrays.equals(digest(addrs, entry.mCount), entry.mDigest)) {
+            mLogger.warn(chainId + " key fingerprint mismatch");
+            return 0;
+        }
+        return entry.mCount;
+    }
+
+    // Records that all of the chain's addresses are in the wallet.
+    public synchronized void setImported(String chainId,
+                                         List<HDAddress> addrs) {
+        mChains.put(chainId,
+                    new Entry(addrs.size(), digest(addrs, addrs.size())));
+    }
+
+    // Records addresses appended from fromIndex on, provided the ones
+    // before them were already recorded.
+    public synchronized void addImported(String chainId,
+                                         List<HDAddress> addrs,
+                                         int fromIndex) {
+        Entry entry = mChains.get(chainId);
+        int count = entry == null ? 0 : entry.mCount;
+        if (count == fromIndex)
+            setImported(chainId, addrs);
+    }
+
+    private static byte[] digest(List<HDAddress> addrs, int count) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (int ii = 0; ii < count; ++ii)
+                md.update(addrs.get(ii).getPubKeyHash());
+            return md.digest();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);	// Shouldn't happen.
+        }
+    }
+
+    public String getWalletExtensionID() {
+        return EXTENSION_ID;
+    }
+
+    public boolean isWalletExtensionMandatory() {
+        return false;
+    }
+
+    public synchronized byte[] serializeWalletExtension() {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(mChains.size());
+            for (Map.Entry<String, Entry> me : mChains.entrySet()) {
+                dos.writeUTF(me.getKey());
+                dos.writeInt(me.getValue().mCount);
+                HDWalletFile.writeBytes(dos, me.getValue().mDigest);
+            }
+            dos.flush();
+            return baos.toByteArray();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);	// Shouldn't happen.
+        }
+    }
+
+    public synchronized void deserializeWalletExtension(Wallet containingWallet,
+                                                        byte[] data)
+        throws Exception {
+        mChains.clear();
+        DataInputStream dis =
+            new DataInputStream(new ByteArrayInputStream(data));
+        int numChains = dis.readInt();
+        for (int ii = 0; ii < numChains; ++ii) {
+            String chainId = dis.readUTF();
+            int count = dis.readInt();
+            byte[] digest = HDWalletFile.readBytes(dis);
+            mChains.put(chainId, new Entry(count, digest));
+        }
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
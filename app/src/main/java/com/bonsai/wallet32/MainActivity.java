@@ -71,7 +71,7 @@ public class MainActivity extends BaseWalletActivity {
         // If the WalletService is already ready and we have
         // an intent uri we should handle that immediately.
         if (mWalletService != null &&
-            mWalletService.getState() == WalletService.State.READY)
+            mWalletService.getState() == WalletEngine.State.READY)
         {
             String intentURI = mApp.getIntentURI();
             if (intentURI != null) {
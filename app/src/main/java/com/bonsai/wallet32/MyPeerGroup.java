@@ -0,0 +1,324 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.utils.Threading;
+
+// A PeerGroup which measures each peer's ping and block delivery rate
+// and uses them to pick the chain download peer.  If the download peer
+// stalls, or delivers at less than half the best rate seen, it is
+// dropped so the download moves to a faster peer.
+//
+public class MyPeerGroup extends PeerGroup {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(MyPeerGroup.class);
+
+    // Rates are measured over windows this long.
+    private static final long	WINDOW_MSECS = 20 * 1000;
+
+    // How often the download peer is checked.
+    private static final long	CHECK_MSECS = 10 * 1000;
+
+    // No blocks for this long with blocks left counts as a stall.
+    private static final long	STALL_MSECS = 30 * 1000;
+
+    // Slow means below this fraction of the best rate seen.
+    private static final double	SLOW_FRACTION = 0.5;
+
+    // Don't switch more often than this.
+    private static final long	MIN_SWITCH_MSECS = 60 * 1000;
+
+    // Snapshot of what we know about a peer.
+    public static class PeerInfo {
+        public final String		mAddress;
+        public final long		mPingMsecs;		// Long.MAX_VALUE if unknown
+        public final long		mBlocks;
+        public final double		mBlocksPerSec;	// -1 if not measured
+        public final boolean	mIsDownloadPeer;
+
+        public PeerInfo(String address,
+                        long pingMsecs,
+                        long blocks,
+                        double blocksPerSec,
+                        boolean isDownloadPeer) {
+            mAddress = address;
+            mPingMsecs = pingMsecs;
+            mBlocks = blocks;
+            mBlocksPerSec = blocksPerSec;
+            mIsDownloadPeer = isDownloadPeer;
+        }
+    }
+
+    private static class PeerStats {
+        public long				mBlocks = 0;
+        public long				mLastBlock = System.currentTimeMillis();
+        public boolean			mCatchup = true;	// Headers only
+        public long				mWindowStart = System.currentTimeMillis();
+        public long				mWindowBlocks = 0;
+        public double			mRate = -1.0;		// Last full window
+        public long				mRateTime = 0;		// When it ended
+    }
+
+    // Our own lock; the PeerGroup's is held when it calls us and
+    // must not be taken while holding this one.
+    private final Object		mLock = new Object();
+
+    private final HashMap<Peer, PeerStats>	mStats =
+        new HashMap<Peer, PeerStats>();
+
+    // Best rate of any peer, for headers and for blocks.
+    private double				mBestCatchupRate = 0.0;
+    private double				mBestBlockRate = 0.0;
+
+    private int					mBlocksLeft = 0;
+    private long				mLastSwitch = 0;
+
+    private final AbstractBlockChain	mChain;
+
+    private ScheduledExecutorService	mMonitor = null;
+
+    public MyPeerGroup(NetworkParameters params, AbstractBlockChain chain) {
+        super(params, chain);
+        mChain = chain;
+        addEventListener(mListener, Threading.SAME_THREAD);
+    }
+
+    // Starts checking on the download peer.
+    public void startMonitor() {
+        synchronized (mLock) {
+            if (mMonitor != null)
+                return;
+            mMonitor = Executors.newSingleThreadScheduledExecutor();
+            mMonitor.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        try {
+                            checkDownloadPeer();
+                        } catch (RuntimeException ex) {
+                            mLogger.error("download peer check failed: " +
+                                          ex.toString());
+                        }
+                    }
+                }, CHECK_MSECS, CHECK_MSECS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stopMonitor() {
+        synchronized (mLock) {
+            if (mMonitor != null) {
+                mMonitor.shutdown();
+                mMonitor = null;
+            }
+        }
+    }
+
+    public List<PeerInfo> getPeerInfo() {
+        Peer downloadPeer = getDownloadPeer();
+        List<PeerInfo> infos = new ArrayList<PeerInfo>();
+        for (Peer peer : getConnectedPeers()) {
+            long blocks = 0;
+            double rate = -1.0;
+            synchronized (mLock) {
+                PeerStats ps = mStats.get(peer);
+                if (ps != null) {
+                    blocks = ps.mBlocks;
+                    rate = ps.mRate;
+                }
+            }
+            infos.add(new PeerInfo(peer.getAddress().toString(),
+                                   peer.getPingTime(),
+                                   blocks,
+                                   rate,
+                                   peer == downloadPeer));
+        }
+        return infos;
+    }
+
+    private AbstractPeerEventListener mListener =
+        new AbstractPeerEventListener() {
+            @Override
+            public void onPeerConnected(Peer peer, int peerCount) {
+                synchronized (mLock) {
+                    mStats.put(peer, new PeerStats());
+                }
+            }
+
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                synchronized (mLock) {
+                    mStats.remove(peer);
+                }
+            }
+
+            @Override
+            public void onBlocksDownloaded(Peer peer,
+                                           Block block,
+                                           int blocksLeft) {
+                // Headers come much faster than blocks; measure them
+                // apart.
+                boolean catchup =
+                    block.getTimeSeconds() < getFastCatchupTimeSecs();
+                synchronized (mLock) {
+                    recordBlock(peer, catchup, blocksLeft);
+                }
+            }
+        };
+
+    private void recordBlock(Peer peer, boolean catchup, int blocksLeft) {
+        mBlocksLeft = blocksLeft;
+        PeerStats ps = mStats.get(peer);
+        if (ps == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        ++ps.mBlocks;
+        ps.mLastBlock = now;
+
+        if (catchup != ps.mCatchup) {
+            ps.mCatchup = catchup;
+            ps.mWindowStart = now;
+            ps.mWindowBlocks = 0;
+            ps.mRate = -1.0;
+        }
+
+        ++ps.mWindowBlocks;
+        long elapsed = now - ps.mWindowStart;
+        if (elapsed >= WINDOW_MSECS) {
+            ps.mRate = ps.mWindowBlocks * 1000.0 / elapsed;
+            ps.mRateTime = now;
+            if (catchup)
+                mBestCatchupRate = Math.max(mBestCatchupRate, ps.mRate);
+            else
+                mBestBlockRate = Math.max(mBestBlockRate, ps.mRate);
+            ps.mWindowStart = now;
+            ps.mWindowBlocks = 0;
+        }
+    }
+
+    private void checkDownloadPeer() {
+        Peer peer = getDownloadPeer();
+        if (peer == null || getConnectedPeers().size() < 2)
+            return;
+
+        String reason;
+        synchronized (mLock) {
+            PeerStats ps = mStats.get(peer);
+            if (ps == null || mBlocksLeft <= 0)
+                return;
+
+            long now = System.currentTimeMillis();
+            if (now - mLastSwitch < MIN_SWITCH_MSECS)
+                return;
+
+            double best = ps.mCatchup ? mBestCatchupRate : mBestBlockRate;
+            if (now - ps.mLastBlock > STALL_MSECS)
+                reason = String.format("no blocks for %d sec",
+                                       (now - ps.mLastBlock) / 1000);
+            else if (ps.mRate >= 0.0 && ps.mRate < best * SLOW_FRACTION)
+                reason = String.format("%.1f blocks/sec, best %.1f",
+                                       ps.mRate, best);
+            else
+                return;
+
+            mLastSwitch = now;
+        }
+
+        // The PeerGroup picks a new download peer when this one goes.
+        mLogger.info("download peer " + peer.getAddress() + " is slow (" +
+                     reason + "), switching");
+        peer.close();
+    }
+
+    // Whether the download is still fetching headers only.
+    private boolean isCatchup() {
+        if (mChain == null)
+            return false;
+        return mChain.getChainHead().getHeader().getTimeSeconds() <
+            getFastCatchupTimeSecs();
+    }
+
+    // Of the peers at the common chain height which can filter, takes
+    // the fastest one measured, then the one with the lowest ping.
+    // Header and block rates differ by orders of magnitude, so only
+    // rates measured in the current mode count, and only recent ones.
+    @Override
+    protected Peer selectDownloadPeer(List<Peer> peers) {
+        if (peers.isEmpty())
+            return null;
+        int height = getMostCommonChainHeight(peers);
+        boolean catchup = isCatchup();
+        long now = System.currentTimeMillis();
+
+        Peer best = null;
+        double bestRate = -1.0;
+        long bestPing = Long.MAX_VALUE;
+        synchronized (mLock) {
+            for (Peer peer : peers) {
+                if (peer.getBestHeight() < height)
+                    continue;
+                if (peer.getPeerVersionMessage().clientVersion <
+                    FilteredBlock.MIN_PROTOCOL_VERSION)
+                    continue;
+
+                PeerStats ps = mStats.get(peer);
+                double rate = -1.0;
+                if (ps != null && ps.mCatchup == catchup &&
+                    now - ps.mRateTime <= WINDOW_MSECS)
+                    rate = ps.mRate;
+                long ping = peer.getPingTime();
+                if (best == null ||
+                    rate > bestRate ||
+                    (rate == bestRate && ping < bestPing)) {
+                    best = peer;
+                    bestRate = rate;
+                    bestPing = ping;
+                }
+            }
+        }
+
+        if (best == null || (bestRate < 0.0 && bestPing == Long.MAX_VALUE))
+            return super.selectDownloadPeer(peers);
+
+        mLogger.info(String.format("download peer %s, %s ping",
+                                   best.getAddress(),
+                                   bestPing == Long.MAX_VALUE ? "unknown"
+                                   : bestPing + " msec"));
+        return best;
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -23,6 +23,8 @@ import com.google.bitcoin.net.discovery.DnsDiscovery;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.SPVBlockStore;
 import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.WalletTransaction;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -32,8 +34,16 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,7 +83,7 @@ public class MyWalletAppKit extends AbstractIdleService {
     private volatile BlockChain vChain;
     private volatile SPVBlockStore vStore;
     private volatile Wallet vWallet;
-    private volatile PeerGroup vPeerGroup;
+    private volatile MyPeerGroup vPeerGroup;
 
     private final File directory;
     private volatile File vWalletFile;
@@ -88,6 +98,12 @@ public class MyWalletAppKit extends AbstractIdleService {
     private final KeyCrypter keyCrypter;
 
     private final long scanTime;
+    private int rewindHeight = -1;
+    private StartupPipeline pipeline;
+    private PeerCache peerCache;
+
+    // Bound on the up front DNS lookup; the PeerGroup discovers again if needed.
+    private static final long DISCOVERY_TIMEOUT_SECS = 5;
 
     public MyWalletAppKit(NetworkParameters params, File directory, String filePrefix, KeyCrypter keyCrypter, long scanTime) {
         this.params = checkNotNull(params);
@@ -115,6 +131,29 @@ public class MyWalletAppKit extends AbstractIdleService {
         }
     }
 
+    /**
+     * Rewinds the existing block store to the given height on startup instead of rescanning from a checkpoint, so
+     * the headers we already have are kept and only the blocks after it are fetched again. Wallet transactions from
+     * those blocks are dropped until they are seen again. If the store doesn't reach back that far this falls back to
+     * a checkpointed rescan from scanTime. Cannot be called after startup.
+     */
+    public MyWalletAppKit setRewindHeight(int height) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        this.rewindHeight = height;
+        return this;
+    }
+
+    /**
+     * Runs the independent parts of startup (block store, wallet load and peer discovery) as phases of the given
+     * pipeline, so they overlap with each other and with whatever else the caller has submitted to it. Without one
+     * a private pipeline is used. Cannot be called after startup.
+     */
+    public MyWalletAppKit setStartupPipeline(StartupPipeline pipeline) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        this.pipeline = pipeline;
+        return this;
+    }
+
     /** If true, the wallet will save itself to disk automatically whenever it changes. */
     public MyWalletAppKit setAutoSave(boolean value) {
         checkState(state() == State.NEW, "Cannot call after startup");
@@ -171,10 +210,10 @@ public class MyWalletAppKit extends AbstractIdleService {
     /**
      * <p>Override this to load all wallet extensions if any are necessary.</p>
      *
-     * <p>When this is called, chain(), store(), and peerGroup() will return the created objects, however they are not
-     * initialized/started</p>
+     * <p>This runs concurrently with the block store setup, so it is given the wallet being loaded and must not
+     * touch chain(), store() or peerGroup().</p>
      */
-    protected void addWalletExtensions() throws Exception { }
+    protected void addWalletExtensions(Wallet wallet) throws Exception { }
 
     /**
      * This method is invoked on a background thread after all objects are initialised, but before the peer group
@@ -191,49 +230,124 @@ public class MyWalletAppKit extends AbstractIdleService {
                 throw new IOException("Could not create named directory.");
             }
         }
-        FileInputStream walletStream = null;
+        final StartupPipeline pipeline = (this.pipeline != null) ? this.pipeline : new StartupPipeline();
         try {
-            File chainFile = new File(directory, filePrefix + ".spvchain");
-            boolean chainFileExists = chainFile.exists();
+            final File chainFile = new File(directory, filePrefix + ".spvchain");
             vWalletFile = new File(directory, filePrefix + ".wallet");
-            boolean shouldReplayWallet = vWalletFile.exists() && !chainFileExists;
-
-            vStore = new SPVBlockStore(params, chainFile);
-            if (!chainFileExists && checkpoints != null) {
-                mLogger.info(String.format("checkpoint at time %d", scanTime));
-                CheckpointManager.checkpoint(params, checkpoints, vStore, scanTime);
+            final boolean walletFileExists = vWalletFile.exists();
+            final boolean[] shouldReplayWallet = { false };
+
+            // Peer discovery, the block store and the wallet file don't depend on each other, start them all.
+            Future<InetSocketAddress[]> discovery = null;
+            if (peerAddresses == null) {
+                discovery = pipeline.submit("discovery", new Callable<InetSocketAddress[]>() {
+                    public InetSocketAddress[] call() throws Exception {
+                        return new DnsDiscovery(params).getPeers(DISCOVERY_TIMEOUT_SECS, TimeUnit.SECONDS);
+                    }
+                });
             }
+
+            Future<StoredBlock> storeSetup = pipeline.submit("blockstore", new Callable<StoredBlock>() {
+                public StoredBlock call() throws Exception {
+                    boolean chainFileExists = chainFile.exists();
+                    shouldReplayWallet[0] = walletFileExists && !chainFileExists;
+                    vStore = new SPVBlockStore(params, chainFile);
+                    StoredBlock rewindTo = null;
+                    if (chainFileExists && rewindHeight >= 0) {
+                        rewindTo = findStoredBlock(vStore, rewindHeight);
+                        if (rewindTo != null) {
+                            mLogger.info(String.format("rewinding block store from %d to %d",
+                                                       vStore.getChainHead().getHeight(), rewindTo.getHeight()));
+                            vStore.setChainHead(rewindTo);
+                        } else {
+                            // The store only keeps the most recent headers.
+                            mLogger.info(String.format("height %d not in block store, rescanning", rewindHeight));
+                            vStore.close();
+                            if (!chainFile.delete())
+                                throw new IOException("Could not delete " + chainFile);
+                            chainFileExists = false;
+                            shouldReplayWallet[0] = walletFileExists;
+                            vStore = new SPVBlockStore(params, chainFile);
+                        }
+                    }
+                    if (!chainFileExists && checkpoints != null) {
+                        mLogger.info(String.format("checkpoint at time %d", scanTime));
+                        CheckpointManager.checkpoint(params, checkpoints, vStore, scanTime);
+                    }
+                    return rewindTo;
+                }
+            });
+
+            Future<Wallet> walletLoad = pipeline.submit("wallet", new Callable<Wallet>() {
+                public Wallet call() throws Exception {
+                    Wallet wallet;
+                    if (walletFileExists) {
+                        FileInputStream walletStream = new FileInputStream(vWalletFile);
+                        try {
+                            wallet = new Wallet(params);
+                            addWalletExtensions(wallet); // All extensions must be present before we deserialize
+                            new WalletProtobufSerializer().readWallet(WalletProtobufSerializer.parseToProto(walletStream), wallet);
+                        } finally {
+                            walletStream.close();
+                        }
+                    } else {
+                        wallet = new Wallet(params, keyCrypter);
+                        addWalletExtensions(wallet);
+                    }
+                    return wallet;
+                }
+            });
+
+            StoredBlock rewindTo = pipeline.await(storeSetup);
             vChain = new BlockChain(params, vStore);
-            vPeerGroup = new PeerGroup(params, vChain);
+            vPeerGroup = new MyPeerGroup(params, vChain);
             if (this.userAgent != null)
                 vPeerGroup.setUserAgent(userAgent, version);
-            if (vWalletFile.exists()) {
-                walletStream = new FileInputStream(vWalletFile);
-                vWallet = new Wallet(params);
-                addWalletExtensions(); // All extensions must be present before we deserialize
-                new WalletProtobufSerializer().readWallet(WalletProtobufSerializer.parseToProto(walletStream), vWallet);
-                if (shouldReplayWallet)
+
+            vWallet = pipeline.await(walletLoad);
+            if (walletFileExists) {
+                if (shouldReplayWallet[0])
                     vWallet.clearTransactions(0);
-            } else {
-                vWallet = new Wallet(params, keyCrypter);
-                // vWallet.addKey(new ECKey());
-                addWalletExtensions();
+                else if (rewindTo != null)
+                    rewindWallet(vWallet, rewindTo);
             }
             if (useAutoSave) vWallet.autosaveToFile(vWalletFile, 1, TimeUnit.SECONDS, null);
             // Set up peer addresses or discovery first, so if wallet extensions try to broadcast a transaction
             // before we're actually connected the broadcast waits for an appropriate number of connections.
             if (peerAddresses != null) {
                 for (PeerAddress addr : peerAddresses) vPeerGroup.addAddress(addr);
+                // Broadcasts wait for half the max connections, so with a single local node this must be 1.
+                vPeerGroup.setMaxConnections(peerAddresses.length);
                 peerAddresses = null;
             } else {
+                // Peers which were good last time are tried right away, while discovery runs.
+                peerCache = new PeerCache(new File(directory, filePrefix + ".peers"));
+                vPeerGroup.addEventListener(peerCache, Threading.SAME_THREAD);
+                List<PeerAddress> cached = peerCache.getPeers(params.getPort());
+                for (PeerAddress addr : cached) vPeerGroup.addAddress(addr);
+                mLogger.info(String.format("trying %d cached peers", cached.size()));
+
+                // Hand over the prefetched peers when they arrive, without waiting on them here. The PeerGroup
+                // only falls back on its own discovery if it runs out of addresses.
+                final Future<InetSocketAddress[]> discovered = discovery;
+                pipeline.submit("peers", new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        InetSocketAddress[] addrs = pipeline.await(discovered);
+                        for (InetSocketAddress addr : addrs)
+                            vPeerGroup.addAddress(new PeerAddress(addr));
+                        return addrs.length;
+                    }
+                }, discovered);
                 vPeerGroup.addPeerDiscovery(new DnsDiscovery(params));
             }
             vChain.addWallet(vWallet);
             vPeerGroup.addWallet(vWallet);
+            recordFirstPeer(pipeline);
             onSetupCompleted();
 
             if (blockingStartup) {
                 vPeerGroup.startAndWait();
+                vPeerGroup.startMonitor();
                 // Make sure we shut down cleanly.
                 installShutdownHook();
                 MyDownloadListener listener = (this.downloadListener != null) ? this.downloadListener : new MyDownloadListener();
@@ -243,6 +357,7 @@ public class MyWalletAppKit extends AbstractIdleService {
                 Futures.addCallback(vPeerGroup.start(), new FutureCallback<State>() {
                     @Override
                     public void onSuccess(State result) {
+                        vPeerGroup.startMonitor();
                         final PeerEventListener l = downloadListener == null ? new MyDownloadListener() : downloadListener;
                         vPeerGroup.startBlockChainDownload(l);
                     }
@@ -256,8 +371,89 @@ public class MyWalletAppKit extends AbstractIdleService {
         } catch (BlockStoreException e) {
             throw new IOException(e);
         } finally {
-            if (walletStream != null) walletStream.close();
+            if (this.pipeline == null)
+                pipeline.shutdown();
+        }
+    }
+
+    /** Records the time to the first connected peer as a startup phase. */
+    private void recordFirstPeer(final StartupPipeline pipeline) {
+        final long t0 = System.currentTimeMillis();
+        vPeerGroup.addEventListener(new AbstractPeerEventListener() {
+            private final AtomicBoolean first = new AtomicBoolean(true);
+
+            @Override
+            public void onPeerConnected(Peer peer, int peerCount) {
+                if (first.getAndSet(false)) {
+                    pipeline.record("first peer", t0);
+                    vPeerGroup.removeEventListener(this);
+                }
+            }
+        }, Threading.SAME_THREAD);
+    }
+
+    /** Walks back from the chain head, returns null if the store doesn't reach back to height. */
+    private static StoredBlock findStoredBlock(SPVBlockStore store, int height) throws BlockStoreException {
+        StoredBlock block = store.getChainHead();
+        while (block != null && block.getHeight() > height)
+            block = block.getPrev(store);
+        return block;
+    }
+
+    /**
+     * Drops the wallet transactions in blocks after rewindTo, since they will be received again, and backs their
+     * spends out of the transactions which are kept. Kept transactions spending a dropped one are disconnected from
+     * it; the wallet connects them to the copy received again. The wallet can only clear all of its transactions, so
+     * the kept ones are added back afterwards.
+     */
+    private static void rewindWallet(Wallet wallet, StoredBlock rewindTo) {
+        int height = rewindTo.getHeight();
+        List<WalletTransaction> kept = new ArrayList<WalletTransaction>();
+        Set<Sha256Hash> dropped = new HashSet<Sha256Hash>();
+        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+            TransactionConfidence conf = wtx.getTransaction().getConfidence();
+            if (conf.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING &&
+                conf.getAppearedAtChainHeight() > height)
+                dropped.add(wtx.getTransaction().getHash());
+            else
+                kept.add(wtx);
         }
+
+        wallet.clearTransactions(0);
+
+        for (WalletTransaction wtx : kept) {
+            Transaction tx = wtx.getTransaction();
+            WalletTransaction.Pool pool = wtx.getPool();
+
+            // Outputs spent by dropped transactions are unspent until the spend is received again.
+            for (TransactionOutput out : tx.getOutputs()) {
+                TransactionInput spentBy = out.getSpentBy();
+                if (spentBy != null && dropped.contains(spentBy.getParentTransaction().getHash())) {
+                    out.markAsUnspent();
+                    if (pool == WalletTransaction.Pool.SPENT)
+                        pool = WalletTransaction.Pool.UNSPENT;
+                }
+            }
+
+            // Inputs still point at the dropped parent objects; let go of them.
+            for (TransactionInput in : tx.getInputs()) {
+                if (dropped.contains(in.getOutpoint().getHash()))
+                    in.disconnect();
+            }
+
+            // The depth counts up again as the blocks are reconnected.
+            TransactionConfidence conf = tx.getConfidence();
+            if (conf.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                conf.setDepthInBlocks(height - conf.getAppearedAtChainHeight() + 1);
+
+            wallet.addWalletTransaction(new WalletTransaction(pool, tx));
+        }
+
+        wallet.setLastBlockSeenHeight(height);
+        wallet.setLastBlockSeenHash(rewindTo.getHeader().getHash());
+
+        mLogger.info(String.format("rewound wallet to %d: kept %d transactions, dropped %d",
+                                   height, kept.size(), dropped.size()));
     }
 
     private void installShutdownHook() {
@@ -283,7 +479,10 @@ public class MyWalletAppKit extends AbstractIdleService {
         setAutoStop(false);	// Won't need this anymore.
         // Runs in a separate thread.
         try {
+            vPeerGroup.stopMonitor();
             vPeerGroup.stopAndWait();
+            if (peerCache != null)
+                peerCache.save();
             vWallet.saveToFile(vWalletFile);
             vStore.close();
 
@@ -316,7 +515,7 @@ public class MyWalletAppKit extends AbstractIdleService {
         return vWallet;
     }
 
-    public PeerGroup peerGroup() {
+    public MyPeerGroup peerGroup() {
         checkState(state() == State.STARTING || state() == State.RUNNING, "Cannot call until startup is complete");
         return vPeerGroup;
     }
@@ -0,0 +1,92 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.RegTestParams;
+import com.google.bitcoin.params.TestNet3Params;
+import com.google.bitcoin.params.UnitTestParams;
+
+// The networks the wallet can run on.  The regtest and unittest
+// networks have no DNS seeds or checkpoints; they are for running
+// against a local node, so by default they only connect to localhost.
+//
+public enum NetworkMode {
+    MAIN		("main"),
+    TEST		("testnet"),
+    REGTEST		("regtest"),
+    UNITTEST	("unittest");
+
+    private final String	mName;
+
+    private NetworkMode(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    // Returns the mode with the given name, or null.
+    public static NetworkMode fromName(String name) {
+        for (NetworkMode mode : values())
+            if (mode.mName.equals(name))
+                return mode;
+        return null;
+    }
+
+    public NetworkParameters getParams() {
+        switch (this) {
+        case MAIN:		return MainNetParams.get();
+        case TEST:		return TestNet3Params.get();
+        case REGTEST:	return RegTestParams.get();
+        default:		return UnitTestParams.get();
+        }
+    }
+
+    // The bundled checkpoints asset, or null if there are none.
+    public String getCheckpointsName() {
+        switch (this) {
+        case MAIN:		return "checkpoints";
+        case TEST:		return "checkpoints-testnet";
+        default:		return null;
+        }
+    }
+
+    public boolean isLocal() {
+        return this == REGTEST || this == UNITTEST;
+    }
+
+    // Names the wallet files (.hdwallet, .wallet, .spvchain, ...).
+    // The main and testnet builds are separate apps and keep the
+    // original name; the local networks get their own so they can't
+    // overwrite a real wallet in the same directory.
+    public String getFilePrefix() {
+        return isLocal() ? "wallet32-" + mName : "wallet32";
+    }
+
+    // Peers to use when none are configured, null to discover them.
+    public String getDefaultPeerNodes() {
+        return isLocal() ? "localhost" : null;
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
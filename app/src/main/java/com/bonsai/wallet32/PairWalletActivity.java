@@ -174,7 +174,6 @@ public class PairWalletActivity extends ActionBarActivity {
             WalletApplication wallapp =
                 (WalletApplication) getApplicationContext();
             NetworkParameters params = Constants.getNetworkParameters(wallapp);
-            String filePrefix = "wallet32";
 
             // Setup a wallet with the restore seed.
             HDWallet hdwallet;
@@ -0,0 +1,178 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.AddressFormatException;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.uri.BitcoinURI;
+import com.google.bitcoin.uri.BitcoinURIParseException;
+
+// A list of payments to make in one transaction.  Parsed from a list
+// of entries separated by newlines or semicolons, each either
+// "address,amount" with the amount in coins or a payment URI with an
+// amount.  A first line of "address,amount" is taken as a CSV header.
+//
+public class PaymentBatch {
+
+    public static class Payment {
+        public final Address	mAddress;
+        public final long		mAmount;
+
+        public Payment(Address address, long amount) {
+            mAddress = address;
+            mAmount = amount;
+        }
+    }
+
+    private final List<Payment>		mPayments;
+
+    public PaymentBatch(List<Payment> payments) {
+        if (payments.isEmpty())
+            throw new IllegalArgumentException("no payments");
+        mPayments = Collections.unmodifiableList
+            (new ArrayList<Payment>(payments));
+    }
+
+    public List<Payment> getPayments() {
+        return mPayments;
+    }
+
+    public int size() {
+        return mPayments.size();
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (Payment pay : mPayments)
+            total += pay.mAmount;
+        return total;
+    }
+
+    public long getMinAmount() {
+        long min = Long.MAX_VALUE;
+        for (Payment pay : mPayments)
+            min = Math.min(min, pay.mAmount);
+        return min;
+    }
+
+    // Spaces aren't separators; a URI label may have them unencoded.
+    private static List<String> entries(String text) {
+        List<String> entries = new ArrayList<String>();
+        for (String entry : text.split("[\\r\\n;]+")) {
+            entry = entry.trim();
+            if (entry.length() > 0)
+                entries.add(entry);
+        }
+        return entries;
+    }
+
+    // True if the text is laid out as a list: more than one entry.
+    public static boolean isList(String text) {
+        return entries(text).size() > 1;
+    }
+
+    // True if the text is a list, or a single CSV entry, and every
+    // entry parses.  A lone address or URI is not a batch.
+    public static boolean isBatch(NetworkParameters params, String text) {
+        List<String> entries = entries(text);
+        if (entries.isEmpty() ||
+            (entries.size() == 1 && entries.get(0).indexOf(',') == -1))
+            return false;
+        try {
+            parse(params, text);
+            return true;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    // Throws IllegalArgumentException, saying which entry is bad.
+    public static PaymentBatch parse(NetworkParameters params, String text)
+        throws IllegalArgumentException {
+
+        List<Payment> payments = new ArrayList<Payment>();
+        List<String> entries = entries(text);
+        for (int ii = 0; ii < entries.size(); ++ii) {
+            String entry = entries.get(ii);
+            if (ii == 0 && entry.replaceAll("\\s", "")
+                .equalsIgnoreCase("address,amount"))
+                continue;	// CSV header
+            try {
+                payments.add(parseEntry(params, entry));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException
+                    (String.format("entry %d \"%s\": %s",
+                                   ii + 1, entry, ex.getMessage()));
+            }
+        }
+        return new PaymentBatch(payments);
+    }
+
+    private static Payment parseEntry(NetworkParameters params, String entry)
+        throws IllegalArgumentException {
+
+        // Only a URI has a colon; its label may have commas.
+        String[] fields = entry.split(",", -1);
+        if (fields.length == 1 || entry.indexOf(':') != -1) {
+            try {
+                BitcoinURI uri = new BitcoinURI(params, entry);
+                if (uri.getAddress() == null || uri.getAmount() == null)
+                    throw new IllegalArgumentException
+                        ("needs an address and amount");
+                return new Payment(uri.getAddress(),
+                                   uri.getAmount().longValue());
+            } catch (BitcoinURIParseException ex) {
+                throw new IllegalArgumentException(ex.getMessage());
+            }
+        }
+
+        if (fields.length != 2)
+            throw new IllegalArgumentException("needs an address and amount");
+
+        Address address;
+        try {
+            address = new Address(params, fields[0].trim());
+        } catch (AddressFormatException ex) {
+            throw new IllegalArgumentException("bad address");
+        }
+
+        BigInteger amount;
+        try {
+            amount = Utils.toNanoCoins(fields[1].trim());
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException(ex.getMessage());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("bad amount");
+        }
+        if (amount.signum() <= 0)
+            throw new IllegalArgumentException("bad amount");
+
+        return new Payment(address, amount.longValue());
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,298 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerAddress;
+
+// Remembers peers we've connected to, with their ping time and how
+// long they stayed up, so the next start can try them right away
+// instead of waiting on the DNS seeds.  Peers which fail to connect
+// a few times in a row, or haven't been good for a while, age out.
+// The listener runs on the network thread, so saves made as peers
+// connect are handed to a worker thread.
+//
+public class PeerCache extends AbstractPeerEventListener {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(PeerCache.class);
+
+    private static final int	VERSION = 1;
+
+    // Most peers kept, best first.
+    private static final int	MAX_ENTRIES = 32;
+
+    // Dropped after this many failed connects in a row ...
+    private static final int	MAX_FAILURES = 3;
+
+    // ... or this long without a good connection.
+    private static final long	MAX_AGE_MSECS = 14L * 24 * 60 * 60 * 1000;
+
+    // Saves made as peers connect are at least this far apart.
+    private static final long	SAVE_INTERVAL_MSECS = 60 * 1000;
+
+    private static class Entry {
+        public final String		mHost;
+        public final int		mPort;
+        public long				mLastGood = 0;
+        public long				mPingMsecs = Long.MAX_VALUE;
+        public long				mUptimeMsecs = 0;
+        public int				mFailures = 0;
+
+        public Entry(String host, int port) {
+            mHost = host;
+            mPort = port;
+        }
+    }
+
+    private final File					mFile;
+    private final Map<String, Entry>	mEntries =
+        new HashMap<String, Entry>();
+
+    // Connect times of the peers connected now.
+    private final Map<Peer, Long>		mConnected =
+        new HashMap<Peer, Long>();
+
+    private long						mLastSave = 0;
+
+    private final ExecutorService		mWorker =
+        Executors.newSingleThreadExecutor();
+
+    // Keeps a final save from racing one on the worker.
+    private final Object				mWriteLock = new Object();
+
+    public PeerCache(File file) {
+        mFile = file;
+        load();
+    }
+
+    // Cached peers, lowest ping first, for the given port (the
+    // network's); entries for other networks are ignored.
+    public synchronized List<PeerAddress> getPeers(int port) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Entry entry : mEntries.values())
+            if (entry.mPort == port)
+                entries.add(entry);
+        Collections.sort(entries, mBestFirst);
+
+        List<PeerAddress> addrs = new ArrayList<PeerAddress>();
+        for (Entry entry : entries) {
+            try {
+                addrs.add(new PeerAddress(InetAddress.getByName(entry.mHost),
+                                          entry.mPort));
+            } catch (IOException ex) {
+                // Numeric, so shouldn't happen.
+            }
+        }
+        return addrs;
+    }
+
+    @Override
+    public void onPeerConnected(Peer peer, int peerCount) {
+        synchronized (this) {
+            mConnected.put(peer, System.currentTimeMillis());
+            Entry entry = getEntry(peer);
+            entry.mLastGood = System.currentTimeMillis();
+            entry.mFailures = 0;
+        }
+        maybeSave();
+    }
+
+    @Override
+    public synchronized void onPeerDisconnected(Peer peer, int peerCount) {
+        Long connected = mConnected.remove(peer);
+        if (connected != null) {
+            update(getEntry(peer), peer, connected);
+            return;
+        }
+
+        // It never got connected; only count it against cached peers.
+        String key = key(peer.getAddress());
+        Entry entry = mEntries.get(key);
+        if (entry != null && ++entry.mFailures >= MAX_FAILURES)
+            mEntries.remove(key);
+    }
+
+    // Writes the cache, counting the peers still connected as good,
+    // and stops the worker.  Called once, on shutdown.
+    public void save() {
+        synchronized (this) {
+            for (Map.Entry<Peer, Long> me : mConnected.entrySet())
+                update(getEntry(me.getKey()), me.getKey(), me.getValue());
+            mConnected.clear();
+            mWorker.shutdown();
+        }
+        write();
+    }
+
+    private synchronized void maybeSave() {
+        long now = System.currentTimeMillis();
+        if (now - mLastSave < SAVE_INTERVAL_MSECS || mWorker.isShutdown())
+            return;
+        mLastSave = now;
+        mWorker.execute(new Runnable() {
+                public void run() {
+                    write();
+                }
+            });
+    }
+
+    private void update(Entry entry, Peer peer, long connected) {
+        long now = System.currentTimeMillis();
+        entry.mLastGood = now;
+        entry.mUptimeMsecs += now - connected;
+        long ping = peer.getPingTime();
+        if (ping != Long.MAX_VALUE)
+            entry.mPingMsecs = ping;
+    }
+
+    private Entry getEntry(Peer peer) {
+        PeerAddress addr = peer.getAddress();
+        String key = key(addr);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(addr.getAddr().getHostAddress(), addr.getPort());
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static String key(PeerAddress addr) {
+        return addr.getAddr().getHostAddress() + ":" + addr.getPort();
+    }
+
+    // Peers with a known ping first, then those which stayed up
+    // longest.
+    private static final Comparator<Entry> mBestFirst =
+        new Comparator<Entry>() {
+            public int compare(Entry lhs, Entry rhs) {
+                if (lhs.mPingMsecs != rhs.mPingMsecs)
+                    return lhs.mPingMsecs < rhs.mPingMsecs ? -1 : 1;
+                if (lhs.mUptimeMsecs != rhs.mUptimeMsecs)
+                    return lhs.mUptimeMsecs > rhs.mUptimeMsecs ? -1 : 1;
+                return 0;
+            }
+        };
+
+    private synchronized void load() {
+        if (!mFile.exists())
+            return;
+        long now = System.currentTimeMillis();
+        try {
+            DataInputStream dis =
+                new DataInputStream(new FileInputStream(mFile));
+            try {
+                if (dis.readInt() != VERSION)
+                    return;
+                int numEntries = dis.readInt();
+                for (int ii = 0; ii < numEntries; ++ii) {
+                    Entry entry = new Entry(dis.readUTF(), dis.readInt());
+                    entry.mLastGood = dis.readLong();
+                    entry.mPingMsecs = dis.readLong();
+                    entry.mUptimeMsecs = dis.readLong();
+                    entry.mFailures = dis.readInt();
+                    if (now - entry.mLastGood < MAX_AGE_MSECS)
+                        mEntries.put(entry.mHost + ":" + entry.mPort, entry);
+                }
+            } finally {
+                dis.close();
+            }
+            mLogger.info(String.format("loaded %d cached peers",
+                                       mEntries.size()));
+        } catch (IOException ex) {
+            mLogger.warn("trouble reading peer cache: " + ex.toString());
+            mEntries.clear();
+        }
+    }
+
+    private void write() {
+        synchronized (mWriteLock) {
+            writeLocked();
+        }
+    }
+
+    private void writeLocked() {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<Entry>(mEntries.values());
+            Collections.sort(entries, mBestFirst);
+            if (entries.size() > MAX_ENTRIES)
+                entries = entries.subList(0, MAX_ENTRIES);
+
+            // Snapshot the fields while we hold the lock.
+            List<Entry> copy = new ArrayList<Entry>();
+            for (Entry entry : entries) {
+                Entry ee = new Entry(entry.mHost, entry.mPort);
+                ee.mLastGood = entry.mLastGood;
+                ee.mPingMsecs = entry.mPingMsecs;
+                ee.mUptimeMsecs = entry.mUptimeMsecs;
+                ee.mFailures = entry.mFailures;
+                copy.add(ee);
+            }
+            entries = copy;
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream dos =
+                new DataOutputStream(new FileOutputStream(tmpFile));
+            try {
+                dos.writeInt(VERSION);
+                dos.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    dos.writeUTF(entry.mHost);
+                    dos.writeInt(entry.mPort);
+                    dos.writeLong(entry.mLastGood);
+                    dos.writeLong(entry.mPingMsecs);
+                    dos.writeLong(entry.mUptimeMsecs);
+                    dos.writeInt(entry.mFailures);
+                }
+            } finally {
+                dos.close();
+            }
+            if (!tmpFile.renameTo(mFile))
+                mLogger.warn("couldn't rename peer cache");
+        } catch (IOException ex) {
+            mLogger.warn("trouble writing peer cache: " + ex.toString());
+        }
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -119,8 +119,6 @@ public class RestoreWalletActivity extends ActionBarActivity {
         NetworkParameters params =
             Constants.getNetworkParameters(getApplicationContext());
 
-        String filePrefix = "wallet32";
-
         EditText hextxt = (EditText) findViewById(R.id.seed);
         EditText mnemonictxt = (EditText) findViewById(R.id.mnemonic);
 
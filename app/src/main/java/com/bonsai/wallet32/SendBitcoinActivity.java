@@ -47,7 +47,7 @@ import android.widget.TableRow;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.bonsai.wallet32.WalletService.AmountAndFee;
+import com.bonsai.wallet32.WalletEngine.AmountAndFee;
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.InsufficientMoneyException;
@@ -64,6 +64,7 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
         LoggerFactory.getLogger(SendBitcoinActivity.class);
 
     protected EditText mToAddressEditText;
+    protected TextView mBatchSummaryTextView;
 
     protected EditText mBTCAmountEditText;
     protected EditText mFiatAmountEditText;
@@ -76,6 +77,10 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
 
 	protected String mLastUnitStr = "";
 
+    // Set when the to address is a list of payments.  The list stays
+    // in the to field as typed; the summary view describes it.
+    protected PaymentBatch mBatch = null;
+
     @SuppressLint({ "HandlerLeak", "DefaultLocale" })
 	@Override
     public void onCreate(Bundle savedInstanceState) {
@@ -97,6 +102,8 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
         mToAddressEditText = (EditText) findViewById(R.id.to_address);
         mToAddressEditText.addTextChangedListener(mToAddressWatcher);
 
+        mBatchSummaryTextView = (TextView) findViewById(R.id.batch_summary);
+
         mBTCAmountEditText = (EditText) findViewById(R.id.amount_btc);
         mBTCAmountEditText.addTextChangedListener(mBTCAmountWatcher);
 
@@ -512,6 +519,27 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
         NetworkParameters params =
             mWalletService == null ? null : mWalletService.getParams();
 
+        // Is this a list of payments?
+        if (PaymentBatch.isBatch(params, toval)) {
+            setBatch(PaymentBatch.parse(params, toval));
+            mToAddressEditText.addTextChangedListener(mToAddressWatcher);
+            return;
+        }
+        setBatch(null);
+
+        // A list with a bad entry; say which rather than treating
+        // the whole thing as an address.
+        if (PaymentBatch.isList(toval)) {
+            try {
+                PaymentBatch.parse(params, toval);
+            } catch (IllegalArgumentException ex) {
+                showBatchSummary(mRes.getString(R.string.send_error_badbatch,
+                                                ex.getMessage()));
+            }
+            mToAddressEditText.addTextChangedListener(mToAddressWatcher);
+            return;
+        }
+
         // Is this a bitcoin URI?
         try {
             BitcoinURI uri = new BitcoinURI(params, toval);
@@ -551,6 +579,28 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
         mToAddressEditText.addTextChangedListener(mToAddressWatcher);
     }
 
+    // The amount comes from the batch while there is one.
+    private void setBatch(PaymentBatch batch) {
+        mBatch = batch;
+        mBTCAmountEditText.setEnabled(batch == null);
+        mFiatAmountEditText.setEnabled(batch == null);
+        if (batch == null) {
+            showBatchSummary(null);
+            return;
+        }
+        String total = mBTCFmt.format(batch.getTotal());
+        showBatchSummary(mRes.getString(R.string.send_batch_summary,
+                                        batch.size(),
+                                        total + " " + mBTCFmt.unitStr()));
+        mBTCAmountEditText.setText(total, TextView.BufferType.EDITABLE);
+    }
+
+    private void showBatchSummary(String text) {
+        mBatchSummaryTextView.setText(text == null ? "" : text);
+        mBatchSummaryTextView.setVisibility(text == null ?
+                                            View.GONE : View.VISIBLE);
+    }
+
     @SuppressLint("DefaultLocale")
 	protected void onActivityResult(final int requestCode,
                                     final int resultCode,
@@ -597,11 +647,16 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
             return;
         }
 
-        new SetFeeToRecommendedTask().execute(amount);
+        new SetFeeToRecommendedTask(mBatch).execute(amount);
     }
 
     private class SetFeeToRecommendedTask extends AsyncTask<Long, Void, Long> {
         private ProgressDialog progressDialog;
+        private PaymentBatch batch;
+
+        public SetFeeToRecommendedTask(PaymentBatch batch) {
+            this.batch = batch;
+        }
 
         @Override
         protected void onPreExecute() {
@@ -616,9 +671,12 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
 
             Long fee = null;
             try {
-                fee = mWalletService.computeRecommendedFee(mCheckedFromId,
-                                                           amount,
-                                                           spendUnconfirmed());
+                if (batch != null)
+                    fee = mWalletService.computeRecommendedFee
+                        (mCheckedFromId, batch, spendUnconfirmed());
+                else
+                    fee = mWalletService.computeRecommendedFee
+                        (mCheckedFromId, amount, spendUnconfirmed());
             } catch (IllegalArgumentException ex) {
                 // just return null fee
             } catch (InsufficientMoneyException ex) {
@@ -659,6 +717,11 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
             return;
         }
 
+        if (mBatch != null) {
+            showErrorDialog(mRes.getString(R.string.send_error_batch_useall));
+            return;
+        }
+
         new UseAllTask().execute();
     }
 
@@ -760,6 +823,12 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
             return;
         }
 
+        // The dialogs show the summary rather than the whole list.
+        if (mBatch != null) {
+            amount = mBatch.getTotal();
+            addrString = mBatchSummaryTextView.getText().toString();
+        }
+
         // Check to make sure we have enough money for this send.
         long avail = spendUnconfirmed() ?
             mWalletService.balanceForAccount(mCheckedFromId) :
@@ -772,7 +841,10 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
         // Check the recommended fee, generate warning dialog or
         // confirm send dialog ...
         try {
-            long recFee =
+            long recFee = mBatch != null ?
+                mWalletService.computeRecommendedFee(mCheckedFromId,
+                                                     mBatch,
+                                                     spendUnconfirmed()) :
                 mWalletService.computeRecommendedFee(mCheckedFromId,
                                                      amount,
                                                      spendUnconfirmed());
@@ -861,11 +933,17 @@ public class SendBitcoinActivity extends BaseWalletActivity implements BitcoinSe
                           acctId, addrString,
                           mBTCFmt.format(amount), mBTCFmt.format(fee)));
 
-            mWalletService.sendCoinsFromAccount(acctId,
-                                                addrString,
-                                                amount,
-                                                fee,
-                                                spendUnconfirmed());
+            if (mBatch != null)
+                mWalletService.sendBatchFromAccount(acctId,
+                                                    mBatch,
+                                                    fee,
+                                                    spendUnconfirmed());
+            else
+                mWalletService.sendCoinsFromAccount(acctId,
+                                                    addrString,
+                                                    amount,
+                                                    fee,
+                                                    spendUnconfirmed());
 
             mLogger.info("send finished");
 
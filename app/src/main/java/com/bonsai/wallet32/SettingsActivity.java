@@ -59,8 +59,12 @@ public class SettingsActivity extends PreferenceActivity {
     public static final String KEY_BTC_UNITS = "pref_btcUnits";
     public static final String KEY_FIAT_RATE_SOURCE = "pref_fiatRateSource";
     public static final String KEY_BACKGROUND_TIMEOUT = "pref_backgroundTimeout";
+    public static final String KEY_BLOOM_LOOKAHEAD = "pref_bloomLookahead";
+    public static final String KEY_BLOOM_BUDGET = "pref_bloomBudget";
     public static final String KEY_RESCAN_BLOCKCHAIN = "pref_rescanBlockchain";
     public static final String KEY_EXPERIMENTAL = "pref_experimental";
+    public static final String KEY_NETWORK_MODE = "pref_networkMode";
+    public static final String KEY_PEER_NODES = "pref_peerNodes";
 
     private WalletService	mWalletService = null;
     private SettingsActivity	mThis;
@@ -273,6 +277,12 @@ public class SettingsActivity extends PreferenceActivity {
             // Remove the Add Wallet option.
             pref = prefScreen.findPreference("pref_addWallet");
             prefScreen.removePreference(pref);
+
+            // Remove the local network options.
+            pref = prefScreen.findPreference(KEY_NETWORK_MODE);
+            prefScreen.removePreference(pref);
+            pref = prefScreen.findPreference(KEY_PEER_NODES);
+            prefScreen.removePreference(pref);
         }
     }
 
@@ -0,0 +1,127 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Runs the independent parts of wallet startup concurrently.  Each
+// phase is named, lists the phases it depends on, and starts as soon
+// as they are done.  The wall clock time of each phase, not counting
+// the wait for its dependencies, is logged and kept for reporting.
+//
+public class StartupPipeline {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(StartupPipeline.class);
+
+    private final ExecutorService	mExecutor =
+        Executors.newCachedThreadPool();
+
+    private final long				mStartTime = System.currentTimeMillis();
+
+    private final Map<String, Long>	mTimings =
+        new LinkedHashMap<String, Long>();
+
+    // Starts a phase once all of deps have finished.  If one of them
+    // failed this phase fails with the same cause.
+    public <T> Future<T> submit(final String name,
+                                final Callable<T> task,
+                                final Future<?>... deps) {
+        return mExecutor.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    for (Future<?> dep : deps)
+                        await(dep);
+
+                    long t0 = System.currentTimeMillis();
+                    try {
+                        return task.call();
+                    }
+                    catch (Exception ex) {
+                        mLogger.error("startup phase " + name + " failed: " +
+                                      ex.toString());
+                        throw ex;
+                    }
+                    finally {
+                        record(name, t0);
+                    }
+                }
+            });
+    }
+
+    // Waits for a phase and returns its result, rethrowing what it
+    // threw.
+    public <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    // Times work done on the calling thread as a phase too.
+    public void record(String name, long t0) {
+        long now = System.currentTimeMillis();
+        synchronized (mTimings) {
+            mTimings.put(name, now - t0);
+        }
+        mLogger.info(String.format("startup phase %s took %d msec, "
+                                   + "done at +%d msec",
+                                   name, now - t0, now - mStartTime));
+    }
+
+    // Phase name to msec, in order of completion.
+    public Map<String, Long> getTimings() {
+        synchronized (mTimings) {
+            return new LinkedHashMap<String, Long>(mTimings);
+        }
+    }
+
+    public long elapsed() {
+        return System.currentTimeMillis() - mStartTime;
+    }
+
+    // Lets idle threads go; phases already running finish.
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -19,6 +19,8 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -48,7 +50,7 @@ import com.google.bitcoin.crypto.KeyCrypter;
 import hashengineering.groestlcoin.wallet32.R;
 public class WalletApplication
     extends Application
-    implements OnSharedPreferenceChangeListener {
+    implements OnSharedPreferenceChangeListener, WalletStorage {
 
     private static Logger mLogger =
         LoggerFactory.getLogger(WalletApplication.class);
@@ -285,12 +287,13 @@ public class WalletApplication
             try {
                 child = new File(dir, "salt");
                 child.delete();
-                child = new File(dir, "wallet32.spvchain");
-                child.delete();
-                child = new File(dir, "wallet32.hdwallet");
-                child.delete();
-                child = new File(dir, "wallet32.wallet");
-                child.delete();
+                String prefix = getWalletPrefix();
+                for (String suffix : new String[] {
+                        ".spvchain", ".hdwallet", ".wallet",
+                        ".peers", ".broadcasts" }) {
+                    child = new File(dir, prefix + suffix);
+                    child.delete();
+                }
             }
             catch (Exception ex) {
                 mLogger.error("delete of " + child.toString() + " failed");
@@ -418,7 +421,7 @@ public class WalletApplication
     }
 
     public String getWalletPrefix() {
-        return "wallet32";
+        return Constants.getNetworkMode(this).getFilePrefix();
     }
 
     public File getHDWalletFile(String suffix) {
@@ -428,6 +431,10 @@ public class WalletApplication
         return new File(getWalletDir(), filename);
     }
 
+    public InputStream openAsset(String name) throws IOException {
+        return getAssets().open(name);
+    }
+
 	private void initLogging()
 	{
         // We can't log into the wallet specific directories because
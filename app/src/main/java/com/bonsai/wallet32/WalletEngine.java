@@ -0,0 +1,1073 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.AddressFormatException;
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.Wallet.BalanceType;
+import com.google.bitcoin.core.WrongNetworkException;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterGroestl;
+import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.protobuf.ByteString;
+
+// The wallet sync and balance logic, without any Android in it.  It
+// sets up the wallet app kit over the HDWallet, keeps the HD balances
+// and margins current as the wallet changes, and rewinds or rescans
+// the chain when needed.  The WalletService is one front end and
+// HeadlessWalletRunner, for running on a plain JVM, is another.  The
+// front end runs setup on a thread of its choosing and hears about
+// progress through the Listener.
+//
+public class WalletEngine {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(WalletEngine.class);
+
+    public enum State {
+        SETUP,			// CTOR
+        WALLET_SETUP,	// Setting up wallet app kit.
+        KEYS_ADD,		// Adding keys.
+        PEERING,		// Connecting to peers.
+        SYNCING,		// Many times from sync progress.
+        READY,
+        SHUTDOWN,
+        ERROR
+    }
+
+    public enum SyncState {
+        CREATED,		// First scan after creation.
+        RESTORE,		// Scanning to restore.
+        STARTUP,		// Catching up on startup.
+        RESCAN,			// Rescanning blockchain.
+        RERESCAN,		// Needed to rescan due to margin.
+        SYNCHRONIZED	// We were synchronized.
+    }
+
+    public interface Listener {
+        // The state changed, or sync progress was made.
+        void onStateChanged(State state);
+
+        // The HD balances were updated after a wallet change.
+        void onWalletChanged();
+
+        void onCoinsReceived(Transaction tx, long amount);
+
+        void onCoinsSent(Transaction tx, long amount);
+
+        // The kit was shut down to rescan or rewind; call setup
+        // again with this scan time.
+        void onRestart(long scanTime);
+
+        // A queued transaction's broadcast made progress.
+        void onBroadcastStatus(Transaction tx,
+                               BroadcastQueue.Status status,
+                               int numPeers);
+    }
+
+    // Sees each kit's peer group start and stop, eg. to add peer
+    // listeners of its own.
+    public interface PeerWatcher {
+        void onPeersStarted(PeerGroup peerGroup, AbstractBlockChain chain);
+
+        void onPeersStopping(PeerGroup peerGroup);
+    }
+
+    public static class AmountAndFee {
+        public long		mAmount;
+        public long		mFee;
+        public AmountAndFee(long amt, long fee) {
+            mAmount = amt;
+            mFee = fee;
+        }
+    }
+
+    // Batch wallet file writes during bursts of wallet changes.
+    private static final long	PERSIST_WINDOW_MSECS = 5000;
+
+    // Blocks to rewind past the computed height, in case of a reorg.
+    private static final int	REWIND_SLACK = 6;
+
+    // After keys are added, blocks which arrived before the peers had
+    // the new filter are downloaded again once this long has passed.
+    private static final long	FILTER_SETTLE_MSECS = 10 * 1000;
+
+    private final WalletStorage		mStorage;
+    private final NetworkParameters	mParams;
+    private final String			mCheckpointsName;
+    private final Listener			mListener;
+    private final HDWalletPersister	mPersister;
+    private final BroadcastQueue	mBroadcasts;
+
+    // Runs bloom filter resends, filter catch-up rewinds and look-ahead
+    // changes off the peer and main threads.
+    private final ScheduledExecutorService	mWorker;
+
+    private volatile State		mState = State.SETUP;
+    private SyncState			mSyncState = SyncState.STARTUP;
+    private MyWalletAppKit		mKit;
+    private double				mPercentDone = 0.0;
+    private int					mBlocksToGo;
+    private Date				mScanDate;
+    private long				mMsecsLeft;
+
+    private KeyCrypter			mKeyCrypter;
+    private KeyParameter		mAesKey;
+    private HDWallet			mHDWallet = null;
+
+    private BigInteger			mBalanceAvailable;
+    private BigInteger			mBalanceEstimated;
+
+    private volatile boolean	mReorganized = false;
+
+    // Block store height for the next setup to rewind to.
+    private int					mRewindHeight = -1;
+
+    // Msec taken by each phase of the last setup.
+    private Map<String, Long>	mStartupTimings =
+        new LinkedHashMap<String, Long>();
+
+    // Current bloom filter false positive rate.
+    private double				mBloomFPRate =
+        PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE;
+
+    // Measures filter traffic and tunes mBloomFPRate once synced.
+    private BloomFilterTuner	mBloomTuner = null;
+
+    // Settings, from the preferences on a device.
+    private int					mLookahead = 32;
+    private double				mBloomBudget = 2.0;
+    private boolean				mReduceBloomFalsePositives = false;
+    private String				mPeerNodes = null;
+    private PeerWatcher			mPeerWatcher = null;
+    private PeerGroup			mWatchedPeers = null;
+
+    public WalletEngine(WalletStorage storage,
+                        NetworkParameters params,
+                        String checkpointsName,
+                        Listener listener) {
+        mStorage = storage;
+        mParams = params;
+        mCheckpointsName = checkpointsName;
+        mListener = listener;
+        mPersister = new HDWalletPersister(mStorage, PERSIST_WINDOW_MSECS);
+        mWorker = Executors.newSingleThreadScheduledExecutor();
+        mBroadcasts = new BroadcastQueue
+            (mParams,
+             new File(mStorage.getWalletDir(),
+                      mStorage.getWalletPrefix() + ".broadcasts"),
+             new BroadcastQueue.Listener() {
+                 public void onBroadcastStatus(Transaction tx,
+                                               BroadcastQueue.Status status,
+                                               int numPeers) {
+                     mListener.onBroadcastStatus(tx, status, numPeers);
+                 }
+             });
+    }
+
+    // The passcode salt kept in the wallet directory.
+    public static byte[] readSalt(WalletStorage storage) throws IOException {
+        File saltFile = new File(storage.getWalletDir(), "salt");
+        byte[] salt = new byte[(int) saltFile.length()];
+        DataInputStream dis =
+            new DataInputStream(new FileInputStream(saltFile));
+        try {
+            dis.readFully(salt);
+        } finally {
+            dis.close();
+        }
+        return salt;
+    }
+
+    public static KeyCrypter getKeyCrypter(byte[] salt) {
+        Protos.ScryptParameters scryptParameters =
+            Protos.ScryptParameters.newBuilder()
+            .setSalt(ByteString.copyFrom(salt))
+            .build();
+        return new KeyCrypterGroestl(scryptParameters);
+    }
+
+    // Sets the keys for the wallet files; used by the next setup.
+    public void setCredentials(KeyCrypter keyCrypter, KeyParameter aesKey) {
+        mKeyCrypter = keyCrypter;
+        mAesKey = aesKey;
+    }
+
+    // Only connect to these peers, eg. a local node, given as a comma
+    // separated list of host[:port].  Null discovers peers as usual.
+    // Takes effect on the next setup.
+    public void setPeerNodes(String peerNodes) {
+        mPeerNodes = peerNodes;
+    }
+
+    // Takes effect on the next setup.
+    public void setPeerWatcher(PeerWatcher watcher) {
+        mPeerWatcher = watcher;
+    }
+
+    public void setReduceBloomFalsePositives(boolean reduce) {
+        mReduceBloomFalsePositives = reduce;
+    }
+
+    public void setLookahead(int lookahead) {
+        mLookahead = lookahead;
+        HDChain.setLookahead(lookahead);
+
+        // Grow the chains now if the window got bigger.  This derives
+        // keys, so not on the caller's (main) thread.  The wallet
+        // resends the filter as the keys are added.
+        mWorker.submit(new Runnable() {
+                public void run() {
+                    MyWalletAppKit kit = mKit;
+                    HDWallet hdwallet = mHDWallet;
+                    if (mState != State.READY ||
+                        kit == null || hdwallet == null)
+                        return;
+                    if (hdwallet.ensureMargins(kit.wallet()) > 0)
+                        mPersister.requestPersist(hdwallet);
+                }
+            });
+    }
+
+    // False positive transactions per filtered block to aim for.
+    public void setBloomBudget(double budget) {
+        mBloomBudget = budget;
+        if (mBloomTuner != null)
+            mBloomTuner.setBudget(budget);
+    }
+
+    private MyDownloadListener mkDownloadListener() {
+        return new MyDownloadListener() {
+            protected void progress(double pct,
+                                    int blocksToGo,
+                                    Date date,
+                                    long msecsLeft) {
+                Date cmplDate =
+                    new Date(System.currentTimeMillis() + msecsLeft);
+                mLogger.info(String.format
+                             ("CHAIN DOWNLOAD %d%% DONE WITH %d BLOCKS TO GO, "
+                              + "COMPLETE AT %s",
+                              (int) pct, blocksToGo,
+                              DateFormat
+                              .getDateTimeInstance().format(cmplDate)));
+                mBlocksToGo = blocksToGo;
+                mScanDate = date;
+                mMsecsLeft = msecsLeft;
+                if (mPercentDone != pct) {
+                    mPercentDone = pct;
+                    setState(State.SYNCING);
+                }
+            }
+        };
+    }
+
+    private AbstractWalletEventListener mWalletListener =
+        new AbstractWalletEventListener() {
+            @Override
+			public void onCoinsReceived(Wallet wallet,
+                                        Transaction tx,
+                                        BigInteger prevBalance,
+                                        BigInteger newBalance)
+            {
+                BigInteger amt = newBalance.subtract(prevBalance);
+                mListener.onCoinsReceived(tx, amt.longValue());
+            }
+
+            @Override
+			public void onCoinsSent(Wallet wallet,
+                                    Transaction tx,
+                                    BigInteger prevBalance,
+                                    BigInteger newBalance)
+            {
+                BigInteger amt = prevBalance.subtract(newBalance);
+                mListener.onCoinsSent(tx, amt.longValue());
+            }
+
+            @Override
+            public void onReorganize(Wallet wallet) {
+                // A reorg touches many transactions at once; check
+                // the incremental balances on the next change.
+                mReorganized = true;
+            }
+
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                // Update balances and transaction counts.
+                Iterable<WalletTransaction> iwt =
+                    mKit.wallet().getWalletTransactions();
+                if (mReorganized) {
+                    mReorganized = false;
+                    mHDWallet.verifyBalances(iwt);
+                } else {
+                    mHDWallet.applyChangedTransactions(iwt);
+                }
+
+                // Check to make sure we have sufficient margins.
+                int maxExtended = mHDWallet.ensureMargins(mKit.wallet());
+
+                // The look-ahead covered any payments to the added
+                // addresses.  The wallet resends the filter as the
+                // keys are added; catch up on blocks filtered with
+                // the old one.
+                if (maxExtended > 0 && maxExtended <= HDChain.maxSafeExtend())
+                    scheduleFilterRewind();
+
+                // Persist the new state (batched).
+                mPersister.requestPersist(mHDWallet);
+
+                mListener.onWalletChanged();
+
+                if (maxExtended > HDChain.maxSafeExtend()) {
+                    mLogger.info(String.format("%d addresses added, rescanning",
+                            maxExtended));
+                    rewindBlockchain();
+                }
+            }
+        };
+
+    // The tuner calls this on the peer thread; resend from ours.
+    private BloomFilterTuner.Listener mBloomTunerListener =
+        new BloomFilterTuner.Listener() {
+            public void onRateChanged(final double rate) {
+                mWorker.submit(new Runnable() {
+                        public void run() {
+                            if (mState != State.READY)
+                                return;
+                            mBloomFPRate = rate;
+                            refreshBloomFilter();
+                        }
+                    });
+            }
+        };
+
+    // Sets up the kit and syncs the chain, blocking until it's done.
+    // Returns the most addresses added to a chain by the sync, or
+    // null if the engine was shut down meanwhile.  Call finishSetup
+    // with the result afterwards.
+    //
+    // scanTime  0 : full rescan
+    // scanTime  t : scan from time t
+    //
+    public Integer setup(final long scanTime) {
+        setState(State.WALLET_SETUP);
+
+        mLogger.info("setting up wallet, scanTime=" + scanTime);
+
+        HDChain.setLookahead(mLookahead);
+
+        // Restore the existing wallet while the kit opens the block
+        // store and wallet file; it's only needed once those are done.
+        final StartupPipeline pipeline = new StartupPipeline();
+        mHDWallet = null;
+        final Future<HDWallet> restore =
+            pipeline.submit("hdwallet", new Callable<HDWallet>() {
+                    public HDWallet call() throws IOException {
+                        return HDWallet.restore(mStorage,
+                                                mParams,
+                                                mKeyCrypter,
+                                                mAesKey);
+                    }
+                });
+
+        mLogger.info("creating new wallet app kit");
+
+        // Checkpointing fails on full rescan because the earliest
+        // create time is earlier than the genesis block time.
+        //
+        InputStream chkpntis = null;
+        if (scanTime != 0 && mCheckpointsName != null) {
+            try {
+                chkpntis = mStorage.openAsset(mCheckpointsName);
+            } catch (IOException e) {
+                chkpntis = null;
+            }
+        }
+
+        mKit = new MyWalletAppKit(mParams,
+                                  mStorage.getWalletDir(),
+                                  mStorage.getWalletPrefix(),
+                                  mKeyCrypter,
+                                  scanTime)
+            {
+                @Override
+                protected void addWalletExtensions(Wallet wallet) {
+                    // Must be there before the wallet is read.
+                    KeyImportTracker.forWallet(wallet);
+                }
+
+                @Override
+                protected void onSetupCompleted() {
+                    mHDWallet = awaitHDWallet(pipeline, restore);
+                    if (mHDWallet == null) {
+                        mLogger.error("WalletEngine started with bad HDWallet");
+                        System.exit(0);
+                    }
+
+                    mLogger.info("adding keys");
+
+                    setState(WalletEngine.State.KEYS_ADD);
+
+                    // Add the keys the WalletAppKit doesn't have
+                    // yet; usually none, or the ones from a new
+                    // wallet file.
+                    //
+                    long t0 = System.currentTimeMillis();
+                    int added = mHDWallet.importNewKeys(wallet(),
+                                                        HDAddress.EPOCH);
+                    mLogger.info(String.format("added %d keys in %d msec",
+                                               added,
+                                               System.currentTimeMillis() - t0));
+
+                    // Do we have enough margin on all our chains?
+                    // Add keys to chains which don't have enough
+                    // unused addresses at the end.
+                    //
+                    mHDWallet.ensureMargins(wallet());
+
+                    peerGroup().setFastCatchupTimeSecs((scanTime == 0
+                            ? mParams.getGenesisBlock().getTimeSeconds() : scanTime));
+
+                    if (mReduceBloomFalsePositives) {
+                        mLogger.info("reducing bloom false positives");
+                        mBloomFPRate = 0.000001;
+                        peerGroup().setBloomFilterFalsePositiveRate(mBloomFPRate);
+                    }
+
+                    // Measure what the filter lets through.  It has to
+                    // run on the peer thread to see the messages before
+                    // they're handled.
+                    mBloomTuner = new BloomFilterTuner
+                        (wallet(), mBloomFPRate, mBloomBudget,
+                         mBloomTunerListener);
+                    peerGroup().addEventListener(mBloomTuner,
+                                                 Threading.SAME_THREAD);
+
+                    if (mPeerWatcher != null) {
+                        mWatchedPeers = peerGroup();
+                        mPeerWatcher.onPeersStarted(mWatchedPeers, chain());
+                    }
+
+                    // We don't need to check for HDChain.maxSafeExtend()
+                    // here because we are about to scan anyway.
+                    // We'll check again after the scan ...
+
+                    // Now we're peering.
+                    setState(WalletEngine.State.PEERING);
+                }
+            };
+        if (mRewindHeight != -1) {
+            mKit.setRewindHeight(mRewindHeight);
+            mRewindHeight = -1;
+        }
+        if (mPeerNodes != null)
+            mKit.setPeerNodes(resolvePeerNodes(mPeerNodes));
+        mKit.setStartupPipeline(pipeline);
+        mKit.setDownloadListener(mkDownloadListener());
+        if (chkpntis != null)
+            mKit.setCheckpoints(chkpntis);
+
+        setState(State.WALLET_SETUP);
+
+        mLogger.info("waiting for blockchain setup");
+
+        // Download the block chain and wait until it's done.
+        mKit.startAndWait();
+        pipeline.shutdown();
+
+        mLogger.info("blockchain setup finished, state = " + mState);
+
+        // Bail if we're being shutdown ...
+        if (mState == State.SHUTDOWN) {
+            mPersister.persistNow(mHDWallet);
+            return null;
+        }
+
+        mBalanceAvailable = mKit.wallet().getBalance(BalanceType.AVAILABLE);
+        mBalanceEstimated = mKit.wallet().getBalance(BalanceType.ESTIMATED);
+
+        mLogger.info("avail balance = " + mBalanceAvailable.toString());
+        mLogger.info("estim balance = " + mBalanceEstimated.toString());
+
+        // Compute balances and transaction counts.
+        Iterable<WalletTransaction> iwt =
+            mKit.wallet().getWalletTransactions();
+        mHDWallet.applyAllTransactions(iwt);
+
+        // Check the margins again, since transactions may have arrived.
+        int maxExtended = mHDWallet.ensureMargins(mKit.wallet());
+
+        // Persist the new state.
+        mPersister.requestPersist(mHDWallet);
+
+        // Listen for future wallet changes.
+        mKit.wallet().addEventListener(mWalletListener);
+
+        // Send anything queued before the last shutdown.
+        mBroadcasts.start(mKit.peerGroup(), mKit.wallet());
+
+        mStartupTimings = pipeline.getTimings();
+        mLogger.info(String.format("ready %d msec after setup started",
+                                   pipeline.elapsed()));
+
+        setState(State.READY);	// This may be temporary ...
+
+        return maxExtended;
+    }
+
+    // Finishes up after setup, possibly starting another scan.
+    public void finishSetup(Integer maxExtended) {
+        if (maxExtended == null)
+            return;
+
+        // Restore default (might have been reduced ...) and let the
+        // tuner take it from there.
+        mLogger.info("setting bloom filter false positives to default");
+        mBloomFPRate = PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE;
+        mKit.peerGroup().setBloomFilterFalsePositiveRate(mBloomFPRate);
+        mBloomTuner.start(mBloomFPRate);
+
+        // Do we need another rescan?
+        if (maxExtended > HDChain.maxSafeExtend()) {
+            mLogger.info(String.format("rescan extended by %d, rescanning",
+                    maxExtended));
+            rewindBlockchain();
+        }
+        else {
+            mLogger.info("synchronized");
+            setSyncState(SyncState.SYNCHRONIZED);
+        }
+    }
+
+    // Looks up the configured peers.  Ones which don't resolve are
+    // left out rather than falling back to discovery, which would
+    // leave the local network for the real one.
+    private PeerAddress[] resolvePeerNodes(String peerNodes) {
+        List<PeerAddress> addrs = new ArrayList<PeerAddress>();
+        for (String node : peerNodes.split(",")) {
+            node = node.trim();
+            if (node.length() == 0)
+                continue;
+            String host = node;
+            int port = mParams.getPort();
+            int colon = node.lastIndexOf(':');
+            try {
+                if (colon > 0) {
+                    host = node.substring(0, colon);
+                    port = Integer.parseInt(node.substring(colon + 1));
+                }
+                addrs.add(new PeerAddress(InetAddress.getByName(host), port));
+            } catch (NumberFormatException ex) {
+                mLogger.error("bad peer port: " + node);
+            } catch (UnknownHostException ex) {
+                mLogger.error("can't resolve peer: " + node);
+            }
+        }
+        mLogger.info("using peers " + addrs.toString());
+        return addrs.toArray(new PeerAddress[addrs.size()]);
+    }
+
+    // Waits for the HDWallet restore phase, null if it failed.
+    private HDWallet awaitHDWallet(StartupPipeline pipeline,
+                                   Future<HDWallet> restore) {
+        try {
+            return pipeline.await(restore);
+        } catch (IOException ex) {
+            mLogger.error("wallet restore failed 2: " + ex.toString());
+        } catch (RuntimeException ex) {
+            mLogger.error("wallet restore failed 3: " + ex.toString());
+            ex.printStackTrace();
+            if (ex.getCause() != null)
+                mLogger.error("exception cause: " + ex.getCause().toString());
+            else
+                mLogger.error("exception has no cause");
+        }
+        return null;
+    }
+
+    public void shutdown() {
+        mLogger.info("shutdown");
+        mState = State.SHUTDOWN;
+
+        // Write out anything still pending.
+        mPersister.flush();
+        mBroadcasts.stop();
+        stopWatching();
+
+        try {
+            if (mKit != null)
+                mKit.shutDown();
+        }
+        catch (Exception ex) {
+            mLogger.error("Trouble during shutdown: " + ex.toString());
+        }
+    }
+
+    private void stopWatching() {
+        if (mWatchedPeers != null) {
+            mPeerWatcher.onPeersStopping(mWatchedPeers);
+            mWatchedPeers = null;
+        }
+    }
+
+    // Releases the engine's threads once it's no longer needed.
+    public void close() {
+        mPersister.shutdown();
+        mWorker.shutdown();
+        mBroadcasts.close();
+    }
+
+    // Recalculates the bloom filter at the current rate and sends it
+    // to the connected peers without restarting the kit.  Setting the
+    // rate is what makes the PeerGroup recalculate and resend.
+    private void refreshBloomFilter() {
+        mLogger.info("resending bloom filter");
+        mKit.peerGroup().setBloomFilterFalsePositiveRate(mBloomFPRate);
+    }
+
+    // Blocks past the current height may have been requested before
+    // the peers got the filter with the added keys.  Once the new one
+    // has had time to take effect, rewind past any that arrived in
+    // the meantime so the download peer sends them again through the
+    // new filter and the chain hands them to the wallet as usual.
+    private void scheduleFilterRewind() {
+        final int fromHeight = mKit.chain().getBestChainHeight();
+        mWorker.schedule(new Runnable() {
+                public void run() {
+                    MyWalletAppKit kit = mKit;
+                    if (mState != State.READY || kit == null)
+                        return;
+                    if (kit.chain().getBestChainHeight() > fromHeight)
+                        rewindTo(fromHeight);
+                }
+            }, FILTER_SETTLE_MSECS, TimeUnit.MILLISECONDS);
+    }
+
+    private void rewindTo(int height) {
+        if (mState != State.READY || mKit == null)
+            return;
+        mLogger.info(String.format("REWINDING to %d for the new filter",
+                                   height));
+        restartBlockchain(mKit.getCreationTime()-24*7*3600, height);
+    }
+
+    public void addAccount() {
+        mLogger.info("add account");
+
+        // Make sure we are in a good state for this.
+        if (mState != State.READY) {
+            mLogger.warn("can't add an account until the wallet is ready");
+            return;
+        }
+
+        mHDWallet.addAccount();
+        mHDWallet.ensureMargins(mKit.wallet());
+
+        // Set the new keys creation time to now.
+        long now = Utils.now().getTime() / 1000;
+
+        // ensureMargins added the new account's keys already, this
+        // picks up anything it didn't.
+        int added = mHDWallet.importNewKeys(mKit.wallet(), now);
+        mLogger.info(String.format("added %d keys", added));
+
+        mPersister.persistNow(mHDWallet);
+    }
+
+    public void changePasscode(KeyParameter oldAesKey,
+                               KeyCrypter keyCrypter,
+                               KeyParameter aesKey) {
+        mLogger.info("changePasscode starting");
+
+        // Change the parameters on our HDWallet.
+        mHDWallet.setPersistCrypter(keyCrypter, aesKey);
+        mPersister.persistNow(mHDWallet);
+        setCredentials(keyCrypter, aesKey);
+
+        mLogger.info("persisted HD wallet");
+
+        // Decrypt the wallet with the old key.
+        mKit.wallet().decrypt(oldAesKey);
+
+        mLogger.info("decrypted base wallet");
+
+        // Encrypt the wallet using the new key.
+        mKit.wallet().encrypt(keyCrypter, aesKey);
+
+        mLogger.info("reencrypted base wallet");
+    }
+
+    // Rescans only the blocks which could hold payments to addresses
+    // just added by ensureMargins, keeping the headers we have.
+    public void rewindBlockchain() {
+        int height = mHDWallet.extendedMarginHeight
+            (mKit.wallet().getWalletTransactions());
+        if (height == -1)
+            height = mKit.chain().getBestChainHeight();
+        height = Math.max(0, height - REWIND_SLACK);
+
+        mLogger.info(String.format("REWINDING to %d", height));
+
+        // The scan time is only used if the rewind falls back to a
+        // full rescan.
+        restartBlockchain(mKit.getCreationTime()-24*7*3600, height);
+    }
+
+    public void rescanBlockchain(long rescanTime) {
+        restartBlockchain(rescanTime, -1);
+    }
+
+    // Restarts the kit, either rescanning from rescanTime or (if
+    // rewindHeight isn't -1) rewinding to rewindHeight.
+    private void restartBlockchain(long rescanTime, int rewindHeight) {
+        mLogger.info(String.format("RESCANNING from %d", rescanTime));
+
+        if(rescanTime == 0)
+            rescanTime = mKit.getCreationTime();
+
+        // Make sure we are in a good state for this.
+        if (mState != State.READY) {
+            mLogger.warn("can't rescan until the wallet is ready");
+            return;
+        }
+
+        switch (mSyncState) {
+        case SYNCHRONIZED:
+            mSyncState = SyncState.RESCAN;
+            break;
+        default:
+            mSyncState = SyncState.RERESCAN;
+            break;
+        }
+
+        // Remove our wallet event listener.
+        mKit.wallet().removeEventListener(mWalletListener);
+
+        // Persist and remove our HDWallet.
+        //
+        // NOTE - It's best not to clear the balances here.  When the
+        // transactions are filling in on the transactions screen it's
+        // disturbing to see negative historical balances.  They'll
+        // get completely refigured when the sync is done anyway ...
+        //
+        mPersister.persistNow(mHDWallet);
+        mHDWallet = null;
+
+        // On a rewind the kit trims the wallet itself.
+        if (rewindHeight == -1) {
+            mLogger.info("resetting wallet state");
+            mKit.wallet().clearTransactions(0);
+            mKit.wallet().setLastBlockSeenHeight(-1); // magic value
+            mKit.wallet().setLastBlockSeenHash(null);
+        }
+
+        // The watcher sees the new kit start with the next setup.
+        stopWatching();
+        mBroadcasts.stop();
+
+        mLogger.info("shutting kit down");
+        try {
+			mKit.shutDown();
+            mKit = null;
+		} catch (Exception ex) {
+            mLogger.error("kit shutdown failed: " + ex.toString());
+            return;
+		}
+
+        if (rewindHeight == -1) {
+            File dir = mStorage.getWalletDir();
+            String spvpath = mStorage.getWalletPrefix() + ".spvchain";
+            mLogger.info("removing spvchain file " + dir + spvpath);
+            File chainFile = new File(dir, spvpath);
+            if (!chainFile.delete())
+                mLogger.error("delete of spvchain file failed");
+        }
+        mRewindHeight = rewindHeight;
+
+        mLogger.info("restarting wallet");
+
+        setState(State.SETUP);
+        mListener.onRestart(rescanTime);
+    }
+
+    private void setState(State newstate) {
+        // SHUTDOWN is final ...
+        if (mState == State.SHUTDOWN)
+            return;
+        mState = newstate;
+        mListener.onStateChanged(newstate);
+    }
+
+    public void setSyncState(SyncState syncState) {
+        mSyncState = syncState;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public SyncState getSyncState() {
+        return mSyncState;
+    }
+
+    public double getPercentDone() {
+        return mPercentDone;
+    }
+
+    public int getBlocksToGo() {
+        return mBlocksToGo;
+    }
+
+    public Date getScanDate() {
+        return mScanDate;
+    }
+
+    public long getMsecsLeft() {
+        return mMsecsLeft;
+    }
+
+    public NetworkParameters getParams() {
+        return mParams;
+    }
+
+    public MyWalletAppKit getKit() {
+        return mKit;
+    }
+
+    public HDWallet getHDWallet() {
+        return mHDWallet;
+    }
+
+    public void persist() {
+        mPersister.persistNow(mHDWallet);
+    }
+
+    public long getPersistRequests() {
+        return mPersister.getNumRequested();
+    }
+
+    public long getPersistWrites() {
+        return mPersister.getNumWritten();
+    }
+
+    public Map<String, Long> getStartupTimings() {
+        return new LinkedHashMap<String, Long>(mStartupTimings);
+    }
+
+    public double getBloomFPRate() {
+        return mBloomFPRate;
+    }
+
+    // Measured bloom filter traffic for each peer seen.
+    public List<BloomFilterTuner.PeerStats> getBloomPeerStats() {
+        if (mBloomTuner == null)
+            return new ArrayList<BloomFilterTuner.PeerStats>();
+        return mBloomTuner.getPeerStats();
+    }
+
+    // Ping and block rate of the connected peers.
+    public List<MyPeerGroup.PeerInfo> getPeerInfo() {
+        try {
+            if (mKit != null)
+                return mKit.peerGroup().getPeerInfo();
+        } catch (IllegalStateException ex) {
+            // Not started, or shut down.
+        }
+        return new ArrayList<MyPeerGroup.PeerInfo>();
+    }
+
+    static public long getDefaultFee() {
+        final BigInteger dmtf = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+        return dmtf.longValue();
+    }
+
+    public List<HDAccount> getAccounts() {
+        if (mHDWallet == null)
+            return null;
+        return mHDWallet.getAccounts();
+    }
+
+    public HDAccount getAccount(int accountId) {
+        if (mHDWallet == null)
+            return null;
+        return mHDWallet.getAccount(accountId);
+    }
+
+    public List<Balance> getBalances() {
+        if (mHDWallet == null)
+            return null;
+
+        List<Balance> balances = new LinkedList<Balance>();
+        mHDWallet.getBalances(balances);
+        return balances;
+    }
+
+    public Iterable<WalletTransaction> getTransactions() {
+        if (mHDWallet == null)
+            return null;
+
+        return mKit.wallet().getWalletTransactions();
+    }
+
+    public Transaction getTransaction(String hashstr) {
+        Sha256Hash hash = new Sha256Hash(hashstr);
+        return mKit.wallet().getTransaction(hash);
+    }
+
+    public AmountAndFee useAll(int acctnum, boolean spendUnconfirmed)
+        throws InsufficientMoneyException {
+        return mHDWallet.useAll(acctnum, spendUnconfirmed);
+    }
+
+    public long computeRecommendedFee(int acctnum,
+                                      long amount,
+                                      boolean spendUnconfirmed)
+    		throws IllegalArgumentException, InsufficientMoneyException {
+
+        return mHDWallet.computeRecommendedFee(acctnum,
+                                               amount,
+                                               spendUnconfirmed);
+    }
+
+    public long computeRecommendedFee(int acctnum,
+                                      PaymentBatch batch,
+                                      boolean spendUnconfirmed)
+    		throws IllegalArgumentException, InsufficientMoneyException {
+        return mHDWallet.computeRecommendedFee(acctnum,
+                                               batch,
+                                               spendUnconfirmed);
+    }
+
+    public void sendCoinsFromAccount(int acctnum,
+                                     String address,
+                                     long amount,
+                                     long fee,
+                                     boolean spendUnconfirmed)
+        throws RuntimeException {
+
+        if (mHDWallet == null)
+            return;
+
+        try {
+            Address dest = new Address(mParams, address);
+
+            mLogger.info(String
+                         .format("send coins: acct=%d, dest=%s, val=%d, fee=%d",
+                                 acctnum, address, amount, fee));
+
+            mBroadcasts.submit(mHDWallet.sendAccountCoins(mKit.wallet(),
+                                                          acctnum, dest,
+                                                          amount, fee,
+                                                          spendUnconfirmed));
+
+        } catch (WrongNetworkException ex) {
+            String msg = "Address for wrong network: " + ex.getMessage();
+            throw new RuntimeException(msg);
+        } catch (AddressFormatException ex) {
+            String msg = "Malformed bitcoin address: " + ex.getMessage();
+            throw new RuntimeException(msg);
+        }
+    }
+
+    // Returns the fee paid.
+    public long sendBatchFromAccount(int acctnum,
+                                     PaymentBatch batch,
+                                     long fee,
+                                     boolean spendUnconfirmed)
+        throws RuntimeException {
+
+        if (mHDWallet == null)
+            return 0;
+
+        mLogger.info(String
+                     .format("send batch: acct=%d, %d payments, val=%d, fee=%d",
+                             acctnum, batch.size(), batch.getTotal(), fee));
+
+        Transaction tx = mHDWallet.sendAccountCoins(mKit.wallet(), acctnum,
+                                                    batch, fee,
+                                                    spendUnconfirmed);
+        mBroadcasts.submit(tx);
+
+        long paid = feePaid(tx, fee);
+        if (paid != fee)
+            mLogger.info(String.format("dust change added, fee=%d", paid));
+        return paid;
+    }
+
+    // Queues a transaction to be sent to the network.
+    public void broadcastTransaction(Transaction tx) {
+        mBroadcasts.submit(tx);
+    }
+
+    // What the inputs bring in less what the outputs pay out, or the
+    // fee asked for if an input isn't connected to its output.
+    private static long feePaid(Transaction tx, long requested) {
+        long fee = 0;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput connected = input.getConnectedOutput();
+            if (connected == null)
+                return requested;
+            fee += connected.getValue().longValue();
+        }
+        for (TransactionOutput output : tx.getOutputs())
+            fee -= output.getValue().longValue();
+        return fee;
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -15,27 +15,21 @@
 
 package com.bonsai.wallet32;
 
-import java.io.File;
-import java.io.InputStream;
-import java.io.IOException;
 import java.math.BigInteger;
-import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.spongycastle.crypto.InvalidCipherTextException;
 import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.util.encoders.Hex;
 
@@ -59,31 +53,30 @@ import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
 import android.support.v4.content.LocalBroadcastManager;
 
-import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.bonsai.wallet32.WalletEngine.AmountAndFee;
+import com.bonsai.wallet32.WalletEngine.State;
+import com.bonsai.wallet32.WalletEngine.SyncState;
 import com.google.bitcoin.core.Address;
-import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.InsufficientMoneyException;
 import com.google.bitcoin.core.NetworkParameters;
-import com.google.bitcoin.core.PeerGroup;
 import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Transaction;
-import com.google.bitcoin.core.TransactionBroadcaster;
 import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.core.TransactionInput;
 import com.google.bitcoin.core.TransactionOutPoint;
 import com.google.bitcoin.core.Utils;
-import com.google.bitcoin.core.Wallet;
-import com.google.bitcoin.core.Wallet.BalanceType;
-import com.google.bitcoin.core.WrongNetworkException;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.MnemonicCodeX;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.wallet.WalletTransaction;
-import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
 import hashengineering.groestlcoin.wallet32.R;
+
+// The Android front end of the WalletEngine.  It runs setup in an
+// AsyncTask under a wake lock, turns engine events into notifications
+// and broadcasts, and feeds the engine the preferences.
+//
 public class WalletService extends Service
     implements OnSharedPreferenceChangeListener {
 
@@ -97,26 +90,6 @@ public class WalletService extends Service
 
     private WalletApplication mApp;
 
-    public enum State {
-        SETUP,			// CTOR
-        WALLET_SETUP,	// Setting up wallet app kit.
-        KEYS_ADD,		// Adding keys.
-        PEERING,		// Connecting to peers.
-        SYNCING,		// Many times from sync progress.
-        READY,
-        SHUTDOWN,
-        ERROR
-    }
-
-    public enum SyncState {
-        CREATED,		// First scan after creation.
-        RESTORE,		// Scanning to restore.
-        STARTUP,		// Catching up on startup.
-        RESCAN,			// Rescanning blockchain.
-        RERESCAN,		// Needed to rescan due to margin.
-        SYNCHRONIZED	// We were synchronized.
-    }
-
     private int NOTIFICATION = R.string.wallet_service_started;
 
     private NotificationManager		mNM;
@@ -124,70 +97,30 @@ public class WalletService extends Service
 
     private final IBinder mBinder = new WalletServiceBinder();
 
-    private State				mState;
-    private SyncState			mSyncState;
-    private MyWalletAppKit		mKit;
-    private NetworkParameters	mParams;
+    private WalletEngine		mEngine;
     private SetupWalletTask		mTask;
     private Context				mContext;
     private Resources			mRes;
     private SharedPreferences	mPrefs;
-    private double				mPercentDone = 0.0;
-    private int					mBlocksToGo;
-    private Date				mScanDate;
-    private long				mMsecsLeft;
-
-    private KeyCrypter			mKeyCrypter;
-    private KeyParameter		mAesKey;
-    private HDWallet			mHDWallet = null;
 
     private RateUpdater			mRateUpdater;
 
-    private BigInteger			mBalanceAvailable;
-    private BigInteger			mBalanceEstimated;
-
 	private WakeLock			mWakeLock;
 
     private volatile int		mNoteId = 0;
 
-    private static final String mFilePrefix = "wallet32";
-
-    private MyDownloadListener mkDownloadListener() {
-        return new MyDownloadListener() {
-            protected void progress(double pct,
-                                    int blocksToGo,
-                                    Date date,
-                                    long msecsLeft) {
-                Date cmplDate =
-                    new Date(System.currentTimeMillis() + msecsLeft);
-                mLogger.info(String.format
-                             ("CHAIN DOWNLOAD %d%% DONE WITH %d BLOCKS TO GO, "
-                              + "COMPLETE AT %s",
-                              (int) pct, blocksToGo,
-                              DateFormat
-                              .getDateTimeInstance().format(cmplDate)));
-                mBlocksToGo = blocksToGo;
-                mScanDate = date;
-                mMsecsLeft = msecsLeft;
-                if (mPercentDone != pct) {
-                    mPercentDone = pct;
-                    setState(State.SYNCING);
-                }
+    private WalletEngine.Listener mEngineListener =
+        new WalletEngine.Listener() {
+            public void onStateChanged(State state) {
+                mLogger.info("setState " + getStateString());
+                sendStateChanged();
             }
-        };
-    }
 
-    private AbstractWalletEventListener mWalletListener =
-        new AbstractWalletEventListener() {
-            @Override
-			public void onCoinsReceived(Wallet wallet,
-                                        Transaction tx,
-                                        BigInteger prevBalance,
-                                        BigInteger newBalance)
-            {
-                BigInteger amt = newBalance.subtract(prevBalance);
-                final long amount = amt.longValue();
+            public void onWalletChanged() {
+                sendStateChanged();
+            }
 
+            public void onCoinsReceived(Transaction tx, final long amount) {
                 WalletApplication app =
                     (WalletApplication) getApplicationContext();
                 final BTCFmt btcfmt = app.getBTCFmt();
@@ -272,15 +205,7 @@ public class WalletService extends Service
                 txconf.addEventListener(listener);
             }
 
-            @Override
-			public void onCoinsSent(Wallet wallet,
-                                    Transaction tx,
-                                    BigInteger prevBalance,
-                                    BigInteger newBalance)
-            {
-                BigInteger amt = prevBalance.subtract(newBalance);
-                final long amount = amt.longValue();
-
+            public void onCoinsSent(Transaction tx, final long amount) {
                 WalletApplication app =
                     (WalletApplication) getApplicationContext();
                 final BTCFmt btcfmt = app.getBTCFmt();
@@ -358,41 +283,26 @@ public class WalletService extends Service
                 txconf.addEventListener(listener);
             }
 
-            @Override
-            public void onWalletChanged(Wallet wallet) {
-                // Compute balances and transaction counts.
-                Iterable<WalletTransaction> iwt =
-                    mKit.wallet().getWalletTransactions();
-                mHDWallet.applyAllTransactions(iwt);
 
-                // Check to make sure we have sufficient margins.
-                int maxExtended = mHDWallet.ensureMargins(mKit.wallet());
-
-                // Persist the new state.
-                mHDWallet.persist(mApp);
+            public void onRestart(long scanTime) {
+                mEngine.setCredentials(mApp.mKeyCrypter, mApp.mAesKey);
+                mTask = new SetupWalletTask();
+                mTask.execute(scanTime);
+            }
 
-                Intent intent = new Intent("wallet-state-changed");
+            public void onBroadcastStatus(Transaction tx,
+                                          BroadcastQueue.Status status,
+                                          int numPeers) {
+                Intent intent = new Intent("broadcast-status");
+                intent.putExtra("hash", tx.getHashAsString());
+                intent.putExtra("status", status.name());
+                intent.putExtra("peers", numPeers);
                 mLBM.sendBroadcast(intent);
-
-                if (maxExtended > HDChain.maxSafeExtend()) {
-                    mLogger.info(String.format("%d addresses added, rescanning",
-                            maxExtended));
-                    //rescanBlockchain(HDAddress.EPOCH);
-                    rescanBlockchain(mKit.getCreationTime()-24*7*3600);
-                }
             }
         };
 
     public void shutdown() {
-        mLogger.info("shutdown");
-        mState = State.SHUTDOWN;
-        try {
-            if (mKit != null)
-                mKit.shutDown();
-        }
-        catch (Exception ex) {
-            mLogger.error("Trouble during shutdown: " + ex.toString());
-        }
+        mEngine.shutdown();
     }
 
     // Called when UI activities all pause, terminates the service
@@ -450,176 +360,19 @@ public class WalletService extends Service
 		@Override
 		protected Integer doInBackground(Long... params)
         {
-            // scanTime  0 : full rescan
-            // scanTime  t : scan from time t
-            final Long scanTime = params[0];
-
-            setState(State.WALLET_SETUP);
-
-            mLogger.info("setting up wallet, scanTime=" +
-                         scanTime.toString());
-
-            mLogger.info("getting network parameters");
-
-            mParams = Constants.getNetworkParameters(getApplicationContext());
-
-            // Try to restore existing wallet.
-            mHDWallet = null;
-            try {
-				mHDWallet = HDWallet.restore(mApp,
-											 mParams,
-				                             mKeyCrypter,
-                                             mAesKey);
-			} catch (InvalidCipherTextException ex) {
-                mLogger.error("wallet restore failed 1: " + ex.toString());
- 			} catch (IOException ex) {
-                mLogger.error("wallet restore failed 2: " + ex.toString());
- 			} catch (RuntimeException ex) {
-                mLogger.error("wallet restore failed 3: " + ex.toString());
-                ex.printStackTrace();
-                if(ex.getCause() != null)
-                {
-                    mLogger.error("exception cause: "+ ex.getCause().toString());
-                }
-                else mLogger.error("exception has no cause");
-			}
-
-            if (mHDWallet == null) {
-
-                mLogger.error("WalletService started with bad HDWallet");
-                System.exit(0);
-            }
-
-            mLogger.info("creating new wallet app kit");
-
-            // Checkpointing fails on full rescan because the earliest
-            // create time is earlier than the genesis block time.
-            //
-            InputStream chkpntis = null;
-            if (scanTime != 0) {
-                try {
-                    chkpntis = getAssets().open(Constants.CHECKPOINTS_FILENAME);
-                } catch (IOException e) {
-                    chkpntis = null;
-                }
-            }
-
-            mKit = new MyWalletAppKit(mParams,
-                                      mApp.getWalletDir(),
-                                      mApp.getWalletPrefix(),
-                                      mKeyCrypter,
-                                      scanTime)
-                {
-                    @Override
-                    protected void onSetupCompleted() {
-                        mLogger.info("adding keys");
-
-                        setState(WalletService.State.KEYS_ADD);
-
-                        // Add all the existing keys, they'll be
-                        // ignored if they are already in the
-                        // WalletAppKit.
-                        //
-                        ArrayList<ECKey> keys = new ArrayList<ECKey>();
-                        mHDWallet.gatherAllKeys(HDAddress.EPOCH, keys);
-                        mLogger.info(String.format("adding %d keys",
-                                                   keys.size()));
-                        wallet().addKeys(keys);
-
-                        // Do we have enough margin on all our chains?
-                        // Add keys to chains which don't have enough
-                        // unused addresses at the end.
-                        //
-                        mHDWallet.ensureMargins(wallet());
-
-                        peerGroup().setFastCatchupTimeSecs((scanTime == 0
-                                ? mParams.getGenesisBlock().getTimeSeconds() : scanTime));
-
-                        if (mPrefs.getBoolean("pref_reduceBloomFalsePositives",
-                                              false)) {
-                            mLogger.info("reducing bloom false positives");
-                            peerGroup().setBloomFilterFalsePositiveRate(0.000001);
-                        }
-
-                        // We don't need to check for HDChain.maxSafeExtend()
-                        // here because we are about to scan anyway.
-                        // We'll check again after the scan ...
-
-                        // Now we're peering.
-                        setState(WalletService.State.PEERING);
-                    }
-                };
-            mKit.setDownloadListener(mkDownloadListener());
-            if (chkpntis != null)
-                mKit.setCheckpoints(chkpntis);
-
-            setState(State.WALLET_SETUP);
-
-            mLogger.info("waiting for blockchain setup");
-
-            // Download the block chain and wait until it's done.
-            mKit.startAndWait();
-
-            mLogger.info("blockchain setup finished, state = " +
-                         getStateString());
-
-            // Bail if we're being shutdown ...
-            if (mState == State.SHUTDOWN) {
-                mHDWallet.persist(mApp);
-                return null;
-            }
-
-            mBalanceAvailable = mKit.wallet().getBalance(BalanceType.AVAILABLE);
-            mBalanceEstimated = mKit.wallet().getBalance(BalanceType.ESTIMATED);
-
-            mLogger.info("avail balance = " + mBalanceAvailable.toString());
-            mLogger.info("estim balance = " + mBalanceEstimated.toString());
-
-            // Compute balances and transaction counts.
-            Iterable<WalletTransaction> iwt =
-                mKit.wallet().getWalletTransactions();
-            mHDWallet.applyAllTransactions(iwt);
-
-            // Check the margins again, since transactions may have arrived.
-            int maxExtended = mHDWallet.ensureMargins(mKit.wallet());
-
-            // Persist the new state.
-            mHDWallet.persist(mApp);
-
-            // Listen for future wallet changes.
-            mKit.wallet().addEventListener(mWalletListener);
-
-            setState(State.READY);	// This may be temporary ...
-
-			return maxExtended;
+            return mEngine.setup(params[0]);
 		}
 
         @Override
         protected void onPostExecute(Integer maxExtended) {
-            // Restore default (might have been reduced ...)
-            mLogger.info("setting bloom filter false positives to default");
-            mKit.peerGroup().setBloomFilterFalsePositiveRate(PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE);
-
             mWakeLock.release();
             mLogger.info("wakelock released");
 
-            // Do we need another rescan?
-            if (maxExtended > HDChain.maxSafeExtend()) {
-                mLogger.info(String.format("rescan extended by %d, rescanning",
-                        maxExtended));
-                //rescanBlockchain(HDAddress.EPOCH);
-
-                rescanBlockchain(mKit.getCreationTime()-24*7*3600);
-            }
-            else {
-                mLogger.info("synchronized");
-                setSyncState(SyncState.SYNCHRONIZED);
-            }
+            mEngine.finishSetup(maxExtended);
         }
     }
 
     public WalletService() {
-        mState = State.SETUP;
     }
 
     @Override
@@ -649,6 +402,15 @@ public class WalletService extends Service
 
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
 
+        NetworkParameters params =
+            Constants.getNetworkParameters(getApplicationContext());
+        mEngine = new WalletEngine(mApp, params,
+                                   Constants.CHECKPOINTS_FILENAME,
+                                   mEngineListener);
+        mEngine.setLookahead(getLookahead());
+        mEngine.setBloomBudget(getBloomBudget());
+        mEngine.setPeerNodes(Constants.getPeerNodes(mContext));
+
         String fiatRateSource =
             mPrefs.getString(SettingsActivity.KEY_FIAT_RATE_SOURCE, "");
         setFiatRateSource(fiatRateSource);
@@ -664,12 +426,12 @@ public class WalletService extends Service
     public int onStartCommand(Intent intent, int flags, int startId)
     {
         // Establish our SyncState
-        mSyncState = SyncState.STARTUP;
+        SyncState syncState = SyncState.STARTUP;
         if (intent != null) {
             Bundle bundle = intent.getExtras();
             String syncStateStr = bundle.getString("SyncState");
             if (syncStateStr != null)
-                mSyncState =
+                syncState =
                     syncStateStr.equals("CREATED")	? SyncState.CREATED :
                     syncStateStr.equals("RESTORE")	? SyncState.RESTORE :
                     syncStateStr.equals("STARTUP")	? SyncState.STARTUP :
@@ -677,9 +439,11 @@ public class WalletService extends Service
                     syncStateStr.equals("RERESCAN")	? SyncState.RERESCAN :
                     SyncState.STARTUP;
         }
+        mEngine.setSyncState(syncState);
 
-        mKeyCrypter = mApp.mKeyCrypter;
-        mAesKey = mApp.mAesKey;
+        mEngine.setCredentials(mApp.mKeyCrypter, mApp.mAesKey);
+        mEngine.setReduceBloomFalsePositives
+            (mPrefs.getBoolean("pref_reduceBloomFalsePositives", false));
 
         // Set any new key's creation time to now.
         long now = Utils.now().getTime() / 1000;
@@ -702,6 +466,8 @@ public class WalletService extends Service
         
         mIsRunning = false;
 
+        mEngine.close();
+
         // FIXME - Where does this go?  Anywhere?
         // stopForeground(true);
 
@@ -715,6 +481,35 @@ public class WalletService extends Service
                 mPrefs.getString(SettingsActivity.KEY_FIAT_RATE_SOURCE, "");
             setFiatRateSource(fiatRateSource);
         }
+        else if (key.equals(SettingsActivity.KEY_BLOOM_LOOKAHEAD)) {
+            mEngine.setLookahead(getLookahead());
+        }
+        else if (key.equals(SettingsActivity.KEY_BLOOM_BUDGET)) {
+            mEngine.setBloomBudget(getBloomBudget());
+        }
+    }
+
+    // False positive transactions per filtered block to aim for.
+    private double getBloomBudget() {
+        String budgetstr =
+            mPrefs.getString(SettingsActivity.KEY_BLOOM_BUDGET, "2");
+        try {
+            return Double.parseDouble(budgetstr);
+        }
+        catch (NumberFormatException ex) {
+            throw new RuntimeException(ex.toString());	// Shouldn't happen.
+        }
+    }
+
+    private int getLookahead() {
+        String lookaheadstr =
+            mPrefs.getString(SettingsActivity.KEY_BLOOM_LOOKAHEAD, "32");
+        try {
+            return Integer.parseInt(lookaheadstr);
+        }
+        catch (NumberFormatException ex) {
+            throw new RuntimeException(ex.toString());	// Shouldn't happen.
+        }
     }
 
     // Show a notification while this service is running.
@@ -778,50 +573,60 @@ public class WalletService extends Service
     }
 
     public void persist() {
-        mHDWallet.persist(mApp);
+        mEngine.persist();
+    }
+
+    public long getPersistRequests() {
+        return mEngine.getPersistRequests();
+    }
+
+    public long getPersistWrites() {
+        return mEngine.getPersistWrites();
+    }
+
+    public Map<String, Long> getStartupTimings() {
+        return mEngine.getStartupTimings();
+    }
+
+    public double getBloomFPRate() {
+        return mEngine.getBloomFPRate();
+    }
+
+    // Measured bloom filter traffic for each peer seen.
+    public List<BloomFilterTuner.PeerStats> getBloomPeerStats() {
+        return mEngine.getBloomPeerStats();
+    }
+
+    public List<MyPeerGroup.PeerInfo> getPeerInfo() {
+        return mEngine.getPeerInfo();
     }
 
     public byte[] getWalletSeed() {
-        return mHDWallet == null ? null : mHDWallet.getWalletSeed();
+        HDWallet hdwallet = mEngine.getHDWallet();
+        return hdwallet == null ? null : hdwallet.getWalletSeed();
     }
 
     public String getPairingCode() {
-        JSONObject obj = mHDWallet.dumps(true);
+        JSONObject obj = mEngine.getHDWallet().dumps(true);
         return obj.toString();
     }
 
     public String getFormatVersionString() {
-        return mHDWallet.getFormatVersionString();
+        return mEngine.getHDWallet().getFormatVersionString();
     }
 
     public HDWallet.HDStructVersion getHDStructVersion() {
-        return mHDWallet.getHDStructVersion();
+        return mEngine.getHDWallet().getHDStructVersion();
     }
 
     public MnemonicCodeX.Version getBIP39Version() {
-        return mHDWallet.getBIP39Version();
+        return mEngine.getHDWallet().getBIP39Version();
     }
 
     public void changePasscode(KeyParameter oldAesKey,
                                KeyCrypter keyCrypter,
                                KeyParameter aesKey) {
-        mLogger.info("changePasscode starting");
-
-        // Change the parameters on our HDWallet.
-        mHDWallet.setPersistCrypter(keyCrypter, aesKey);
-        mHDWallet.persist(mApp);
-
-        mLogger.info("persisted HD wallet");
-
-        // Decrypt the wallet with the old key.
-        mKit.wallet().decrypt(oldAesKey);
-
-        mLogger.info("decrypted base wallet");
-
-        // Encrypt the wallet using the new key.
-        mKit.wallet().encrypt(keyCrypter, aesKey);
-
-        mLogger.info("reencrypted base wallet");
+        mEngine.changePasscode(oldAesKey, keyCrypter, aesKey);
     }
 
     private void setFiatRateSource(String src) {
@@ -852,124 +657,47 @@ public class WalletService extends Service
     }
 
     public void addAccount() {
-        mLogger.info("add account");
-
-        // Make sure we are in a good state for this.
-        if (mState != State.READY) {
-            mLogger.warn("can't add an account until the wallet is ready");
-            return;
-        }
-
-        mHDWallet.addAccount();
-        mHDWallet.ensureMargins(mKit.wallet());
-
-        // Set the new keys creation time to now.
-        long now = Utils.now().getTime() / 1000;
-
-        // Adding all the keys is overkill, but it is simpler for now.
-        ArrayList<ECKey> keys = new ArrayList<ECKey>();
-        mHDWallet.gatherAllKeys(now, keys);
-        mLogger.info(String.format("adding %d keys", keys.size()));
-        mKit.wallet().addKeys(keys);
+        mEngine.addAccount();
+    }
 
-        mHDWallet.persist(mApp);
+    public void rewindBlockchain() {
+        mEngine.rewindBlockchain();
     }
 
     public void rescanBlockchain(long rescanTime) {
-        mLogger.info(String.format("RESCANNING from %d", rescanTime));
-
-        if(rescanTime == 0)
-            rescanTime = mKit.getCreationTime();
-
-        // Make sure we are in a good state for this.
-        if (mState != State.READY) {
-            mLogger.warn("can't rescan until the wallet is ready");
-            return;
-        }
-
-        switch (mSyncState) {
-        case SYNCHRONIZED:
-            mSyncState = SyncState.RESCAN;
-            break;
-        default:
-            mSyncState = SyncState.RERESCAN;
-            break;
-        }
-
-        // Remove our wallet event listener.
-        mKit.wallet().removeEventListener(mWalletListener);
-
-        // Persist and remove our HDWallet.
-        //
-        // NOTE - It's best not to clear the balances here.  When the
-        // transactions are filling in on the transactions screen it's
-        // disturbing to see negative historical balances.  They'll
-        // get completely refigured when the sync is done anyway ...
-        //
-        mHDWallet.persist(mApp);
-        mHDWallet = null;
-
-        mLogger.info("resetting wallet state");
-        mKit.wallet().clearTransactions(0); 
-        mKit.wallet().setLastBlockSeenHeight(-1); // magic value 
-        mKit.wallet().setLastBlockSeenHash(null); 
-
-        mLogger.info("shutting kit down");
-        try {
-			mKit.shutDown();
-            mKit = null;
-		} catch (Exception ex) {
-            mLogger.error("kit shutdown failed: " + ex.toString());
-            return;
-		}
-
-        File dir = mApp.getWalletDir();
-        String spvpath = mApp.getWalletPrefix() + ".spvchain";
-        mLogger.info("removing spvchain file " + dir + spvpath);
-        File chainFile = new File(dir, spvpath);
-        if (!chainFile.delete())
-            mLogger.error("delete of spvchain file failed");
-
-        mLogger.info("restarting wallet");
-
-        mKeyCrypter = mApp.mKeyCrypter;
-        mAesKey = mApp.mAesKey;
-
-        setState(State.SETUP);
-        mTask = new SetupWalletTask();
-        mTask.execute(rescanTime);
+        mEngine.rescanBlockchain(rescanTime);
     }
 
     public void setSyncState(SyncState syncState) {
-        mSyncState = syncState;
+        mEngine.setSyncState(syncState);
     }
 
     public State getState() {
-        return mState;
+        return mEngine.getState();
     }
 
     public SyncState getSyncState() {
-        return mSyncState;
+        return mEngine.getSyncState();
     }
 
     public double getPercentDone() {
-        return mPercentDone;
+        return mEngine.getPercentDone();
     }
 
     public int getBlocksToGo() {
-        return mBlocksToGo;
+        return mEngine.getBlocksToGo();
     }
 
     public Date getScanDate() {
-        return mScanDate;
+        return mEngine.getScanDate();
     }
 
     public long getMsecsLeft() {
-        return mMsecsLeft;
+        return mEngine.getMsecsLeft();
     }
 
     public String getStateString() {
-        switch (mState) {
+        switch (mEngine.getState()) {
         case SETUP:
             return mRes.getString(R.string.network_status_setup);
         case WALLET_SETUP:
@@ -980,7 +708,7 @@ public class WalletService extends Service
             return mRes.getString(R.string.network_status_peering);
         case SYNCING:
             return mRes.getString(R.string.network_status_sync,
-                                  (int) mPercentDone);
+                                  (int) mEngine.getPercentDone());
         case READY:
             return mRes.getString(R.string.network_status_ready);
         case SHUTDOWN:
@@ -999,7 +727,7 @@ public class WalletService extends Service
     }
 
     public NetworkParameters getParams() {
-        return mParams;
+        return mEngine.getParams();
     }
 
     public double getRate() {
@@ -1011,77 +739,56 @@ public class WalletService extends Service
     }
 
     static public long getDefaultFee() {
-        final BigInteger dmtf = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
-        return dmtf.longValue();
+        return WalletEngine.getDefaultFee();
     }
 
     public List<HDAccount> getAccounts() {
-        if (mHDWallet == null)
-            return null;
-        return mHDWallet.getAccounts();
+        return mEngine.getAccounts();
     }
 
     public HDAccount getAccount(int accountId) {
-        if (mHDWallet == null)
-            return null;
-        return mHDWallet.getAccount(accountId);
+        return mEngine.getAccount(accountId);
     }        
 
     public List<Balance> getBalances() {
-        if (mHDWallet == null)
-            return null;
-
-        List<Balance> balances = new LinkedList<Balance>();
-        mHDWallet.getBalances(balances);
-        return balances;
+        return mEngine.getBalances();
     }
 
     public Iterable<WalletTransaction> getTransactions() {
-        if (mHDWallet == null)
-            return null;
-
-        return mKit.wallet().getWalletTransactions();
+        return mEngine.getTransactions();
     }
 
     public Transaction getTransaction(String hashstr) {
-        Sha256Hash hash = new Sha256Hash(hashstr);
-        return mKit.wallet().getTransaction(hash);
+        return mEngine.getTransaction(hashstr);
     }
 
     public Address nextReceiveAddress(int acctnum){
-        return mHDWallet.nextReceiveAddress(acctnum);
+        return mEngine.getHDWallet().nextReceiveAddress(acctnum);
     }
 
     public HDAddressDescription findAddress(Address addr) {
-        return mHDWallet.findAddress(addr);
-    }
-
-    public static class AmountAndFee {
-        public long		mAmount;
-        public long		mFee;
-        public AmountAndFee(long amt, long fee) {
-            mAmount = amt;
-            mFee = fee;
-        }
+        return mEngine.getHDWallet().findAddress(addr);
     }
 
     public AmountAndFee useAll(int acctnum, boolean spendUnconfirmed)
         throws InsufficientMoneyException {
-        return mHDWallet.useAll(mKit.wallet(), acctnum, spendUnconfirmed);
+        return mEngine.useAll(acctnum, spendUnconfirmed);
     }
 
     public long computeRecommendedFee(int acctnum,
                                       long amount,
                                       boolean spendUnconfirmed)
     		throws IllegalArgumentException, InsufficientMoneyException {
+        return mEngine.computeRecommendedFee(acctnum, amount,
+                                             spendUnconfirmed);
+    }
 
-        mLogger.info("computeRecommendedFee starting");
-        long fee = mHDWallet.computeRecommendedFee(mKit.wallet(),
-                                                   acctnum,
-                                                   amount,
-                                                   spendUnconfirmed);
-        mLogger.info("computeRecommendedFee finished");
-        return fee;
+    public long computeRecommendedFee(int acctnum,
+                                      PaymentBatch batch,
+                                      boolean spendUnconfirmed)
+    		throws IllegalArgumentException, InsufficientMoneyException {
+        return mEngine.computeRecommendedFee(acctnum, batch,
+                                             spendUnconfirmed);
     }
 
     public void sendCoinsFromAccount(int acctnum,
@@ -1090,48 +797,30 @@ public class WalletService extends Service
                                      long fee,
                                      boolean spendUnconfirmed)
         throws RuntimeException {
+        mEngine.sendCoinsFromAccount(acctnum, address, amount, fee,
+                                     spendUnconfirmed);
+    }
 
-        if (mHDWallet == null)
-            return;
-
-        try {
-            Address dest = new Address(mParams, address);
-
-            mLogger.info(String
-                         .format("send coins: acct=%d, dest=%s, val=%d, fee=%d",
-                                 acctnum, address, amount, fee));
-            
-            mHDWallet.sendAccountCoins(mKit.wallet(), acctnum, dest,
-                                       amount, fee, spendUnconfirmed);
-
-        } catch (WrongNetworkException ex) {
-            String msg = "Address for wrong network: " + ex.getMessage();
-            throw new RuntimeException(msg);
-        } catch (AddressFormatException ex) {
-            String msg = "Malformed bitcoin address: " + ex.getMessage();
-            throw new RuntimeException(msg);
-        }
+    // Returns the fee paid.
+    public long sendBatchFromAccount(int acctnum,
+                                     PaymentBatch batch,
+                                     long fee,
+                                     boolean spendUnconfirmed)
+        throws RuntimeException {
+        return mEngine.sendBatchFromAccount(acctnum, batch, fee,
+                                            spendUnconfirmed);
     }
 
     public long amountForAccount(WalletTransaction wtx, int acctnum) {
-        return mHDWallet.amountForAccount(wtx, acctnum);
+        return mEngine.getHDWallet().amountForAccount(wtx, acctnum);
     }
 
     public long balanceForAccount(int acctnum) {
-        return mHDWallet.balanceForAccount(acctnum);
+        return mEngine.getHDWallet().balanceForAccount(acctnum);
     }
 
     public long availableForAccount(int acctnum) {
-        return mHDWallet.availableForAccount(acctnum);
-    }
-
-    private void setState(State newstate) {
-        // SHUTDOWN is final ...
-        if (mState == State.SHUTDOWN)
-            return;
-        mLogger.info("setState " + getStateString());
-        mState = newstate;
-        sendStateChanged();
+        return mEngine.getHDWallet().availableForAccount(acctnum);
     }
 
     private void sendStateChanged() {
@@ -1143,9 +832,11 @@ public class WalletService extends Service
                          int accountId, JSONArray outputs) {
         mLogger.info("sweepKey starting");
 
-        mLogger.info("key addr " + key.toAddress(mParams).toString());
+        NetworkParameters params = mEngine.getParams();
 
-        Transaction tx = new Transaction(mParams);
+        mLogger.info("key addr " + key.toAddress(params).toString());
+
+        Transaction tx = new Transaction(params);
 
         long balance = 0;
         ArrayList<Script> scripts = new ArrayList<Script>();
@@ -1162,8 +853,8 @@ public class WalletService extends Service
                 Sha256Hash hash = new Sha256Hash(/*WalletUtil.msgHexToBytes(*/tx_hash/*)*/);
             
                 tx.addInput(new TransactionInput
-                            (mParams, tx, new byte[]{},
-                             new TransactionOutPoint(mParams, tx_output_n, hash)));
+                            (params, tx, new byte[]{},
+                             new TransactionOutPoint(params, tx_output_n, hash)));
 
                 scripts.add(new Script(Hex.decode(script)));
                     
@@ -1179,7 +870,7 @@ public class WalletService extends Service
         mLogger.info(String.format("sweeping %d", amount));
 
         // Figure out the destination address.
-        Address to = mHDWallet.nextReceiveAddress(accountId);
+        Address to = nextReceiveAddress(accountId);
         mLogger.info("sweeping to " + to.toString());
 
         // Add output.
@@ -1188,36 +879,13 @@ public class WalletService extends Service
         WalletUtil.signTransactionInputs(tx, Transaction.SigHash.ALL, key, scripts);
 
         mLogger.info("tx bytes: " + new String(Hex.encode(tx.bitcoinSerialize())));
-        // mKit.peerGroup().broadcastTransaction(tx);
-        broadcastTransaction(mKit.peerGroup(), tx);
+        broadcastTransaction(tx);
 
         mLogger.info("sweepKey finished");
     }
 
-    public void broadcastTransaction(final TransactionBroadcaster broadcaster,
-                                     final Transaction tx) {
-        new Thread() {
-            @Override
-            public void run() {
-                // Handle the future results just for logging.
-                try {
-                    Futures.addCallback(broadcaster.broadcastTransaction(tx),
-                                        new FutureCallback<Transaction>() {
-                        @Override
-                        public void onSuccess(Transaction transaction) {
-                            mLogger.info("Successfully broadcast key rotation tx: {}", transaction);
-                        }
-
-                        @Override
-                        public void onFailure(Throwable throwable) {
-                            mLogger.error("Failed to broadcast key rotation tx", throwable);
-                        }
-                    });
-                } catch (Exception e) {
-                    mLogger.error("Failed to broadcast rekey tx", e);
-                }
-            }
-        }.start();
+    public void broadcastTransaction(Transaction tx) {
+        mEngine.broadcastTransaction(tx);
     }
 }
 
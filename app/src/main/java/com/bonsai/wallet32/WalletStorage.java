@@ -0,0 +1,41 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Where a wallet's files and bundled assets come from.  On a device
+// this is the WalletApplication; off-device it's a plain directory.
+//
+public interface WalletStorage {
+
+    File getWalletDir();
+
+    String getWalletPrefix();
+
+    File getHDWalletFile(String suffix);
+
+    // Opens a bundled asset, eg. the wordlist or checkpoints.
+    InputStream openAsset(String name) throws IOException;
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -18,9 +18,7 @@ package com.bonsai.wallet32;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -28,8 +26,6 @@ import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Hashtable;
 import java.util.List;
-import org.bitcoinj.wallet.Protos;
-import org.bitcoinj.wallet.Protos.ScryptParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
@@ -57,7 +53,6 @@ import com.google.bitcoin.crypto.MnemonicCodeX;
 import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
-import com.google.protobuf.ByteString;
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
 import com.google.zxing.WriterException;
@@ -70,8 +65,6 @@ public class WalletUtil {
     private static Logger mLogger =
         LoggerFactory.getLogger(WalletUtil.class);
 
-    private static final String filePrefix = "wallet32";
-
 	private final static QRCodeWriter sQRCodeWriter = new QRCodeWriter();
 
     @SuppressLint("TrulyRandom")
@@ -158,7 +151,7 @@ public class WalletUtil {
 
         // Can we parse our wallet file?
         try {
-            HDWallet.deserialize(wallapp, keyCrypter, aesKey);
+            HDWallet.checkFile(wallapp, aesKey);
         } catch (Exception ex) {
             mLogger.warn("passcode didn't deserialize wallet");
             return false;
@@ -193,22 +186,13 @@ public class WalletUtil {
 		}
     }
 
+    // The salt and key derivation are shared with the headless runner
+    // through WalletEngine, which doesn't need a Context.
     public static byte[] readSalt(Context context) {
         WalletApplication wallapp =
             (WalletApplication) context.getApplicationContext();
-
-        File saltFile = new File(wallapp.getWalletDir(), "salt");
-
-        byte[] salt = new byte[(int) saltFile.length()];
-        DataInputStream dis;
 		try {
-			dis = new DataInputStream(new FileInputStream(saltFile));
-			dis.readFully(salt);
-			dis.close();
-            // mLogger.info("read salt " + new String(Hex.encode(salt)));
-            return salt;
-		} catch (FileNotFoundException ex) {
-			ex.printStackTrace();
+            return WalletEngine.readSalt(wallapp);
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		}
@@ -216,11 +200,7 @@ public class WalletUtil {
     }
 
     public static KeyCrypter getKeyCrypter(byte[] salt) {
-        Protos.ScryptParameters.Builder scryptParametersBuilder =
-            Protos.ScryptParameters.newBuilder()
-            .setSalt(ByteString.copyFrom(salt));
-        ScryptParameters scryptParameters = scryptParametersBuilder.build();
-        return new KeyCrypterGroestl(scryptParameters);
+        return WalletEngine.getKeyCrypter(salt);
     }
 
     public static byte[] msgHexToBytes(String hexstr) {
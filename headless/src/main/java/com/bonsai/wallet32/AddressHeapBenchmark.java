@@ -0,0 +1,254 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+
+// Measures the heap held by a wallet's addresses in the packed
+// per-chain form, against one object with its own key arrays per
+// address and against the original layout which also kept an ECKey,
+// an Address and the path string per address.
+//
+// The keys are random rather than derived, which would take minutes
+// for a large wallet and doesn't change the sizes.  The packed figure
+// includes the HDAddressIndex, which the others don't have; its share
+// is measured by indexing the same addresses a second time.
+//
+//   AddressHeapBenchmark [numaddrs]
+//
+public class AddressHeapBenchmark {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(AddressHeapBenchmark.class);
+
+    private final NetworkParameters	mParams;
+    private final DeterministicKey	mMasterKey;
+    private final Random			mRandom = new Random(1);
+
+    // Per address state with separate key arrays.
+    private static class ArrayAddress {
+        NetworkParameters	mParams;
+        DeterministicKey	mChainKey;
+        int					mAddrNum;
+        byte[]				mPrvBytes;
+        byte[]				mPubBytes;
+        byte[]				mPubKeyHash;
+        long				mCreationTime;
+        int					mNumTrans;
+        long				mBalance;
+        long				mAvailable;
+    }
+
+    // The original per address state.
+    private static class LegacyAddress {
+        NetworkParameters	mParams;
+        int					mAddrNum;
+        String				mPath;
+        byte[]				mPrvBytes;
+        byte[]				mPubBytes;
+        ECKey				mECKey;
+        byte[]				mPubKey;
+        byte[]				mPubKeyHash;
+        Address				mAddress;
+        int					mNumTrans;
+        long				mBalance;
+        long				mAvailable;
+    }
+
+    public AddressHeapBenchmark(NetworkParameters params) {
+        mParams = params;
+        byte[] seed = new byte[32];
+        mRandom.nextBytes(seed);
+        mMasterKey = HDKeyDerivation.createMasterPrivateKey(seed);
+    }
+
+    private byte[][] makeKeys(int numAddrs) {
+        byte[][] keys = new byte[numAddrs * 2][];
+        for (int ii = 0; ii < numAddrs; ++ii) {
+            byte[] prv = new byte[32];
+            byte[] pub = new byte[33];
+            mRandom.nextBytes(prv);
+            mRandom.nextBytes(pub);
+            pub[0] = 0x02;
+            keys[ii * 2] = prv;
+            keys[ii * 2 + 1] = pub;
+        }
+        return keys;
+    }
+
+    // A chain as HDChain.Snapshot writes it.
+    private static byte[] chainBytes(byte[][] keys, int first, int count,
+                                     boolean isReceive) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeBoolean(isReceive);
+        dos.writeUTF(isReceive ? "Receive" : "Change");
+        dos.writeInt(count);
+        for (int ii = 0; ii < count; ++ii) {
+            byte[] prv = keys[(first + ii) * 2];
+            byte[] pub = keys[(first + ii) * 2 + 1];
+            dos.writeInt(ii);
+            HDWalletFile.writeBytes(dos, prv);
+            HDWalletFile.writeBytes(dos, pub);
+            HDWalletFile.writeBytes(dos, Utils.sha256hash160(pub));
+            dos.writeInt(0);
+            dos.writeLong(0);
+            dos.writeLong(0);
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    private Object makePacked(byte[][] keys, int numAddrs)
+        throws IOException {
+        int numReceive = numAddrs / 2;
+        byte[] rcv = chainBytes(keys, 0, numReceive, true);
+        byte[] chg = chainBytes(keys, numReceive, numAddrs - numReceive,
+                                false);
+        long before = usedHeap();
+
+        HDAddressIndex index = new HDAddressIndex();
+        HDAccount acct =
+            new HDAccount(mParams, index, mMasterKey, "Account 0", 0,
+                          HDWallet.HDStructVersion.HDSV_STDV1);
+        DeterministicKey acctKey =
+            HDKeyDerivation.deriveChildKey(mMasterKey, 0);
+        List<Object> held = new ArrayList<Object>();
+        held.add(index);
+        held.add(new HDChain(mParams, acct, index, acctKey,
+                             new DataInputStream
+                             (new ByteArrayInputStream(rcv))));
+        held.add(new HDChain(mParams, acct, index, acctKey,
+                             new DataInputStream
+                             (new ByteArrayInputStream(chg))));
+
+        long packed = usedHeap() - before;
+
+        HDAddressIndex second = new HDAddressIndex();
+        for (int ii = 1; ii < held.size(); ++ii) {
+            HDChain chain = (HDChain) held.get(ii);
+            for (HDAddress addr : chain.getAddresses())
+                second.add(acct, chain, addr);
+        }
+        long indexed = usedHeap() - before - packed;
+        held.add(second);
+
+        report("packed", numAddrs, packed);
+        report("  of which index", numAddrs, indexed);
+        return held;
+    }
+
+    private Object makeArrays(byte[][] keys, int numAddrs) {
+        long before = usedHeap();
+        DeterministicKey chainKey =
+            HDKeyDerivation.deriveChildKey(mMasterKey, 0);
+        List<ArrayAddress> addrs = new ArrayList<ArrayAddress>(numAddrs);
+        for (int ii = 0; ii < numAddrs; ++ii) {
+            ArrayAddress addr = new ArrayAddress();
+            addr.mParams = mParams;
+            addr.mChainKey = chainKey;
+            addr.mAddrNum = ii;
+            addr.mPrvBytes = keys[ii * 2].clone();
+            addr.mPubBytes = keys[ii * 2 + 1].clone();
+            addr.mPubKeyHash = Utils.sha256hash160(addr.mPubBytes);
+            addr.mCreationTime = HDAddress.EPOCH;
+            addrs.add(addr);
+        }
+        report("arrays", numAddrs, usedHeap() - before);
+        return addrs;
+    }
+
+    private Object makeLegacy(byte[][] keys, int numAddrs) {
+        long before = usedHeap();
+        DeterministicKey chainKey =
+            HDKeyDerivation.deriveChildKey(mMasterKey, 0);
+        List<LegacyAddress> addrs = new ArrayList<LegacyAddress>(numAddrs);
+        for (int ii = 0; ii < numAddrs; ++ii) {
+            LegacyAddress addr = new LegacyAddress();
+            addr.mParams = mParams;
+            addr.mAddrNum = ii;
+            addr.mPath = chainKey.getPath() + "/" + ii;
+            addr.mPrvBytes = keys[ii * 2].clone();
+            addr.mPubBytes = keys[ii * 2 + 1].clone();
+            addr.mECKey = new ECKey(addr.mPrvBytes, addr.mPubBytes);
+            addr.mPubKey = addr.mECKey.getPubKey();
+            addr.mPubKeyHash = addr.mECKey.getPubKeyHash();
+            addr.mAddress = new Address(mParams, addr.mPubKeyHash);
+            addrs.add(addr);
+        }
+        report("legacy", numAddrs, usedHeap() - before);
+        return addrs;
+    }
+
+    private static void report(String name, int numAddrs, long bytes) {
+        mLogger.info(String.format("%s: %d addresses, %d KB, %d bytes "
+                                   + "per address", name, numAddrs,
+                                   bytes / 1024, bytes / numAddrs));
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int ii = 0; ii < 4; ++ii) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numAddrs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        AddressHeapBenchmark bench =
+            new AddressHeapBenchmark(NetworkMode.MAIN.getParams());
+        byte[][] keys = bench.makeKeys(numAddrs);
+
+        // Each form is dropped before the next is measured.
+        Object held = bench.makePacked(keys, numAddrs);
+        held = null;
+        held = bench.makeArrays(keys, numAddrs);
+        held = null;
+        held = bench.makeLegacy(keys, numAddrs);
+        held = null;
+        System.exit(0);
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
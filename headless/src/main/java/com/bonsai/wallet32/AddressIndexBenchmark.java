@@ -0,0 +1,182 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.bitcoin.script.Script;
+
+// Compares matching transaction outputs to wallet addresses through
+// the HDAddressIndex with the linear scan over every chain it
+// replaced, on a synthetic wallet.  Half the outputs pay the wallet,
+// the rest pay addresses which aren't in it.
+//
+//   AddressIndexBenchmark [numaddrs [numtxs [numaccounts]]]
+//
+public class AddressIndexBenchmark {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(AddressIndexBenchmark.class);
+
+    private static final int	ROUNDS = 5;
+    private static final int	NUM_FOREIGN = 100;
+
+    private final NetworkParameters	mParams;
+    private final HDAddressIndex	mIndex = new HDAddressIndex();
+    private final List<HDChain>		mChains = new ArrayList<HDChain>();
+    private final List<HDAddress>	mAddrs = new ArrayList<HDAddress>();
+    private final Random			mRandom = new Random(1);
+
+    public AddressIndexBenchmark(NetworkParameters params) {
+        mParams = params;
+    }
+
+    // Builds the accounts, with the addresses split evenly over their
+    // receive and change chains.
+    public void makeWallet(int numAddrs, int numAccounts) {
+        long t0 = System.currentTimeMillis();
+        byte[] seed = new byte[32];
+        mRandom.nextBytes(seed);
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(seed);
+
+        int perChain = Math.max(1, numAddrs / (numAccounts * 2));
+        for (int ii = 0; ii < numAccounts; ++ii) {
+            HDAccount acct =
+                new HDAccount(mParams, mIndex, master, "Account " + ii, ii,
+                              HDWallet.HDStructVersion.HDSV_STDV1);
+            DeterministicKey acctKey =
+                HDKeyDerivation.deriveChildKey(master, ii);
+            for (int jj = 0; jj < 2; ++jj) {
+                HDChain chain =
+                    new HDChain(mParams, acct, mIndex, acctKey, jj == 0,
+                                jj == 0 ? "Receive" : "Change", perChain);
+                mChains.add(chain);
+                mAddrs.addAll(chain.getAddresses());
+            }
+        }
+        mLogger.info(String.format("made %d addresses in %d chains "
+                                   + "in %d msec", mAddrs.size(),
+                                   mChains.size(),
+                                   System.currentTimeMillis() - t0));
+    }
+
+    private List<TransactionOutput> makeOutputs(int numTxs) {
+        List<Address> foreign = new ArrayList<Address>();
+        for (int ii = 0; ii < NUM_FOREIGN; ++ii)
+            foreign.add(new ECKey().toAddress(mParams));
+
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+        for (int ii = 0; ii < numTxs; ++ii) {
+            Transaction tx = new Transaction(mParams);
+            for (int jj = 0; jj < 2; ++jj) {
+                Address addr = mRandom.nextBoolean() ?
+                    mAddrs.get(mRandom.nextInt(mAddrs.size())).getAddress() :
+                    foreign.get(mRandom.nextInt(foreign.size()));
+                outputs.add(tx.addOutput(BigInteger.valueOf(10000), addr));
+            }
+        }
+        return outputs;
+    }
+
+    // Returns the number of outputs matched.
+    private int matchIndexed(List<TransactionOutput> outputs)
+        throws ScriptException {
+        int matched = 0;
+        for (TransactionOutput to : outputs) {
+            Script script = to.getScriptPubKey();
+            if (mIndex.lookup(null, script.getPubKeyHash()) != null)
+                ++matched;
+        }
+        return matched;
+    }
+
+    // As HDWallet.applyAllTransactions did before the index.
+    private int matchLinear(List<TransactionOutput> outputs)
+        throws ScriptException {
+        int matched = 0;
+        for (TransactionOutput to : outputs) {
+            Script script = to.getScriptPubKey();
+            byte[] pubkeyhash = script.getPubKeyHash();
+            for (HDChain chain : mChains) {
+                if (chain.hasPubKey(null, pubkeyhash)) {
+                    ++matched;
+                    break;
+                }
+            }
+        }
+        return matched;
+    }
+
+    public void run(int numTxs) throws ScriptException {
+        List<TransactionOutput> outputs = makeOutputs(numTxs);
+
+        long bestIndexed = Long.MAX_VALUE;
+        long bestLinear = Long.MAX_VALUE;
+        int nIndexed = 0;
+        int nLinear = 0;
+        for (int round = 0; round < ROUNDS; ++round) {
+            long t0 = System.nanoTime();
+            nIndexed = matchIndexed(outputs);
+            long t1 = System.nanoTime();
+            nLinear = matchLinear(outputs);
+            long t2 = System.nanoTime();
+            bestIndexed = Math.min(bestIndexed, t1 - t0);
+            bestLinear = Math.min(bestLinear, t2 - t1);
+        }
+        if (nIndexed != nLinear)
+            mLogger.error(String.format("index matched %d outputs, scan %d",
+                                        nIndexed, nLinear));
+
+        mLogger.info(String.format("%d addresses, %d outputs, %d ours: "
+                                   + "indexed %.2f msec, linear %.2f msec, "
+                                   + "%.0fx", mAddrs.size(), outputs.size(),
+                                   nIndexed, bestIndexed / 1e6,
+                                   bestLinear / 1e6,
+                                   (double) bestLinear / bestIndexed));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numAddrs = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int numTxs = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int numAccounts = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        AddressIndexBenchmark bench =
+            new AddressIndexBenchmark(NetworkMode.MAIN.getParams());
+        bench.makeWallet(numAddrs, numAccounts);
+        bench.run(numTxs);
+        System.exit(0);
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,227 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.HeadersMessage;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+
+// Writes the headers, blocks and transactions the download peer sends
+// to a file, in the order they arrive, so a sync can be replayed into
+// the wallet later without the network (see BlockReplayHarness).  The
+// file starts with the chain head the download started from.
+//
+// Messages are serialized on the peer thread, as they arrive, and
+// written in order on a thread of our own so the disk doesn't hold up
+// the download.
+//
+public class BlockRecorder extends AbstractPeerEventListener {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(BlockRecorder.class);
+
+    private static final int	MAGIC = 0x57333252;	// "W32R"
+    private static final int	VERSION = 2;	// Int record lengths
+
+    // Record types.
+    public static final int		REC_START = 1;		// StoredBlock, compact
+    public static final int		REC_HEADER = 2;		// Block header
+    public static final int		REC_BLOCK = 3;		// Full block
+    public static final int		REC_FILTERED = 4;	// FilteredBlock
+    public static final int		REC_TX = 5;			// Transaction
+
+    private final PeerGroup			mPeerGroup;
+    private final DataOutputStream	mOut;
+    private final ExecutorService	mWriter =
+        Executors.newSingleThreadExecutor();
+
+    private long					mNumRecords = 0;
+    private boolean					mFailed = false;
+
+    public BlockRecorder(File file, PeerGroup peerGroup, StoredBlock start)
+        throws IOException {
+        mPeerGroup = peerGroup;
+        mOut = new DataOutputStream
+            (new BufferedOutputStream(new FileOutputStream(file)));
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+
+        ByteBuffer buf = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        start.serializeCompact(buf);
+        writeRecord(REC_START, buf.array());
+
+        mLogger.info("recording to " + file.getPath() + " from height " +
+                     start.getHeight());
+    }
+
+    @Override
+    public Message onPreMessageReceived(Peer peer, Message m) {
+        // Transactions are matched with the filtered block they follow,
+        // so only take them from the peer the blocks come from.
+        if (peer != mPeerGroup.getDownloadPeer())
+            return m;
+
+        if (m instanceof HeadersMessage) {
+            for (Block header : ((HeadersMessage) m).getBlockHeaders())
+                write(REC_HEADER, header.cloneAsHeader().bitcoinSerialize());
+        }
+        else if (m instanceof FilteredBlock)
+            write(REC_FILTERED, m.bitcoinSerialize());
+        else if (m instanceof Block)
+            write(REC_BLOCK, m.bitcoinSerialize());
+        else if (m instanceof Transaction)
+            write(REC_TX, m.bitcoinSerialize());
+        return m;
+    }
+
+    // Queues the record for the writer thread.
+    private synchronized void write(final int type, final byte[] data) {
+        if (mWriter.isShutdown())
+            return;
+        mWriter.execute(new Runnable() {
+                public void run() {
+                    if (mFailed)
+                        return;
+                    try {
+                        writeRecord(type, data);
+                    }
+                    catch (IOException ex) {
+                        // The rest would be missing its context.
+                        mLogger.error("recording failed: " + ex.toString());
+                        mFailed = true;
+                    }
+                }
+            });
+    }
+
+    private void writeRecord(int type, byte[] data) throws IOException {
+        mOut.writeByte(type);
+        mOut.writeInt(data.length);
+        mOut.write(data);
+        ++mNumRecords;
+    }
+
+    // Writes out what's queued and closes the file.
+    public void close() {
+        synchronized (this) {
+            mWriter.shutdown();
+        }
+        try {
+            mWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mOut.close();
+            mLogger.info(String.format("recorded %d messages", mNumRecords));
+        }
+        catch (IOException ex) {
+            mLogger.error("trouble closing recording: " + ex.toString());
+        }
+    }
+
+    // Reads a recording back, one record at a time.
+    public static class Reader {
+        private final NetworkParameters	mParams;
+        private final DataInputStream	mIn;
+
+        private int						mType;
+        private byte[]					mData;
+
+        public Reader(File file, NetworkParameters params)
+            throws IOException {
+            mParams = params;
+            mIn = new DataInputStream
+                (new BufferedInputStream(new FileInputStream(file)));
+            if (mIn.readInt() != MAGIC || mIn.readInt() != VERSION)
+                throw new IOException("not a block recording: " +
+                                      file.getPath());
+        }
+
+        // Moves to the next record, false at the end.
+        public boolean next() throws IOException {
+            try {
+                mType = mIn.readByte();
+            }
+            catch (EOFException ex) {
+                return false;
+            }
+            int len = mIn.readInt();
+            if (len < 0 || len > Block.MAX_BLOCK_SIZE)
+                throw new IOException("bad record length " + len);
+            mData = new byte[len];
+            mIn.readFully(mData);
+            return true;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public StoredBlock getStoredBlock() throws ProtocolException {
+            return StoredBlock.deserializeCompact(mParams,
+                                                  ByteBuffer.wrap(mData));
+        }
+
+        public Block getBlock() throws ProtocolException {
+            return new Block(mParams, mData);
+        }
+
+        public FilteredBlock getFilteredBlock() throws ProtocolException {
+            return new FilteredBlock(mParams, mData);
+        }
+
+        public Transaction getTransaction() throws ProtocolException {
+            return new Transaction(mParams, mData);
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,332 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PrunedException;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.WalletTransaction;
+
+// Replays a BlockRecorder recording into a BlockChain, Wallet and
+// HDWallet, without the network, and reports where the time went.
+// The wallet listener does what WalletEngine's does on each change,
+// so the HDWallet hot paths are timed as they run during a sync.
+//
+//   BlockReplayHarness [--network main|testnet|regtest|unittest]
+//                      walletdir assetdir passcode recording
+//
+// The wallet directory is only read from; the HDWallet is persisted
+// to a scratch copy so runs can be repeated.
+//
+public class BlockReplayHarness {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(BlockReplayHarness.class);
+
+    // Same batching as the WalletEngine uses.
+    private static final long	PERSIST_WINDOW_MSECS = 5000;
+
+    private final WalletStorage			mStorage;
+    private final NetworkParameters		mParams;
+    private final KeyCrypter			mKeyCrypter;
+    private final KeyParameter			mAesKey;
+
+    private HDWallet			mHDWallet;
+    private Wallet				mWallet;
+    private HDWalletPersister	mPersister;
+
+    private boolean				mReorganized = false;
+
+    // What the wallet listener spent its time on.
+    private long				mNumChanges = 0;
+    private long				mApplyMsecs = 0;
+    private long				mMarginMsecs = 0;
+    private long				mAddrsAdded = 0;
+    private long				mRescansNeeded = 0;
+
+    public BlockReplayHarness(WalletStorage storage,
+                              NetworkParameters params,
+                              KeyCrypter keyCrypter,
+                              KeyParameter aesKey) {
+        mStorage = storage;
+        mParams = params;
+        mKeyCrypter = keyCrypter;
+        mAesKey = aesKey;
+    }
+
+    private AbstractWalletEventListener mWalletListener =
+        new AbstractWalletEventListener() {
+            @Override
+            public void onReorganize(Wallet wallet) {
+                mReorganized = true;
+            }
+
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                ++mNumChanges;
+
+                long t0 = System.currentTimeMillis();
+                Iterable<WalletTransaction> iwt =
+                    mWallet.getWalletTransactions();
+                if (mReorganized) {
+                    mReorganized = false;
+                    mHDWallet.verifyBalances(iwt);
+                } else {
+                    mHDWallet.applyChangedTransactions(iwt);
+                }
+                long t1 = System.currentTimeMillis();
+                mApplyMsecs += t1 - t0;
+
+                int maxExtended = mHDWallet.ensureMargins(mWallet);
+                mMarginMsecs += System.currentTimeMillis() - t1;
+                mAddrsAdded += maxExtended;
+
+                // The app would rescan here; the recording can't
+                // include what the new addresses would have matched.
+                if (maxExtended > HDChain.maxSafeExtend())
+                    ++mRescansNeeded;
+
+                mPersister.requestPersist(mHDWallet);
+            }
+        };
+
+    public void replay(File recording)
+        throws IOException,
+               BlockStoreException,
+               VerificationException,
+               PrunedException {
+
+        long t0 = System.currentTimeMillis();
+        mHDWallet = HDWallet.restore(mStorage, mParams, mKeyCrypter, mAesKey);
+        if (mHDWallet == null)
+            throw new IOException("can't restore the HDWallet");
+        long restoreMsecs = System.currentTimeMillis() - t0;
+
+        t0 = System.currentTimeMillis();
+        mWallet = new Wallet(mParams, mKeyCrypter);
+        KeyImportTracker.forWallet(mWallet);
+        int numKeys = mHDWallet.importNewKeys(mWallet, HDAddress.EPOCH);
+        mHDWallet.ensureMargins(mWallet);
+        long importMsecs = System.currentTimeMillis() - t0;
+
+        mPersister = new HDWalletPersister(mStorage, PERSIST_WINDOW_MSECS);
+
+        BlockRecorder.Reader reader =
+            new BlockRecorder.Reader(recording, mParams);
+        if (!reader.next() || reader.getType() != BlockRecorder.REC_START)
+            throw new IOException("recording has no start block");
+        StoredBlock start = reader.getStoredBlock();
+
+        MemoryBlockStore store = new MemoryBlockStore(mParams);
+        store.put(start);
+        store.setChainHead(start);
+        BlockChain chain = new BlockChain(mParams, mWallet, store);
+
+        mWallet.addEventListener(mWalletListener, Threading.SAME_THREAD);
+
+        long numHeaders = 0;
+        long numBlocks = 0;
+        long numTxs = 0;
+
+        // Transactions following a filtered block are the ones it
+        // matched; it's added to the chain once they've all arrived,
+        // as the Peer does.
+        FilteredBlock pending = null;
+
+        t0 = System.currentTimeMillis();
+        while (reader.next()) {
+            int type = reader.getType();
+
+            if (type == BlockRecorder.REC_TX) {
+                Transaction tx = reader.getTransaction();
+                ++numTxs;
+                if (pending != null &&
+                    pending.getTransactionHashes().contains(tx.getHash())) {
+                    pending.provideTransaction(tx);
+                    continue;
+                }
+                pending = endFilteredBlock(chain, pending);
+                if (mWallet.isPendingTransactionRelevant(tx))
+                    mWallet.receivePending(tx, null);
+                continue;
+            }
+
+            pending = endFilteredBlock(chain, pending);
+
+            switch (type) {
+            case BlockRecorder.REC_HEADER:
+                chain.add(reader.getBlock());
+                ++numHeaders;
+                break;
+            case BlockRecorder.REC_BLOCK:
+                chain.add(reader.getBlock());
+                ++numBlocks;
+                break;
+            case BlockRecorder.REC_FILTERED:
+                pending = reader.getFilteredBlock();
+                ++numBlocks;
+                break;
+            default:
+                mLogger.warn("skipping record of type " + type);
+                break;
+            }
+        }
+        endFilteredBlock(chain, pending);
+        reader.close();
+        long replayMsecs = System.currentTimeMillis() - t0;
+
+        // What the engine does once the sync is done.
+        t0 = System.currentTimeMillis();
+        mHDWallet.applyAllTransactions(mWallet.getWalletTransactions());
+        long applyAllMsecs = System.currentTimeMillis() - t0;
+
+        mWallet.removeEventListener(mWalletListener);
+        mPersister.shutdown();
+
+        double blocksPerSec =
+            (numHeaders + numBlocks) * 1000.0 / Math.max(replayMsecs, 1);
+        mLogger.info(String.format("restore: %d msec, import %d keys: %d msec",
+                                   restoreMsecs, numKeys, importMsecs));
+        mLogger.info(String.format("replayed %d headers, %d blocks, %d txs "
+                                   + "to height %d in %d msec, "
+                                   + "%.1f blocks/sec",
+                                   numHeaders, numBlocks, numTxs,
+                                   chain.getBestChainHeight(), replayMsecs,
+                                   blocksPerSec));
+        mLogger.info(String.format("%d wallet changes: apply %d msec, "
+                                   + "ensureMargins %d msec (%d added, "
+                                   + "%d rescans needed)",
+                                   mNumChanges, mApplyMsecs, mMarginMsecs,
+                                   mAddrsAdded, mRescansNeeded));
+        mLogger.info(String.format("applyAllTransactions: %d msec",
+                                   applyAllMsecs));
+        mLogger.info(String.format("persist: %d requested, %d written "
+                                   + "in %d msec",
+                                   mPersister.getNumRequested(),
+                                   mPersister.getNumWritten(),
+                                   mPersister.getWriteMsecs()));
+        for (HDAccount acct : mHDWallet.getAccounts())
+            acct.logBalance();
+    }
+
+    private static FilteredBlock endFilteredBlock(BlockChain chain,
+                                                  FilteredBlock pending)
+        throws VerificationException, PrunedException {
+        if (pending != null)
+            chain.add(pending);
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        NetworkMode mode = NetworkMode.MAIN;
+
+        int ii = 0;
+        if (args.length > 1 && args[0].equals("--network")) {
+            mode = NetworkMode.fromName(args[1]);
+            ii = 2;
+        }
+        if (mode == null || args.length - ii != 4) {
+            System.err.println("usage: BlockReplayHarness "
+                               + "[--network main|testnet|regtest|unittest] "
+                               + "walletdir assetdir passcode recording");
+            System.exit(2);
+        }
+
+        ScratchStorage storage =
+            new ScratchStorage(new File(args[ii]), new File(args[ii + 1]),
+                               mode);
+        KeyCrypter keyCrypter =
+            WalletEngine.getKeyCrypter(WalletEngine.readSalt(storage));
+        KeyParameter aesKey = keyCrypter.deriveKey(args[ii + 2]);
+
+        new BlockReplayHarness(storage, mode.getParams(), keyCrypter, aesKey)
+            .replay(new File(args[ii + 3]));
+
+        storage.cleanup();
+        System.exit(0);
+    }
+
+    // Works on a copy of the HDWallet file in a scratch directory, so
+    // the recorded wallet isn't changed by the replay.
+    private static class ScratchStorage
+        extends HeadlessWalletRunner.DirStorage {
+        private final File		mScratchDir;
+
+        public ScratchStorage(File walletDir,
+                              File assetDir,
+                              NetworkMode mode)
+            throws IOException {
+            super(walletDir, assetDir, mode);
+            mScratchDir = File.createTempFile("replay", ".dir");
+            if (!mScratchDir.delete() || !mScratchDir.mkdir())
+                throw new IOException("can't create scratch directory");
+
+            InputStream is =
+                new FileInputStream(super.getHDWalletFile(null));
+            OutputStream os = new FileOutputStream(getHDWalletFile(null));
+            try {
+                byte[] buf = new byte[8192];
+                int nn;
+                while ((nn = is.read(buf)) != -1)
+                    os.write(buf, 0, nn);
+            } finally {
+                is.close();
+                os.close();
+            }
+        }
+
+        @Override
+        public File getHDWalletFile(String suffix) {
+            return new File(mScratchDir,
+                            super.getHDWalletFile(suffix).getName());
+        }
+
+        public void cleanup() {
+            File[] files = mScratchDir.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            mScratchDir.delete();
+        }
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
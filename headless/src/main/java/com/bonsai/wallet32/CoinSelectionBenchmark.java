@@ -0,0 +1,202 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.wallet.AllowUnconfirmedCoinSelector;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+
+// Compares the BnBCoinSelector with the bitcoinj default selector on
+// synthetic sets of unspent outputs: inputs used, how often no change
+// is needed, the estimated fee and the time taken.
+//
+//   CoinSelectionBenchmark [numoutputs [numsends]]
+//
+public class CoinSelectionBenchmark {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(CoinSelectionBenchmark.class);
+
+    private static final long	COIN = 100000000L;
+
+    private final NetworkParameters		mParams;
+    private final Address				mAddress;
+    private final Random				mRandom = new Random(1);
+
+    public CoinSelectionBenchmark(NetworkParameters params) {
+        mParams = params;
+        mAddress = new ECKey().toAddress(params);
+    }
+
+    private static class Result {
+        public long		mSends = 0;
+        public long		mShort = 0;
+        public long		mInputs = 0;
+        public long		mChangeless = 0;
+        public long		mFees = 0;
+        public long		mMsecs = 0;
+        public long		mMaxMsecs = 0;
+    }
+
+    private interface Distribution {
+        public String getName();
+        public long nextValue(Random random);
+    }
+
+    private static final Distribution[] mDistributions = {
+        // Anything from a millicoin to a coin.
+        new Distribution() {
+            public String getName() { return "uniform"; }
+            public long nextValue(Random random) {
+                return COIN / 1000 + (long) (random.nextDouble() * COIN);
+            }
+        },
+        // Mostly small receipts, a few large ones.
+        new Distribution() {
+            public String getName() { return "skewed"; }
+            public long nextValue(Random random) {
+                return 10000 + (long) (-Math.log(1.0 - random.nextDouble())
+                                       * COIN / 50);
+            }
+        },
+        // Round amounts, so exact matches are common.
+        new Distribution() {
+            public String getName() { return "round"; }
+            public long nextValue(Random random) {
+                return (1 + random.nextInt(50)) * COIN / 100;
+            }
+        },
+    };
+
+    private LinkedList<TransactionOutput> makeOutputs(Distribution dist,
+                                                      int numOutputs) {
+        LinkedList<TransactionOutput> outputs =
+            new LinkedList<TransactionOutput>();
+        for (int ii = 0; ii < numOutputs; ++ii) {
+            Transaction tx = new Transaction(mParams);
+            outputs.add(tx.addOutput(BigInteger.valueOf
+                                     (dist.nextValue(mRandom)), mAddress));
+        }
+        return outputs;
+    }
+
+    private void runSend(CoinSelector selector,
+                         LinkedList<TransactionOutput> outputs,
+                         long value,
+                         Result result) {
+        // Same search as the fee estimator, timing the selections.
+        long fee = FeeEstimator.feeForSize(FeeEstimator.estimateSize(1, 2),
+                                           false);
+        for (int pass = 0; pass < 8; ++pass) {
+            long t0 = System.currentTimeMillis();
+            CoinSelection selection =
+                selector.select(BigInteger.valueOf(value + fee), outputs);
+            long msecs = System.currentTimeMillis() - t0;
+            result.mMsecs += msecs;
+            result.mMaxMsecs = Math.max(result.mMaxMsecs, msecs);
+
+            long change =
+                selection.valueGathered.longValue() - value - fee;
+            if (change < 0) {
+                ++result.mShort;
+                return;
+            }
+            boolean hasChange = change > BnBCoinSelector.MAX_EXCESS;
+            int numInputs = selection.gathered.size();
+            long required = FeeEstimator.feeForSize
+                (FeeEstimator.estimateSize(numInputs, hasChange ? 2 : 1),
+                 hasChange && change < COIN / 100);
+            if (required <= fee) {
+                ++result.mSends;
+                result.mInputs += numInputs;
+                result.mFees += hasChange ? fee : fee + change;
+                if (!hasChange)
+                    ++result.mChangeless;
+                return;
+            }
+            fee = required;
+        }
+    }
+
+    public void run(int numOutputs, int numSends) {
+        for (Distribution dist : mDistributions) {
+            LinkedList<TransactionOutput> outputs =
+                makeOutputs(dist, numOutputs);
+            long total = 0;
+            for (TransactionOutput to : outputs)
+                total += to.getValue().longValue();
+
+            CoinSelector[] selectors = {
+                new AllowUnconfirmedCoinSelector(),
+                new BnBCoinSelector(true),
+            };
+            String[] names = { "default", "bnb" };
+            Result[] results = { new Result(), new Result() };
+
+            Random random = new Random(2);
+            for (int ii = 0; ii < numSends; ++ii) {
+                // Sends of up to a tenth of the balance.
+                long value = COIN / 1000 +
+                    (long) (random.nextDouble() * total / 10);
+                for (int jj = 0; jj < selectors.length; ++jj)
+                    runSend(selectors[jj], outputs, value, results[jj]);
+            }
+
+            for (int jj = 0; jj < selectors.length; ++jj) {
+                Result rr = results[jj];
+                long sends = Math.max(rr.mSends, 1);
+                mLogger.info(String.format("%s/%s: %d outputs, %d sends "
+                                           + "(%d short): %.1f inputs, "
+                                           + "%.0f%% changeless, fee %d, "
+                                           + "%.2f msec avg, %d max",
+                                           dist.getName(), names[jj],
+                                           numOutputs, rr.mSends, rr.mShort,
+                                           (double) rr.mInputs / sends,
+                                           100.0 * rr.mChangeless / sends,
+                                           rr.mFees / sends,
+                                           (double) rr.mMsecs / sends,
+                                           rr.mMaxMsecs));
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int numOutputs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int numSends = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        new CoinSelectionBenchmark(NetworkMode.MAIN.getParams())
+            .run(numOutputs, numSends);
+        System.exit(0);
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,289 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.utils.Threading;
+
+// Runs the WalletEngine on a plain JVM, without a device, so startup
+// and sync can be timed from a script.  The wallet directory holds the
+// same files as on a device (salt, wallet32.hdwallet, ...; regtest and
+// unittest use wallet32-regtest.hdwallet and so on), and the
+// asset directory the files the app bundles (wordlist, checkpoints).
+//
+//   HeadlessWalletRunner [--network main|testnet|regtest|unittest]
+//                        [--peer host[:port],...] [--timeout secs]
+//                        [--record file] walletdir assetdir passcode
+//
+// The regtest and unittest networks connect to localhost unless peers
+// are given, so whole runs can be done against a local node.
+//
+public class HeadlessWalletRunner {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(HeadlessWalletRunner.class);
+
+    // Serves the wallet files and assets from two directories.
+    public static class DirStorage implements WalletStorage {
+        private final File		mWalletDir;
+        private final File		mAssetDir;
+        private final String	mPrefix;
+
+        public DirStorage(File walletDir, File assetDir, NetworkMode mode) {
+            mWalletDir = walletDir;
+            mAssetDir = assetDir;
+            mPrefix = mode.getFilePrefix();
+        }
+
+        public File getWalletDir() {
+            return mWalletDir;
+        }
+
+        public String getWalletPrefix() {
+            return mPrefix;
+        }
+
+        public File getHDWalletFile(String suffix) {
+            String filename = getWalletPrefix() + ".hdwallet";
+            if (suffix != null)
+                filename = filename + suffix;
+            return new File(getWalletDir(), filename);
+        }
+
+        public InputStream openAsset(String name) throws IOException {
+            return new FileInputStream(new File(mAssetDir, name));
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: HeadlessWalletRunner "
+                           + "[--network main|testnet|regtest|unittest] "
+                           + "[--peer host[:port],...] [--timeout secs] "
+                           + "[--record file] "
+                           + "walletdir assetdir passcode");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        NetworkMode mode = NetworkMode.MAIN;
+        String peers = null;
+        File record = null;
+        long timeoutSecs = 3600;
+
+        int ii = 0;
+        for (; ii < args.length && args[ii].startsWith("--"); ++ii) {
+            if (args[ii].equals("--network") && ii + 1 < args.length) {
+                mode = NetworkMode.fromName(args[++ii]);
+                if (mode == null)
+                    usage();
+            }
+            else if (args[ii].equals("--peer") && ii + 1 < args.length)
+                peers = args[++ii];
+            else if (args[ii].equals("--record") && ii + 1 < args.length)
+                record = new File(args[++ii]);
+            else if (args[ii].equals("--timeout") && ii + 1 < args.length)
+                timeoutSecs = Long.parseLong(args[++ii]);
+            else
+                usage();
+        }
+        if (args.length - ii != 3)
+            usage();
+
+        DirStorage storage =
+            new DirStorage(new File(args[ii]), new File(args[ii + 1]), mode);
+        String passcode = args[ii + 2];
+
+        if (peers == null)
+            peers = mode.getDefaultPeerNodes();
+
+        System.exit(run(storage, mode.getParams(), mode.getCheckpointsName(),
+                        passcode, peers, record, timeoutSecs));
+    }
+
+    // Records each kit's download to the file with a BlockRecorder;
+    // a rescan starts the recording over.
+    private static class Recording implements WalletEngine.PeerWatcher {
+        private final File		mFile;
+        private BlockRecorder	mRecorder = null;
+
+        public Recording(File file) {
+            mFile = file;
+        }
+
+        public void onPeersStarted(PeerGroup peerGroup,
+                                   AbstractBlockChain chain) {
+            try {
+                mRecorder = new BlockRecorder(mFile, peerGroup,
+                                              chain.getChainHead());
+                // On the peer thread, to see the messages in order.
+                peerGroup.addEventListener(mRecorder, Threading.SAME_THREAD);
+            } catch (IOException ex) {
+                mLogger.error("can't record: " + ex.toString());
+            }
+        }
+
+        public void onPeersStopping(PeerGroup peerGroup) {
+            if (mRecorder != null) {
+                peerGroup.removeEventListener(mRecorder);
+                mRecorder.close();
+                mRecorder = null;
+            }
+        }
+    }
+
+    // Syncs the wallet once and reports; returns the exit status.
+    public static int run(WalletStorage storage,
+                          NetworkParameters params,
+                          String checkpoints,
+                          String passcode,
+                          String peers,
+                          File record,
+                          long timeoutSecs) throws Exception {
+
+        final CountDownLatch synced = new CountDownLatch(1);
+        final WalletEngine[] engineRef = new WalletEngine[1];
+
+        WalletEngine.Listener listener = new WalletEngine.Listener() {
+                public void onStateChanged(WalletEngine.State state) {
+                    mLogger.info("state " + state);
+                    if (state == WalletEngine.State.READY &&
+                        engineRef[0].getSyncState() ==
+                        WalletEngine.SyncState.SYNCHRONIZED)
+                        synced.countDown();
+                }
+
+                public void onWalletChanged() {
+                }
+
+                public void onCoinsReceived(Transaction tx, long amount) {
+                    mLogger.info("received " + amount + " in " +
+                                 tx.getHashAsString());
+                }
+
+                public void onCoinsSent(Transaction tx, long amount) {
+                    mLogger.info("sent " + amount + " in " +
+                                 tx.getHashAsString());
+                }
+
+                public void onBroadcastStatus(Transaction tx,
+                                              BroadcastQueue.Status status,
+                                              int numPeers) {
+                    mLogger.info(tx.getHashAsString() + " " + status +
+                                 ", seen by " + numPeers);
+                }
+
+                public void onRestart(long scanTime) {
+                    // No service to hand it to; rescan on a new thread
+                    // so the kit's threads aren't tied up.
+                    final long st = scanTime;
+                    new Thread(new Runnable() {
+                            public void run() {
+                                WalletEngine engine = engineRef[0];
+                                engine.finishSetup(engine.setup(st));
+                                checkSynced(engine, synced);
+                            }
+                        }, "rescan").start();
+                }
+            };
+
+        WalletEngine engine =
+            new WalletEngine(storage, params, checkpoints, listener);
+        engineRef[0] = engine;
+
+        KeyCrypter keyCrypter =
+            WalletEngine.getKeyCrypter(WalletEngine.readSalt(storage));
+        KeyParameter aesKey = keyCrypter.deriveKey(passcode);
+        engine.setCredentials(keyCrypter, aesKey);
+
+        engine.setPeerNodes(peers);
+        if (record != null)
+            engine.setPeerWatcher(new Recording(record));
+
+        long t0 = System.currentTimeMillis();
+        engine.setSyncState(WalletEngine.SyncState.STARTUP);
+
+        // Set any new key's creation time to now.
+        long now = Utils.now().getTime() / 1000;
+
+        Integer maxExtended = engine.setup(now);
+        if (maxExtended == null) {
+            mLogger.error("wallet setup failed");
+            engine.shutdown();
+            engine.close();
+            return 1;
+        }
+        engine.finishSetup(maxExtended);
+        checkSynced(engine, synced);
+
+        boolean ok = synced.await(timeoutSecs, TimeUnit.SECONDS);
+        long elapsed = System.currentTimeMillis() - t0;
+
+        for (Map.Entry<String, Long> me :
+                 engine.getStartupTimings().entrySet())
+            mLogger.info(String.format("startup %s: %d msec",
+                                       me.getKey(), me.getValue()));
+        mLogger.info(String.format("%s in %d msec",
+                                   ok ? "synchronized" : "timed out",
+                                   elapsed));
+        if (ok)
+            for (Balance bal : engine.getBalances())
+                mLogger.info(String.format("account %d %s: %d",
+                                           bal.accountId, bal.accountName,
+                                           bal.balance));
+        for (MyPeerGroup.PeerInfo info : engine.getPeerInfo())
+            mLogger.info(String.format("peer %s%s: ping %d msec, "
+                                       + "%d blocks, %.1f blocks/sec",
+                                       info.mAddress,
+                                       info.mIsDownloadPeer ? " (download)" : "",
+                                       info.mPingMsecs, info.mBlocks,
+                                       info.mBlocksPerSec));
+
+        engine.shutdown();
+        engine.close();
+        return ok ? 0 : 1;
+    }
+
+    // The sync may have finished before we got to wait for it.
+    private static void checkSynced(WalletEngine engine,
+                                    CountDownLatch synced) {
+        if (engine.getState() == WalletEngine.State.READY &&
+            engine.getSyncState() == WalletEngine.SyncState.SYNCHRONIZED)
+            synced.countDown();
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
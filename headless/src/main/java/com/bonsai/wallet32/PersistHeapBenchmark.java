@@ -0,0 +1,175 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.MnemonicCodeX;
+
+// Measures how far the heap rises above the live wallet while it is
+// persisted and restored, and how much each allocates in all.  The
+// pools only record their peak when they collect, so run it with a
+// small young generation, eg. -XX:+UseSerialGC -Xmn2m, to collect
+// often enough that the peak follows what is actually live.
+//
+// Deriving the addresses takes a while; the wallet is built once.
+//
+//   PersistHeapBenchmark [numaddrs [numaccounts]]
+//
+public class PersistHeapBenchmark {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(PersistHeapBenchmark.class);
+
+    private static final int	ROUNDS = 3;
+
+    private final NetworkParameters	mParams;
+    private final WalletStorage		mStorage;
+    private final KeyCrypter		mKeyCrypter;
+    private final KeyParameter		mAesKey;
+
+    public PersistHeapBenchmark(NetworkParameters params, File dir) {
+        mParams = params;
+        mStorage = new HeadlessWalletRunner.DirStorage
+            (dir, new File("../app/src/main/assets"), NetworkMode.UNITTEST);
+        mKeyCrypter = WalletEngine.getKeyCrypter(new byte[8]);
+        mAesKey = mKeyCrypter.deriveKey("passcode");
+    }
+
+    public HDWallet makeWallet(int numAddrs, int numAccounts) {
+        long t0 = System.currentTimeMillis();
+        HDWallet hdwallet =
+            new HDWallet(mStorage, mParams, mKeyCrypter, mAesKey,
+                         new byte[16], "", numAccounts,
+                         MnemonicCodeX.Version.V0_6,
+                         HDWallet.HDStructVersion.HDSV_STDV1);
+
+        // Every address is unused, so the margin is the whole chain;
+        // the lookahead is what it takes past the usual 32.
+        int perChain = Math.max(1, numAddrs / (numAccounts * 2));
+        HDChain.setLookahead(Math.max(0, perChain - 32));
+        hdwallet.ensureMargins(new Wallet(mParams, mKeyCrypter));
+        HDChain.setLookahead(0);
+
+        mLogger.info(String.format("made wallet in %d msec",
+                                   System.currentTimeMillis() - t0));
+        return hdwallet;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for (int ii = pools.size() - 1; ii >= 0; --ii)
+            if (pools.get(ii).getType() != MemoryType.HEAP)
+                pools.remove(ii);
+        return pools;
+    }
+
+    // Collects, then resets the pool peaks.  Returns the heap in use.
+    private static long settle() {
+        for (int ii = 0; ii < 4; ++ii)
+            System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+            used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    private static long allocated() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return 0;
+        return ((com.sun.management.ThreadMXBean) bean)
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long peak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools())
+            peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    public void run(HDWallet hdwallet) throws IOException {
+        long bestPersist = Long.MAX_VALUE;
+        long bestRestore = Long.MAX_VALUE;
+        long persistAlloc = 0;
+        long restoreAlloc = 0;
+        for (int round = 0; round < ROUNDS; ++round) {
+            long base = settle();
+            long alloc = allocated();
+            if (!hdwallet.persist(mStorage))
+                throw new IOException("persist failed");
+            persistAlloc = allocated() - alloc;
+            bestPersist = Math.min(bestPersist, peak() - base);
+
+            base = settle();
+            alloc = allocated();
+            HDWallet restored =
+                HDWallet.restore(mStorage, mParams, mKeyCrypter, mAesKey);
+            restoreAlloc = allocated() - alloc;
+            bestRestore = Math.min(bestRestore, peak() - base);
+            restored = null;
+        }
+
+        mLogger.info(String.format("file %d KB; peak above live heap: "
+                                   + "persist %d KB, restore %d KB",
+                                   mStorage.getHDWalletFile(null).length()
+                                   / 1024, bestPersist / 1024,
+                                   bestRestore / 1024));
+        mLogger.info(String.format("allocated: persist %d KB, "
+                                   + "restore %d KB", persistAlloc / 1024,
+                                   restoreAlloc / 1024));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numAddrs = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int numAccounts = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        File dir = File.createTempFile("persistheap", "");
+        dir.delete();
+        dir.mkdir();
+
+        PersistHeapBenchmark bench =
+            new PersistHeapBenchmark(NetworkMode.UNITTEST.getParams(), dir);
+        bench.run(bench.makeWallet(numAddrs, numAccounts));
+
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+        System.exit(0);
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
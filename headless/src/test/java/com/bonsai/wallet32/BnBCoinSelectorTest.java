@@ -0,0 +1,137 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.wallet.CoinSelection;
+
+public class BnBCoinSelectorTest {
+
+    private static final long	CENT = 1000000L;
+
+    private NetworkParameters		mParams;
+    private Address					mAddress;
+
+    @Before
+    public void setUp() {
+        mParams = NetworkMode.UNITTEST.getParams();
+        mAddress = new ECKey().toAddress(mParams);
+    }
+
+    private LinkedList<TransactionOutput> coins(long... values) {
+        LinkedList<TransactionOutput> coins =
+            new LinkedList<TransactionOutput>();
+        for (long value : values) {
+            Transaction tx = new Transaction(mParams);
+            coins.add(tx.addOutput(BigInteger.valueOf(value), mAddress));
+        }
+        return coins;
+    }
+
+    private static CoinSelection select(LinkedList<TransactionOutput> coins,
+                                        long target) {
+        // Unconfirmed, since the test coins have no confidence.
+        return new BnBCoinSelector(true)
+            .select(BigInteger.valueOf(target), coins);
+    }
+
+    @Test
+    public void testExactMatch() {
+        CoinSelection sel = select(coins(7 * CENT, 4 * CENT,
+                                         3 * CENT, 1 * CENT), 5 * CENT);
+        assertEquals(5 * CENT, sel.valueGathered.longValue());
+        assertEquals(2, sel.gathered.size());
+    }
+
+    @Test
+    public void testExactMatchWithinDust() {
+        long target = 5 * CENT - BnBCoinSelector.MAX_EXCESS;
+        CoinSelection sel = select(coins(7 * CENT, 5 * CENT), target);
+        assertEquals(5 * CENT, sel.valueGathered.longValue());
+    }
+
+    @Test
+    public void testPrefersFewerInputs() {
+        CoinSelection sel = select(coins(3 * CENT, 5 * CENT, 2 * CENT),
+                                   5 * CENT);
+        assertEquals(5 * CENT, sel.valueGathered.longValue());
+        assertEquals(1, sel.gathered.size());
+    }
+
+    @Test
+    public void testNoSolution() {
+        // Everything there is, short of the target.
+        CoinSelection sel = select(coins(3 * CENT, 2 * CENT), 6 * CENT);
+        assertEquals(5 * CENT, sel.valueGathered.longValue());
+        assertEquals(2, sel.gathered.size());
+    }
+
+    @Test
+    public void testFallbackToSmallerCoins() {
+        // Nothing within dust of the target; two small coins leave
+        // change of at least a cent with less over than the large one.
+        CoinSelection sel = select(coins(10 * CENT, 3 * CENT, 3 * CENT),
+                                   4 * CENT);
+        assertEquals(6 * CENT, sel.valueGathered.longValue());
+        assertEquals(2, sel.gathered.size());
+    }
+
+    @Test
+    public void testFallbackToLargerCoin() {
+        // The small coins can't cover it.
+        CoinSelection sel = select(coins(10 * CENT, 1 * CENT), 4 * CENT);
+        assertEquals(10 * CENT, sel.valueGathered.longValue());
+        assertEquals(1, sel.gathered.size());
+    }
+
+    @Test
+    public void testDeterministic() {
+        // Enough coins to use up the search budgets.
+        Random random = new Random(1);
+        long[] values = new long[300];
+        for (int ii = 0; ii < values.length; ++ii)
+            values[ii] = CENT / 10 + random.nextInt((int) (50 * CENT));
+        LinkedList<TransactionOutput> coins = coins(values);
+
+        for (int ii = 0; ii < 5; ++ii) {
+            long target = CENT + random.nextInt((int) (200 * CENT));
+            CoinSelection first = select(coins, target);
+            CoinSelection second = select(coins, target);
+            assertTrue(first.valueGathered.longValue() >= target);
+            assertEquals(first.gathered, second.gathered);
+        }
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,288 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.wallet32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.json.JSONException;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.MnemonicCodeX;
+
+public class HDWalletFileTest {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(HDWalletFileTest.class);
+
+    private static NetworkParameters	mParams;
+    private static File					mDir;
+    private static WalletStorage		mStorage;
+    private static KeyCrypter			mKeyCrypter;
+    private static KeyParameter			mAesKey;
+    private static HDWallet				mHDWallet;
+    private static String				mExpected;
+
+    // Deriving the addresses is slow, so one wallet with its initial
+    // margins is shared by the tests.
+    @BeforeClass
+    public static void makeWallet() throws IOException {
+        mParams = NetworkMode.UNITTEST.getParams();
+        mDir = File.createTempFile("hdwallet", "");
+        mDir.delete();
+        mDir.mkdir();
+        mStorage = new HeadlessWalletRunner.DirStorage
+            (mDir, new File("../app/src/main/assets"), NetworkMode.UNITTEST);
+
+        mKeyCrypter = WalletEngine.getKeyCrypter(new byte[8]);
+        mAesKey = mKeyCrypter.deriveKey("passcode");
+
+        mHDWallet = new HDWallet(mStorage, mParams, mKeyCrypter, mAesKey,
+                                 new byte[16], "", 2,
+                                 MnemonicCodeX.Version.V0_6,
+                                 HDWallet.HDStructVersion.HDSV_STDV1);
+        mHDWallet.ensureMargins(new Wallet(mParams, mKeyCrypter));
+        mExpected = mHDWallet.dumps(false).toString();
+    }
+
+    @AfterClass
+    public static void removeDir() {
+        for (File file : mDir.listFiles())
+            file.delete();
+        mDir.delete();
+    }
+
+    @Before
+    public void removeFile() {
+        mStorage.getHDWalletFile(null).delete();
+    }
+
+    private static HDWallet restore() throws IOException {
+        return HDWallet.restore(mStorage, mParams, mKeyCrypter, mAesKey);
+    }
+
+    private static boolean fileIsBinary() throws IOException {
+        BufferedInputStream bis = HDWalletFile.openInput(mStorage, mAesKey);
+        try {
+            return HDWalletFile.isBinary(bis);
+        }
+        finally {
+            bis.close();
+        }
+    }
+
+    // The wallet as the older releases wrote it.
+    private static void writeJSON() throws IOException, JSONException {
+        final byte[] json =
+            mHDWallet.dumps(false).toString(4).getBytes("UTF-8");
+        assertTrue(HDWalletFile.write(mStorage, mAesKey,
+                                      new HDWalletFile.Writer() {
+                public void write(DataOutputStream dos) throws IOException {
+                    dos.write(json);
+                }
+            }));
+    }
+
+    private static byte[] header(int version) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.write(HDWalletFile.MAGIC);
+        dos.writeInt(version);
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        mHDWallet.persist(mStorage);
+        assertTrue(fileIsBinary());
+        assertEquals(mExpected, restore().dumps(false).toString());
+    }
+
+    @Test
+    public void testRoundTripTwice() throws IOException {
+        // A restored wallet writes the same file contents back.
+        mHDWallet.persist(mStorage);
+        restore().persist(mStorage);
+        assertEquals(mExpected, restore().dumps(false).toString());
+    }
+
+    // The decrypted contents of the wallet file.
+    private static byte[] readPlain() throws IOException {
+        BufferedInputStream bis = HDWalletFile.openInput(mStorage, mAesKey);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = bis.read(buffer)) != -1)
+                bos.write(buffer, 0, len);
+            return bos.toByteArray();
+        }
+        finally {
+            bis.close();
+        }
+    }
+
+    private static void writePlain(final byte[] plain) {
+        assertTrue(HDWalletFile.write(mStorage, mAesKey,
+                                      new HDWalletFile.Writer() {
+                public void write(DataOutputStream dos) throws IOException {
+                    dos.write(plain);
+                }
+            }));
+    }
+
+    @Test
+    public void testSkipsUnknownSection() throws IOException {
+        mHDWallet.persist(mStorage);
+        byte[] plain = readPlain();
+
+        // Splice a section from some later version in after the
+        // wallet section.
+        DataInputStream dis =
+            new DataInputStream(new ByteArrayInputStream(plain));
+        HDWalletFile.readHeader(dis);
+        assertEquals(HDWalletFile.SECT_WALLET, dis.read());
+        int split = HDWalletFile.MAGIC.length + 4 + 1 + 4 + dis.readInt();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.write(plain, 0, split);
+        dos.writeByte(99);
+        dos.writeInt(5);
+        dos.write(new byte[] { 1, 2, 3, 4, 5 });
+        dos.write(plain, split, plain.length - split);
+        dos.flush();
+        writePlain(bos.toByteArray());
+
+        assertEquals(mExpected, restore().dumps(false).toString());
+    }
+
+    @Test
+    public void testRejectsTruncatedFile() throws IOException {
+        mHDWallet.persist(mStorage);
+        byte[] plain = readPlain();
+        byte[] truncated = new byte[plain.length - 10];
+        System.arraycopy(plain, 0, truncated, 0, truncated.length);
+        writePlain(truncated);
+        try {
+            restore();
+            fail("restored a truncated file");
+        } catch (IOException ex) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testReadHeader() throws IOException {
+        HDWalletFile.readHeader(new DataInputStream
+                                (new ByteArrayInputStream
+                                 (header(HDWalletFile.VERSION))));
+    }
+
+    @Test
+    public void testRejectsVersions() {
+        int[] versions = { 0, HDWalletFile.VERSION + 1 };
+        for (int version : versions) {
+            try {
+                HDWalletFile.readHeader(new DataInputStream
+                                        (new ByteArrayInputStream
+                                         (header(version))));
+                fail("accepted version " + version);
+            } catch (IOException ex) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testRestoreRejectsNewerVersion() throws IOException {
+        final byte[] header = header(HDWalletFile.VERSION + 1);
+        assertTrue(HDWalletFile.write(mStorage, mAesKey,
+                                      new HDWalletFile.Writer() {
+                public void write(DataOutputStream dos) throws IOException {
+                    dos.write(header);
+                }
+            }));
+        try {
+            restore();
+            fail("restored a newer version");
+        } catch (IOException ex) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testLegacyJSON() throws IOException, JSONException {
+        writeJSON();
+        assertTrue(!fileIsBinary());
+        HDWallet restored = restore();
+        assertEquals(mExpected, restored.dumps(false).toString());
+
+        // And it goes back out in the binary format.
+        restored.persist(mStorage);
+        assertTrue(fileIsBinary());
+        assertEquals(mExpected, restore().dumps(false).toString());
+    }
+
+    @Test
+    public void testSmallerThanJSON() throws IOException, JSONException {
+        File file = mStorage.getHDWalletFile(null);
+
+        writeJSON();
+        long jsonSize = file.length();
+        long t0 = System.nanoTime();
+        restore();
+        long jsonNanos = System.nanoTime() - t0;
+
+        mHDWallet.persist(mStorage);
+        long binarySize = file.length();
+        t0 = System.nanoTime();
+        restore();
+        long binaryNanos = System.nanoTime() - t0;
+
+        // Times on a shared machine are too noisy to assert on.
+        mLogger.info(String.format("JSON %d bytes, restore %.1f msec; "
+                                   + "binary %d bytes, restore %.1f msec",
+                                   jsonSize, jsonNanos / 1e6,
+                                   binarySize, binaryNanos / 1e6));
+        assertTrue(binarySize < jsonSize);
+    }
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End: